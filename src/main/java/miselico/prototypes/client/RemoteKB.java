@@ -2,19 +2,37 @@ package miselico.prototypes.client;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.client.cache.HttpCacheContext;
 import org.apache.http.client.config.CookieSpecs;
 import org.apache.http.client.config.RequestConfig;
@@ -25,28 +43,65 @@ import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.cache.CacheConfig;
 import org.apache.http.impl.client.cache.CachingHttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
 
+import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 
 import miselico.prototypes.experiments.MyKnowledgeBase;
+import miselico.prototypes.knowledgebase.AddChangeSet;
+import miselico.prototypes.knowledgebase.IAsyncFPKnowledgeBase;
 import miselico.prototypes.knowledgebase.ID;
 import miselico.prototypes.knowledgebase.IFPKnowledgeBase;
 import miselico.prototypes.knowledgebase.IKnowledgeBase;
 import miselico.prototypes.knowledgebase.KnowledgeBase;
 import miselico.prototypes.knowledgebase.Prototype;
+import miselico.prototypes.knowledgebase.PrototypeDefinition;
+import miselico.prototypes.knowledgebase.RemoveChangeSet;
 import miselico.prototypes.serializers.Deserializer;
 import miselico.prototypes.serializers.ParseException;
 import miselico.prototypes.serializers.json.JSONDeserializer;
+import miselico.prototypes.server.KBHandler;
 
 /**
  * An {@link IKnowledgeBase} which interacts with a remote prototype knowledge
  * base.
  * 
+ * Next to the blocking methods, this implements {@link IAsyncFPKnowledgeBase}
+ * using a non-blocking http client, which is only started when first used.
+ * The asynchronous requests do not go through the http cache of the blocking
+ * client. The returned futures are completed on the I/O threads of the client,
+ * so expensive dependent actions should use the async variants of the
+ * {@link CompletableFuture} methods.
+ * 
+ * Concurrent requests for the same prototype, or the same fixpoint, are
+ * coalesced: only the first one is sent and all callers get its response. See
+ * {@link #setMaxInFlight(int)} and {@link #coalescingStats()}.
+ * 
+ * Parsed prototypes are cached as long as the max-age of the response allows.
+ * After that, they are revalidated using their ETag. Unlike the http cache,
+ * this avoids parsing the response again and also holds large fixpoints. See
+ * {@link #setParsedCacheWeight(long)} and {@link #parsedCacheStats()}.
+ * 
+ * Requests answered with 404 are remembered in a bounded negative cache, such
+ * that lookups of missing IDs stay off the network. See
+ * {@link #setNegativeCache(long, long, TimeUnit)}.
+ * 
+ * Fixpoints are computed by the server by default. They can also be computed
+ * on the client from the definitions, or either way depending on the cache hit
+ * rate, see {@link #setFixpointMode(FixpointMode)}.
+ * 
  * @author michael
  *
  */
-public class RemoteKB implements IKnowledgeBase, IFPKnowledgeBase, AutoCloseable {
+public class RemoteKB implements IKnowledgeBase, IFPKnowledgeBase, IAsyncFPKnowledgeBase, AutoCloseable {
 
 	/**
 	 * When a prototype is requested from a remote source, the remote source
@@ -75,7 +130,14 @@ public class RemoteKB implements IKnowledgeBase, IFPKnowledgeBase, AutoCloseable
 	 * request on the wire.
 	 */
 	private static final boolean CONTENTCOMPRESSION = true;
+	private static final RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(30000).setSocketTimeout(30000).setCookieSpec(CookieSpecs.IGNORE_COOKIES).setContentCompressionEnabled(RemoteKB.CONTENTCOMPRESSION).build();
+	private static final int MAX_CONNECTIONS = 1000;
 	private final CloseableHttpClient cachingClient;
+	/**
+	 * The non-blocking client, created on first use.
+	 */
+	private CloseableHttpAsyncClient asyncClient;
+	private boolean closed = false;
 	private final URI datasource;
 	private final Deserializer des;
 
@@ -90,10 +152,9 @@ public class RemoteKB implements IKnowledgeBase, IFPKnowledgeBase, AutoCloseable
 	public RemoteKB(URI location) {
 		this.datasource = location;
 		CacheConfig cacheConfig = CacheConfig.custom().setMaxCacheEntries(10000).setMaxObjectSize(4096).build();
-		RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(30000).setSocketTimeout(30000).setCookieSpec(CookieSpecs.IGNORE_COOKIES).setContentCompressionEnabled(RemoteKB.CONTENTCOMPRESSION).build();
 		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
-		connectionManager.setDefaultMaxPerRoute(1000);
-		this.cachingClient = CachingHttpClients.custom().setCacheConfig(cacheConfig).setDefaultRequestConfig(requestConfig).setConnectionManager(connectionManager).build();
+		connectionManager.setDefaultMaxPerRoute(RemoteKB.MAX_CONNECTIONS);
+		this.cachingClient = CachingHttpClients.custom().setCacheConfig(cacheConfig).setDefaultRequestConfig(RemoteKB.requestConfig).setConnectionManager(connectionManager).build();
 		this.des = JSONDeserializer.create();
 	}
 
@@ -111,31 +172,40 @@ public class RemoteKB implements IKnowledgeBase, IFPKnowledgeBase, AutoCloseable
 		this.des = des;
 	}
 
-	@Override
-	public Optional<PrototypeWithAlternates> isDefined(ID id) {
+	private URI uriFor(ID id, boolean fixpoint) {
 		URIBuilder b = new URIBuilder(this.datasource);
 		b.addParameter("p", id.toString());
-		URI uri;
+		if (fixpoint) {
+			b.addParameter("fp", "true");
+		}
 		try {
-			uri = b.build();
+			return b.build();
 		} catch (URISyntaxException e) {
 			throw new Error("This URI cannot be wrong");
 		}
-		return Optional.ofNullable(this.fetch(uri));
+	}
+
+	@Override
+	public Optional<PrototypeWithAlternates> isDefined(ID id) {
+		return Optional.ofNullable(this.fetch(this.uriFor(id, false)));
+	}
+
+	/**
+	 * Remote prototypes always have to be fetched and parsed, so this is the
+	 * same as {@link #isDefined(ID)} without the alternates.
+	 */
+	@Override
+	public PrototypeDefinition lookup(ID id) {
+		return this.isDefined(id).map(prot -> prot.def).orElse(null);
 	}
 
 	@Override
 	public PrototypeWithAlternates computeFixPoint(ID id) {
-		URIBuilder b = new URIBuilder(this.datasource);
-		b.addParameter("p", id.toString());
-		b.addParameter("fp", "true");
-		URI uri;
-		try {
-			uri = b.build();
-		} catch (URISyntaxException e) {
-			throw new Error("This URI cannot be wrong");
+		if (this.computeOnClient(id)) {
+			return RemoteKB.checkFound(id, RemoteKB.join(this.clientFixPointsAsync(ImmutableList.of(id))));
 		}
-		PrototypeWithAlternates result = this.fetch(uri);
+		this.serverFixpoints.increment();
+		PrototypeWithAlternates result = this.fetch(this.uriFor(id, true));
 		if (result == null) {
 			throw new Error("Prototype with ID " + id + "could not be found.");
 		}
@@ -143,30 +213,1012 @@ public class RemoteKB implements IKnowledgeBase, IFPKnowledgeBase, AutoCloseable
 	}
 
 	private PrototypeWithAlternates fetch(URI uri) {
-		HttpGet httpget = new HttpGet(uri);
+		if (this.misses.isMissing(uri)) {
+			this.negativeHits.increment();
+			return null;
+		}
+		CachedPrototype cached = this.parsedCache.getIfPresent(uri);
+		if ((cached != null) && cached.isFresh()) {
+			this.parsedHits.increment();
+			return cached.prototype;
+		}
+		return RemoteKB.join(this.coalesce(uri, () -> {
+			try {
+				return CompletableFuture.completedFuture(this.fetchBlocking(uri, cached));
+			} catch (RuntimeException e) {
+				return RemoteKB.failed(e);
+			}
+		}));
+	}
+
+	private PrototypeWithAlternates fetchBlocking(URI uri, CachedPrototype cached) {
+		HttpGet httpget = RemoteKB.conditionalGet(uri, cached);
 		HttpCacheContext context = new HttpCacheContext();
 		try (CloseableHttpResponse response = this.cachingClient.execute(httpget, context)) {
+			return this.handle(uri, response, cached);
+		} catch (IOException | ParseException e) {
+			throw new RuntimeException(e);
+		} finally {
+			httpget.reset();
+		}
+	}
+
+	/**
+	 * A GET request for the URI, which is conditional if there is a cached
+	 * prototype with an ETag.
+	 */
+	private static HttpGet conditionalGet(URI uri, CachedPrototype cached) {
+		HttpGet get = new HttpGet(uri);
+		if ((cached != null) && (cached.etag != null)) {
+			get.setHeader("If-None-Match", cached.etag);
+		}
+		return get;
+	}
+
+	/**
+	 * Handle the response to a request for a single prototype, which was
+	 * conditional if cached is not null. The parsed cache is updated
+	 * accordingly.
+	 */
+	private PrototypeWithAlternates handle(URI uri, HttpResponse response, CachedPrototype cached) throws IOException, ParseException {
+		long maxAge = RemoteKB.maxAge(response);
+		if ((response.getStatusLine().getStatusCode() == HttpServletResponse.SC_NOT_MODIFIED) && (cached != null)) {
+			this.parsedRevalidated.increment();
+			this.parsedCache.put(uri, CachedPrototype.withMaxAge(cached.prototype, cached.etag, Math.max(maxAge, 0)));
+			return cached.prototype;
+		}
+		PrototypeWithAlternates prot = this.parse(uri, response);
+		if (prot == null) {
+			this.parsedCache.invalidate(uri);
+			if (response.getStatusLine().getStatusCode() == HttpServletResponse.SC_NOT_FOUND) {
+				this.misses.put(uri, maxAge);
+			}
+			return null;
+		}
+		Header etag = response.getFirstHeader("ETag");
+		if ((maxAge > 0) || (etag != null)) {
+			// without max-age, the entry is stale immediately, but it can
+			// still be revalidated
+			this.parsedCache.put(uri, CachedPrototype.withMaxAge(prot, etag == null ? null : etag.getValue(), maxAge));
+		}
+		return prot;
+	}
+
+	/**
+	 * The max-age from the Cache-Control header in seconds, 0 if the response
+	 * must not be reused without asking the server, -1 if there is none.
+	 */
+	private static long maxAge(HttpResponse response) {
+		for (Header cacheControl : response.getHeaders("Cache-Control")) {
+			for (HeaderElement element : cacheControl.getElements()) {
+				if ("no-cache".equalsIgnoreCase(element.getName()) || "no-store".equalsIgnoreCase(element.getName())) {
+					return 0;
+				}
+				if ("max-age".equalsIgnoreCase(element.getName()) && (element.getValue() != null)) {
+					try {
+						return Math.max(0, Long.parseLong(element.getValue()));
+					} catch (NumberFormatException e) {
+						return -1;
+					}
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * How long, in seconds, the IDs left out of a partial response are not
+	 * defined, -1 if the server did not say.
+	 */
+	private static long notFoundMaxAge(HttpResponse response) {
+		Header header = response.getFirstHeader(KBHandler.NOT_FOUND_MAX_AGE_HEADER);
+		if (header == null) {
+			return -1;
+		}
+		try {
+			return Math.max(0, Long.parseLong(header.getValue().trim()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Parse the response, null if the request failed.
+	 */
+	private PrototypeWithAlternates parse(URI uri, HttpResponse response) throws IOException, ParseException {
+		if (response.getStatusLine().getStatusCode() != HttpServletResponse.SC_OK) {
+			Logger.getLogger(RemoteKB.class.getName()).fine("request " + uri + "failed, returning empty prototype");
+			return null;
+		}
+		// parse link headers to search for alternates
+		Set<URI> alternates = new HashSet<>();
+		for (Header linkHeader : response.getHeaders("Link")) {
+			try {
+				alternates.addAll(RemoteKB.linkHeaderParser.parse(linkHeader.getValue()));
+			} catch (URISyntaxException e) {
+				Logger.getLogger(RemoteKB.class.getName()).info("An excepiton was thrown while parsing the Link header. This exception is silenced. Original message :" + e.getMessage());
+			}
+		}
+
+		Prototype prot = this.des.deserializeOne(new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8));
+		return new PrototypeWithAlternates(prot, alternates);
+	}
+
+	private synchronized CloseableHttpAsyncClient asyncClient() {
+		Preconditions.checkState(!this.closed, "This RemoteKB is closed");
+		if (this.asyncClient == null) {
+			this.asyncClient = HttpAsyncClients.custom().setDefaultRequestConfig(RemoteKB.requestConfig).setMaxConnPerRoute(RemoteKB.MAX_CONNECTIONS).setMaxConnTotal(RemoteKB.MAX_CONNECTIONS).build();
+			this.asyncClient.start();
+		}
+		return this.asyncClient;
+	}
+
+	private interface ResponseParser<T> {
+		T parse(HttpResponse response) throws IOException, ParseException;
+	}
+
+	/**
+	 * Fetch without blocking. The future is completed with null if the
+	 * request failed.
+	 */
+	private CompletableFuture<PrototypeWithAlternates> fetchAsync(URI uri) {
+		if (this.misses.isMissing(uri)) {
+			this.negativeHits.increment();
+			return CompletableFuture.completedFuture(null);
+		}
+		CachedPrototype cached = this.parsedCache.getIfPresent(uri);
+		if ((cached != null) && cached.isFresh()) {
+			this.parsedHits.increment();
+			return CompletableFuture.completedFuture(cached.prototype);
+		}
+		return this.coalesce(uri, () -> this.executeAsync(RemoteKB.conditionalGet(uri, cached), response -> this.handle(uri, response, cached)));
+	}
+
+	/**
+	 * Parsed prototypes, keyed by the URI of the request, which identifies
+	 * both the ID and whether the fixpoint was asked.
+	 */
+	private volatile Cache<URI, CachedPrototype> parsedCache = RemoteKB.parsedCache(RemoteKB.DEFAULT_PARSED_CACHE_WEIGHT);
+	private final LongAdder parsedHits = new LongAdder();
+	private final LongAdder parsedRevalidated = new LongAdder();
+
+	/**
+	 * The default maximum total weight of the parsed prototypes cached. The
+	 * weight of a prototype is the number of (property, value) pairs in it,
+	 * plus one.
+	 */
+	public static final long DEFAULT_PARSED_CACHE_WEIGHT = 1_000_000;
+
+	private static Cache<URI, CachedPrototype> parsedCache(long maximumWeight) {
+		return CacheBuilder.newBuilder().maximumWeight(maximumWeight).weigher((URI uri, CachedPrototype cached) -> cached.prototype.def.add.size() + cached.prototype.def.remove.size() + 1).build();
+	}
+
+	/**
+	 * Replace the cache of parsed prototypes with an empty one with the given
+	 * maximum weight. The default is {@value #DEFAULT_PARSED_CACHE_WEIGHT}, 0
+	 * disables the cache. The fixpoints computed on the client are kept in a
+	 * cache of the same weight, which is replaced as well.
+	 * 
+	 * @param maximumWeight
+	 */
+	public void setParsedCacheWeight(long maximumWeight) {
+		Preconditions.checkArgument(maximumWeight >= 0);
+		this.parsedCache = RemoteKB.parsedCache(maximumWeight);
+		this.fixpoints = RemoteKB.fixpointCache(maximumWeight);
+	}
+
+	/**
+	 * A parsed prototype with the ETag it was served with and the moment it
+	 * becomes stale.
+	 */
+	private static final class CachedPrototype {
+		final PrototypeWithAlternates prototype;
+		final String etag;
+		final long staleAt;
+
+		/**
+		 * @param staleAt
+		 *            the moment on the scale of {@link System#nanoTime()}
+		 */
+		CachedPrototype(PrototypeWithAlternates prototype, String etag, long staleAt) {
+			this.prototype = prototype;
+			this.etag = etag;
+			this.staleAt = staleAt;
+		}
+
+		/**
+		 * A prototype which becomes stale after maxAge seconds.
+		 */
+		static CachedPrototype withMaxAge(PrototypeWithAlternates prototype, String etag, long maxAge) {
+			return new CachedPrototype(prototype, etag, System.nanoTime() + TimeUnit.SECONDS.toNanos(maxAge));
+		}
+
+		boolean isFresh() {
+			return System.nanoTime() - this.staleAt < 0;
+		}
+	}
+
+	/**
+	 * Set the size and time to live of the cache of IDs for which the server
+	 * answered 404. A miss is cached for the max-age of the 404 response if
+	 * it is shorter than the time to live, and not at all if the response is
+	 * marked no-cache or has max-age 0. A 404 without Cache-Control header is
+	 * cached for the time to live. The same holds for the IDs left out of a
+	 * partial batch response, using the
+	 * {@value KBHandler#NOT_FOUND_MAX_AGE_HEADER} header. The default is
+	 * {@value #DEFAULT_NEGATIVE_CACHE_SIZE} IDs for
+	 * {@value #DEFAULT_NEGATIVE_CACHE_TTL} seconds. A prototype defined
+	 * remotely after a miss is found only after the miss expired. A size or
+	 * time to live of 0 disables the negative cache. The current content is
+	 * dropped.
+	 * 
+	 * @param maximumSize
+	 * @param ttl
+	 * @param unit
+	 */
+	public void setNegativeCache(long maximumSize, long ttl, TimeUnit unit) {
+		Preconditions.checkArgument(maximumSize >= 0);
+		Preconditions.checkArgument(ttl >= 0);
+		this.misses = new MissCache(maximumSize, unit.toNanos(ttl));
+	}
+
+	public static final long DEFAULT_NEGATIVE_CACHE_SIZE = 100_000;
+	public static final long DEFAULT_NEGATIVE_CACHE_TTL = 60;
+	private volatile MissCache misses = new MissCache(RemoteKB.DEFAULT_NEGATIVE_CACHE_SIZE, TimeUnit.SECONDS.toNanos(RemoteKB.DEFAULT_NEGATIVE_CACHE_TTL));
+	private final LongAdder negativeHits = new LongAdder();
+
+	/**
+	 * The requests, keyed by URI, which were answered with 404 and the moment
+	 * that answer becomes stale.
+	 */
+	private static final class MissCache {
+		private final Cache<URI, Long> staleAt;
+		private final long ttl;
+
+		MissCache(long maximumSize, long ttl) {
+			this.staleAt = CacheBuilder.newBuilder().maximumSize(maximumSize).expireAfterWrite(ttl, TimeUnit.NANOSECONDS).build();
+			this.ttl = ttl;
+		}
+
+		boolean isMissing(URI uri) {
+			Long staleAt = this.staleAt.getIfPresent(uri);
+			return (staleAt != null) && (System.nanoTime() - staleAt < 0);
+		}
+
+		/**
+		 * Record the miss, for the given max-age in seconds or -1 if the
+		 * server did not send one.
+		 */
+		void put(URI uri, long maxAge) {
+			long lifetime = maxAge < 0 ? this.ttl : Math.min(this.ttl, TimeUnit.SECONDS.toNanos(maxAge));
+			if (lifetime > 0) {
+				this.staleAt.put(uri, System.nanoTime() + lifetime);
+			}
+		}
+
+		long size() {
+			return this.staleAt.size();
+		}
+	}
+
+	/**
+	 * How many requests for a single prototype were answered from the cache
+	 * of parsed prototypes without contacting the server, how many of them
+	 * were revalidated with the server, and the number of prototypes cached.
+	 * The same for the negative cache, except that misses are not
+	 * revalidated.
+	 * 
+	 * @return
+	 */
+	public ParsedCacheStats parsedCacheStats() {
+		return new ParsedCacheStats(this.parsedHits.sum(), this.parsedRevalidated.sum(), this.parsedCache.size(), this.negativeHits.sum(), this.misses.size());
+	}
 
-			if (response.getStatusLine().getStatusCode() != HttpServletResponse.SC_OK) {
-				Logger.getLogger(RemoteKB.class.getName()).fine("request " + uri + "failed, returning empty prototype");
-				return null;
+	/**
+	 * Statistics about the cache of parsed prototypes, see
+	 * {@link RemoteKB#parsedCacheStats()}.
+	 * 
+	 * @author michael
+	 *
+	 */
+	public static final class ParsedCacheStats {
+		public final long hits;
+		public final long revalidated;
+		public final long size;
+		/**
+		 * The number of lookups answered from the negative cache
+		 */
+		public final long negativeHits;
+		public final long negativeSize;
+
+		private ParsedCacheStats(long hits, long revalidated, long size, long negativeHits, long negativeSize) {
+			this.hits = hits;
+			this.revalidated = revalidated;
+			this.size = size;
+			this.negativeHits = negativeHits;
+			this.negativeSize = negativeSize;
+		}
+
+		@Override
+		public String toString() {
+			return "ParsedCacheStats [hits=" + this.hits + ", revalidated=" + this.revalidated + ", size=" + this.size + ", negativeHits=" + this.negativeHits + ", negativeSize=" + this.negativeSize + "]";
+		}
+	}
+
+	/**
+	 * Set the maximum number of distinct requests which are tracked for
+	 * coalescing at the same time. When the table is full, further requests
+	 * are sent without coalescing. The default is
+	 * {@value #DEFAULT_MAX_IN_FLIGHT}, 0 disables coalescing.
+	 * 
+	 * @param maxInFlight
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		Preconditions.checkArgument(maxInFlight >= 0);
+		this.maxInFlight = maxInFlight;
+	}
+
+	public static final int DEFAULT_MAX_IN_FLIGHT = 10000;
+	private volatile int maxInFlight = RemoteKB.DEFAULT_MAX_IN_FLIGHT;
+	/**
+	 * The requests for a single prototype which are in flight. The URI
+	 * identifies both the ID and whether the fixpoint is requested.
+	 */
+	private final ConcurrentHashMap<URI, CompletableFuture<PrototypeWithAlternates>> inFlight = new ConcurrentHashMap<>();
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final LongAdder bypassed = new LongAdder();
+
+	/**
+	 * Send the request, unless the same request is already in flight, in
+	 * which case its response is shared. The returned future is shared among
+	 * all callers and must not be completed or cancelled by them.
+	 */
+	private CompletableFuture<PrototypeWithAlternates> coalesce(URI uri, Supplier<CompletableFuture<PrototypeWithAlternates>> request) {
+		if (this.inFlight.size() >= this.maxInFlight) {
+			this.bypassed.increment();
+			return request.get();
+		}
+		CompletableFuture<PrototypeWithAlternates> flight = new CompletableFuture<>();
+		CompletableFuture<PrototypeWithAlternates> existing = this.inFlight.putIfAbsent(uri, flight);
+		if (existing != null) {
+			this.coalesced.increment();
+			return existing;
+		}
+		this.sent.increment();
+		CompletableFuture<PrototypeWithAlternates> response;
+		try {
+			response = request.get();
+		} catch (RuntimeException | Error e) {
+			response = RemoteKB.failed(e);
+		}
+		response.whenComplete((result, e) -> {
+			// leave the table before completing, callers arriving later send
+			// a new request
+			this.inFlight.remove(uri, flight);
+			if (e != null) {
+				flight.completeExceptionally(e);
+			} else {
+				flight.complete(result);
 			}
-			// parse link headers to search for alternates
-			Set<URI> alternates = new HashSet<>();
-			for (Header linkHeader : response.getHeaders("Link")) {
+		});
+		return flight;
+	}
+
+	private static <T> CompletableFuture<T> failed(Throwable t) {
+		CompletableFuture<T> failed = new CompletableFuture<>();
+		failed.completeExceptionally(t);
+		return failed;
+	}
+
+	/**
+	 * How many requests for a single prototype were sent, how many were
+	 * saved by sharing a request in flight, and how many were sent without
+	 * coalescing because the in-flight table was full.
+	 * 
+	 * @return
+	 */
+	public CoalescingStats coalescingStats() {
+		return new CoalescingStats(this.sent.sum(), this.coalesced.sum(), this.bypassed.sum());
+	}
+
+	/**
+	 * Statistics about request coalescing, see
+	 * {@link RemoteKB#coalescingStats()}.
+	 * 
+	 * @author michael
+	 *
+	 */
+	public static final class CoalescingStats {
+		public final long sent;
+		/**
+		 * The number of requests saved
+		 */
+		public final long coalesced;
+		public final long bypassed;
+
+		private CoalescingStats(long sent, long coalesced, long bypassed) {
+			this.sent = sent;
+			this.coalesced = coalesced;
+			this.bypassed = bypassed;
+		}
+
+		@Override
+		public String toString() {
+			return "CoalescingStats [sent=" + this.sent + ", coalesced=" + this.coalesced + ", bypassed=" + this.bypassed + "]";
+		}
+	}
+
+	private <T> CompletableFuture<T> executeAsync(HttpGet request, ResponseParser<T> parser) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		this.asyncClient().execute(request, new FutureCallback<HttpResponse>() {
+
+			@Override
+			public void completed(HttpResponse response) {
 				try {
-					alternates.addAll(RemoteKB.linkHeaderParser.parse(linkHeader.getValue()));
-				} catch (URISyntaxException e) {
-					Logger.getLogger(RemoteKB.class.getName()).info("An excepiton was thrown while parsing the Link header. This exception is silenced. Original message :" + e.getMessage());
+					result.complete(parser.parse(response));
+				} catch (IOException | ParseException | RuntimeException e) {
+					result.completeExceptionally(e);
 				}
 			}
 
-			Prototype prot = this.des.deserializeOne(new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8));
-			return new PrototypeWithAlternates(prot, alternates);
-		} catch (IOException | ParseException e) {
-			throw new RuntimeException(e);
-		} finally {
-			httpget.reset();
+			@Override
+			public void failed(Exception e) {
+				result.completeExceptionally(e);
+			}
+
+			@Override
+			public void cancelled() {
+				result.cancel(false);
+			}
+		});
+		return result;
+	}
+
+	@Override
+	public CompletableFuture<Optional<Prototype>> isDefinedAsync(ID id) {
+		return this.fetchAsync(this.uriFor(id, false)).thenApply(Optional::ofNullable);
+	}
+
+	@Override
+	public CompletableFuture<Prototype> computeFixPointAsync(ID id) {
+		if (this.computeOnClient(id)) {
+			return this.clientFixPointsAsync(ImmutableList.of(id)).thenApply(fixpoints -> RemoteKB.checkFound(id, fixpoints));
+		}
+		this.serverFixpoints.increment();
+		return this.fetchAsync(this.uriFor(id, true)).thenApply(result -> {
+			if (result == null) {
+				throw new Error("Prototype with ID " + id + "could not be found.");
+			}
+			return result;
+		});
+	}
+
+	/**
+	 * Set the limits used to split batches of IDs into requests. The default
+	 * is at most {@value #DEFAULT_MAX_URI_LENGTH} characters in the request
+	 * URI and at most {@value #DEFAULT_MAX_IDS_PER_REQUEST} IDs per request.
+	 * 
+	 * @param maxURILength
+	 *            the maximum length of the request URI. The server has to
+	 *            accept request lines of this length.
+	 * @param maxIDsPerRequest
+	 *            the maximum number of IDs in one request, which bounds the
+	 *            size of the response body.
+	 */
+	public void setBatchLimits(int maxURILength, int maxIDsPerRequest) {
+		Preconditions.checkArgument(maxURILength > 0);
+		Preconditions.checkArgument(maxIDsPerRequest > 0);
+		this.maxURILength = maxURILength;
+		this.maxIDsPerRequest = maxIDsPerRequest;
+	}
+
+	public static final int DEFAULT_MAX_URI_LENGTH = 4000;
+	public static final int DEFAULT_MAX_IDS_PER_REQUEST = 500;
+	private volatile int maxURILength = RemoteKB.DEFAULT_MAX_URI_LENGTH;
+	private volatile int maxIDsPerRequest = RemoteKB.DEFAULT_MAX_IDS_PER_REQUEST;
+
+	/**
+	 * Split the IDs in chunks which each fit in one request. An ID which does
+	 * not fit in a request by itself gets its own chunk.
+	 */
+	private List<List<ID>> chunks(Collection<ID> ids) {
+		int baseLength = this.uriFor(Prototype.P_0.id, true).toString().length() + "&partial=true".length();
+		List<List<ID>> chunks = new ArrayList<>();
+		List<ID> chunk = new ArrayList<>();
+		int length = baseLength;
+		for (ID id : ids) {
+			int idLength;
+			try {
+				idLength = "&p=".length() + URLEncoder.encode(id.toString(), StandardCharsets.UTF_8.name()).length();
+			} catch (UnsupportedEncodingException e) {
+				throw new Error("Built-in charset utf-8 must be supported.");
+			}
+			if (!chunk.isEmpty() && ((chunk.size() == this.maxIDsPerRequest) || (length + idLength > this.maxURILength))) {
+				chunks.add(chunk);
+				chunk = new ArrayList<>();
+				length = baseLength;
+			}
+			chunk.add(id);
+			length += idLength;
+		}
+		if (!chunk.isEmpty()) {
+			chunks.add(chunk);
+		}
+		return chunks;
+	}
+
+	/**
+	 * Fetch the prototypes, or their fixpoints, with as few requests as the
+	 * batch limits allow. All requests are sent at once. Prototypes which are
+	 * not defined are not in the result. The prototypes received are put in
+	 * the cache of parsed prototypes for the max-age of the response. A
+	 * response for several prototypes has no Link headers, so these have no
+	 * alternates.
+	 */
+	private CompletableFuture<Map<ID, PrototypeWithAlternates>> fetchAllAsync(Collection<ID> ids, boolean fixpoint) {
+		List<CompletableFuture<List<PrototypeWithAlternates>>> requests = new ArrayList<>();
+		// fresh parsed prototypes are used as they are, the others are asked
+		List<PrototypeWithAlternates> cachedPrototypes = new ArrayList<>();
+		Set<ID> toFetch = new LinkedHashSet<>();
+		for (ID id : ids) {
+			URI uri = this.uriFor(id, fixpoint);
+			if (this.misses.isMissing(uri)) {
+				this.negativeHits.increment();
+				continue;
+			}
+			CachedPrototype cached = this.parsedCache.getIfPresent(uri);
+			if ((cached != null) && cached.isFresh()) {
+				this.parsedHits.increment();
+				cachedPrototypes.add(cached.prototype);
+			} else {
+				toFetch.add(id);
+			}
+		}
+		requests.add(CompletableFuture.completedFuture(cachedPrototypes));
+		for (List<ID> chunk : this.chunks(toFetch)) {
+			if (chunk.size() == 1) {
+				// the single prototype request shares the parsed and negative
+				// caches and the ETag revalidation with isDefined, but like
+				// all asynchronous requests it bypasses the HTTP cache.
+				requests.add(this.fetchAsync(this.uriFor(chunk.get(0), fixpoint)).thenApply(prot -> prot == null ? ImmutableList.of() : ImmutableList.of(prot)));
+				continue;
+			}
+			URIBuilder b = new URIBuilder(this.datasource);
+			for (ID id : chunk) {
+				b.addParameter("p", id.toString());
+			}
+			if (fixpoint) {
+				b.addParameter("fp", "true");
+			}
+			b.addParameter("partial", "true");
+			URI uri;
+			try {
+				uri = b.build();
+			} catch (URISyntaxException e) {
+				throw new Error("This URI cannot be wrong");
+			}
+			requests.add(this.executeAsync(new HttpGet(uri), response -> {
+				if (response.getStatusLine().getStatusCode() != HttpServletResponse.SC_OK) {
+					Logger.getLogger(RemoteKB.class.getName()).fine("request " + uri + "failed, returning no prototypes");
+					return ImmutableList.of();
+				}
+				long maxAge = RemoteKB.maxAge(response);
+				List<PrototypeWithAlternates> found = new ArrayList<>();
+				// the IDs left out of a partial response are not defined
+				Set<ID> missing = new HashSet<>(chunk);
+				for (Prototype parsed : this.des.deserialize(new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8))) {
+					PrototypeWithAlternates prot = new PrototypeWithAlternates(parsed, ImmutableSet.of());
+					found.add(prot);
+					missing.remove(prot.id);
+					if (maxAge > 0) {
+						// without an ETag, the entry can not be revalidated
+						this.parsedCache.put(this.uriFor(prot.id, fixpoint), CachedPrototype.withMaxAge(prot, null, maxAge));
+					}
+				}
+				long notFoundMaxAge = RemoteKB.notFoundMaxAge(response);
+				for (ID id : missing) {
+					this.misses.put(this.uriFor(id, fixpoint), notFoundMaxAge);
+				}
+				return found;
+			}));
+		}
+		return CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[requests.size()])).thenApply(done -> {
+			Map<ID, PrototypeWithAlternates> result = new HashMap<>();
+			for (CompletableFuture<List<PrototypeWithAlternates>> request : requests) {
+				for (PrototypeWithAlternates prot : request.join()) {
+					result.put(prot.id, prot);
+				}
+			}
+			return result;
+		});
+	}
+
+	private static <T> T join(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			Throwables.propagateIfPossible(e.getCause());
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private static <P extends Prototype> P checkFound(ID id, Map<ID, P> fixpoints) {
+		P result = fixpoints.get(id);
+		if (result == null) {
+			throw new Error("Prototype with ID " + id + "could not be found.");
+		}
+		return result;
+	}
+
+	/**
+	 * Look up the IDs using requests for many IDs at once, which are sent
+	 * concurrently. See {@link #setBatchLimits(int, int)}. These requests do
+	 * not go through the http cache, but fresh parsed prototypes are used.
+	 */
+	@Override
+	public Map<ID, Prototype> isDefinedAll(Collection<ID> ids) {
+		return new HashMap<>(RemoteKB.join(this.fetchAllAsync(ids, false)));
+	}
+
+	/**
+	 * Compute the fixpoints using requests for many IDs at once, which are
+	 * sent concurrently. See {@link #setBatchLimits(int, int)}. These requests
+	 * do not go through the http cache, but fresh parsed prototypes are used.
+	 * Fixpoints computed on the client fetch the missing ancestors of all IDs
+	 * together, see {@link #setFixpointMode(FixpointMode)}.
+	 */
+	@Override
+	public Map<ID, Prototype> computeFixPointAll(Collection<ID> ids) {
+		Map<ID, Prototype> fixpoints = RemoteKB.join(this.fixPointsAsync(ids));
+		for (ID id : ids) {
+			RemoteKB.checkFound(id, fixpoints);
+		}
+		return fixpoints;
+	}
+
+	@Override
+	public CompletableFuture<List<Optional<Prototype>>> isDefinedAllAsync(List<ID> ids) {
+		return this.fetchAllAsync(ids, false).thenApply(found -> {
+			List<Optional<Prototype>> result = new ArrayList<>(ids.size());
+			for (ID id : ids) {
+				result.add(Optional.ofNullable(found.get(id)));
+			}
+			return result;
+		});
+	}
+
+	@Override
+	public CompletableFuture<List<Prototype>> computeFixPointAllAsync(List<ID> ids) {
+		return this.fixPointsAsync(ids).thenApply(fixpoints -> {
+			List<Prototype> result = new ArrayList<>(ids.size());
+			for (ID id : ids) {
+				result.add(RemoteKB.checkFound(id, fixpoints));
+			}
+			return result;
+		});
+	}
+
+	/**
+	 * Where the fixpoints of prototypes are computed.
+	 * 
+	 * @author michael
+	 *
+	 */
+	public enum FixpointMode {
+		/**
+		 * The server computes the fixpoint, which is requested with fp=true.
+		 */
+		SERVER,
+		/**
+		 * The client fetches the definitions of the prototype and its
+		 * ancestors and computes the fixpoint itself. The ancestors which are
+		 * not cached are fetched level by level, all ancestors on the same
+		 * level at once. Computed fixpoints are kept as long as all
+		 * definitions in their branch are fresh.
+		 */
+		CLIENT,
+		/**
+		 * The client computes the fixpoint if the whole branch is cached, or
+		 * if at least {@value RemoteKB#ADAPTIVE_HIT_RATE} of the ancestors
+		 * needed for client-side fixpoints so far were cached. Otherwise, the
+		 * server computes it, except for every
+		 * {@value RemoteKB#ADAPTIVE_PROBE_INTERVAL}th fixpoint, which keeps the
+		 * hit rate up to date.
+		 */
+		ADAPTIVE
+	}
+
+	public static final double ADAPTIVE_HIT_RATE = 0.5;
+	public static final int ADAPTIVE_PROBE_INTERVAL = 16;
+
+	/**
+	 * Set where fixpoints are computed. The default is
+	 * {@link FixpointMode#SERVER}.
+	 * 
+	 * @param mode
+	 */
+	public void setFixpointMode(FixpointMode mode) {
+		this.fixpointMode = Preconditions.checkNotNull(mode);
+	}
+
+	private volatile FixpointMode fixpointMode = FixpointMode.SERVER;
+	private final AtomicLong adaptiveServerSide = new AtomicLong();
+	private final LongAdder serverFixpoints = new LongAdder();
+	private final LongAdder clientFixpoints = new LongAdder();
+	private final LongAdder ancestorHits = new LongAdder();
+	private final LongAdder ancestorFetches = new LongAdder();
+
+	/**
+	 * Fixpoints computed on the client, kept until a definition in their
+	 * branch becomes stale. Its weight is set with
+	 * {@link #setParsedCacheWeight(long)}.
+	 */
+	private volatile Cache<ID, Fixpoint> fixpoints = RemoteKB.fixpointCache(RemoteKB.DEFAULT_PARSED_CACHE_WEIGHT);
+
+	private static Cache<ID, Fixpoint> fixpointCache(long maximumWeight) {
+		return CacheBuilder.newBuilder().maximumWeight(maximumWeight).weigher((ID id, Fixpoint fixpoint) -> fixpoint.add.size() + 1).build();
+	}
+
+	private static final class Fixpoint {
+		final AddChangeSet add;
+		final long staleAt;
+
+		Fixpoint(AddChangeSet add, long staleAt) {
+			this.add = add;
+			this.staleAt = staleAt;
+		}
+
+		boolean isFresh() {
+			return System.nanoTime() - this.staleAt < 0;
+		}
+	}
+
+	private Fixpoint memoized(ID id) {
+		Fixpoint fixpoint = this.fixpoints.getIfPresent(id);
+		return (fixpoint != null) && fixpoint.isFresh() ? fixpoint : null;
+	}
+
+	private CachedPrototype cachedDefinition(ID id) {
+		CachedPrototype cached = this.parsedCache.getIfPresent(this.uriFor(id, false));
+		return (cached != null) && cached.isFresh() ? cached : null;
+	}
+
+	private boolean computeOnClient(ID id) {
+		switch (this.fixpointMode) {
+		case SERVER:
+			return false;
+		case CLIENT:
+			return true;
+		default:
+			return this.branchCached(id) || (this.fixpointStats().ancestorHitRate() >= RemoteKB.ADAPTIVE_HIT_RATE) || (this.adaptiveServerSide.getAndIncrement() % RemoteKB.ADAPTIVE_PROBE_INTERVAL == 0);
+		}
+	}
+
+	/**
+	 * Whether the fixpoint can be computed without contacting the server.
+	 */
+	private boolean branchCached(ID id) {
+		Set<ID> seen = new HashSet<>();
+		ID current = id;
+		while (!Prototype.P_0.id.equals(current) && seen.add(current)) {
+			if (this.memoized(current) != null) {
+				return true;
+			}
+			CachedPrototype cached = this.cachedDefinition(current);
+			if (cached == null) {
+				return false;
+			}
+			current = cached.prototype.def.parent;
+		}
+		return Prototype.P_0.id.equals(current);
+	}
+
+	/**
+	 * Compute the fixpoints on the server or on the client, depending on the
+	 * mode. Prototypes which are not defined are not in the result.
+	 */
+	private CompletableFuture<Map<ID, Prototype>> fixPointsAsync(Collection<ID> ids) {
+		List<ID> onClient = new ArrayList<>();
+		List<ID> onServer = new ArrayList<>();
+		for (ID id : new LinkedHashSet<>(ids)) {
+			(this.computeOnClient(id) ? onClient : onServer).add(id);
+		}
+		this.serverFixpoints.add(onServer.size());
+		CompletableFuture<Map<ID, PrototypeWithAlternates>> fromServer = onServer.isEmpty() ? CompletableFuture.completedFuture(ImmutableMap.of()) : this.fetchAllAsync(onServer, true);
+		CompletableFuture<Map<ID, PrototypeWithAlternates>> fromClient = onClient.isEmpty() ? CompletableFuture.completedFuture(ImmutableMap.of()) : this.clientFixPointsAsync(onClient);
+		return fromServer.thenCombine(fromClient, (server, client) -> {
+			Map<ID, Prototype> result = new HashMap<>(server);
+			result.putAll(client);
+			return result;
+		});
+	}
+
+	/**
+	 * Compute the fixpoints on the client. Prototypes which are not defined
+	 * are not in the result. The alternates are those of the definition, if
+	 * it is known.
+	 */
+	private CompletableFuture<Map<ID, PrototypeWithAlternates>> clientFixPointsAsync(Collection<ID> ids) {
+		this.clientFixpoints.add(ids.size());
+		Map<ID, CachedPrototype> definitions = new HashMap<>();
+		Map<ID, Fixpoint> memoized = new HashMap<>();
+		return this.collectBranches(ids, definitions, memoized).thenApply(done -> {
+			Map<ID, PrototypeWithAlternates> result = new HashMap<>();
+			for (ID id : ids) {
+				AddChangeSet fixpoint = this.clientFixPoint(id, definitions, memoized);
+				if (fixpoint == null) {
+					continue;
+				}
+				CachedPrototype definition = definitions.containsKey(id) ? definitions.get(id) : this.cachedDefinition(id);
+				Collection<URI> alternates = definition == null ? ImmutableSet.of() : definition.prototype.getAlternatives();
+				PrototypeDefinition def = PrototypeDefinition.create(Prototype.P_0, RemoveChangeSet.empty(), fixpoint);
+				result.put(id, new PrototypeWithAlternates(new Prototype(id, def), alternates));
+			}
+			return result;
+		});
+	}
+
+	/**
+	 * Collect the definitions of the IDs and their ancestors, up to P_0 or an
+	 * ancestor with a memoized fixpoint. The definitions which are not cached
+	 * are fetched, all those on the same level together in batch requests, and
+	 * the walk continues with their parents.
+	 */
+	private CompletableFuture<Void> collectBranches(Collection<ID> start, Map<ID, CachedPrototype> definitions, Map<ID, Fixpoint> memoized) {
+		Deque<ID> work = new ArrayDeque<>(start);
+		Set<ID> toFetch = new LinkedHashSet<>();
+		while (!work.isEmpty()) {
+			ID id = work.pop();
+			if (Prototype.P_0.id.equals(id) || definitions.containsKey(id) || memoized.containsKey(id) || toFetch.contains(id)) {
+				continue;
+			}
+			Fixpoint fixpoint = this.memoized(id);
+			if (fixpoint != null) {
+				this.ancestorHits.increment();
+				memoized.put(id, fixpoint);
+				continue;
+			}
+			CachedPrototype cached = this.cachedDefinition(id);
+			if (cached == null) {
+				toFetch.add(id);
+				continue;
+			}
+			this.ancestorHits.increment();
+			definitions.put(id, cached);
+			work.push(cached.prototype.def.parent);
+		}
+		if (toFetch.isEmpty()) {
+			return CompletableFuture.completedFuture(null);
+		}
+		this.ancestorFetches.add(toFetch.size());
+		return this.fetchAllAsync(toFetch, false).thenCompose(found -> {
+			List<ID> parents = new ArrayList<>();
+			for (ID id : toFetch) {
+				PrototypeWithAlternates prot = found.get(id);
+				if (prot == null) {
+					// not defined, reported when computing the fixpoint
+					continue;
+				}
+				CachedPrototype cached = this.parsedCache.getIfPresent(this.uriFor(id, false));
+				if ((cached == null) || (cached.prototype != prot)) {
+					// not cached, usable for this computation only
+					cached = new CachedPrototype(prot, null, System.nanoTime());
+				}
+				definitions.put(id, cached);
+				parents.add(prot.def.parent);
+			}
+			return this.collectBranches(parents, definitions, memoized);
+		});
+	}
+
+	/**
+	 * Compute the fixpoint from the collected definitions, like
+	 * {@link KnowledgeBase#computeFixPoint(ID)}, and memoize the fixpoints of
+	 * the branch. Returns null if the prototype is not defined.
+	 */
+	private AddChangeSet clientFixPoint(ID id, Map<ID, CachedPrototype> definitions, Map<ID, Fixpoint> memoized) {
+		List<ID> branchIDs = new ArrayList<>();
+		List<CachedPrototype> branchDefs = new ArrayList<>();
+		ID current = id;
+		AddChangeSet addCS = AddChangeSet.empty();
+		Long staleAt = null;
+		while (!Prototype.P_0.id.equals(current)) {
+			Fixpoint fixpoint = memoized.get(current);
+			if (fixpoint != null) {
+				addCS = fixpoint.add;
+				staleAt = fixpoint.staleAt;
+				break;
+			}
+			CachedPrototype currentDef = definitions.get(current);
+			if (currentDef == null) {
+				if (current.equals(id)) {
+					return null;
+				}
+				throw new Error("Parent " + current + " of " + id + " is not defined in the remote knowledge base.");
+			}
+			if (branchIDs.size() > definitions.size()) {
+				throw new Error("Cycle detected in inheritance tree for " + id);
+			}
+			branchIDs.add(current);
+			branchDefs.add(currentDef);
+			current = currentDef.prototype.def.parent;
+		}
+		for (int i = branchIDs.size() - 1; i >= 0; i--) {
+			CachedPrototype currentDef = branchDefs.get(i);
+			addCS = addCS.derive(currentDef.prototype.def.remove, currentDef.prototype.def.add);
+			// the fixpoint is stale as soon as any definition in its branch is
+			if ((staleAt == null) || (currentDef.staleAt - staleAt < 0)) {
+				staleAt = currentDef.staleAt;
+			}
+			Fixpoint fixpoint = new Fixpoint(addCS, staleAt);
+			// a fixpoint built from a definition which was not cached is
+			// stale at once and only of use for this computation
+			if (fixpoint.isFresh()) {
+				this.fixpoints.put(branchIDs.get(i), fixpoint);
+			}
+			memoized.put(branchIDs.get(i), fixpoint);
+		}
+		return addCS;
+	}
+
+	/**
+	 * How many fixpoints were computed on the server and on the client, and
+	 * how many of the ancestors needed on the client were cached.
+	 * 
+	 * @return
+	 */
+	public FixpointStats fixpointStats() {
+		return new FixpointStats(this.serverFixpoints.sum(), this.clientFixpoints.sum(), this.ancestorHits.sum(), this.ancestorFetches.sum(), this.fixpoints.size());
+	}
+
+	/**
+	 * Statistics about fixpoint computation, see
+	 * {@link RemoteKB#fixpointStats()}.
+	 * 
+	 * @author michael
+	 *
+	 */
+	public static final class FixpointStats {
+		public final long server;
+		public final long client;
+		/**
+		 * The number of definitions or fixpoints of ancestors which were
+		 * cached when computing fixpoints on the client.
+		 */
+		public final long ancestorHits;
+		/**
+		 * The number of definitions of ancestors which had to be fetched when
+		 * computing fixpoints on the client.
+		 */
+		public final long ancestorFetches;
+		/**
+		 * The number of fixpoints computed on the client which are kept.
+		 */
+		public final long memoized;
+
+		private FixpointStats(long server, long client, long ancestorHits, long ancestorFetches, long memoized) {
+			this.server = server;
+			this.client = client;
+			this.ancestorHits = ancestorHits;
+			this.ancestorFetches = ancestorFetches;
+			this.memoized = memoized;
+		}
+
+		/**
+		 * The fraction of ancestors which were cached, 0 if no fixpoints were
+		 * computed on the client yet.
+		 * 
+		 * @return
+		 */
+		public double ancestorHitRate() {
+			long total = this.ancestorHits + this.ancestorFetches;
+			return total == 0 ? 0 : (double) this.ancestorHits / total;
+		}
+
+		@Override
+		public String toString() {
+			return "FixpointStats [server=" + this.server + ", client=" + this.client + ", ancestorHits=" + this.ancestorHits + ", ancestorFetches=" + this.ancestorFetches + ", memoized=" + this.memoized + "]";
 		}
 	}
 
@@ -178,6 +1230,12 @@ public class RemoteKB implements IKnowledgeBase, IFPKnowledgeBase, AutoCloseable
 	@Override
 	public void close() throws IOException {
 		this.cachingClient.close();
+		synchronized (this) {
+			this.closed = true;
+			if (this.asyncClient != null) {
+				this.asyncClient.close();
+			}
+		}
 	}
 
 	public static void main(String[] args) throws URISyntaxException, InterruptedException {
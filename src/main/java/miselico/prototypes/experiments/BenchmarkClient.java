@@ -6,15 +6,11 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import com.google.common.base.Stopwatch;
-import com.google.common.util.concurrent.Futures;
-import com.google.common.util.concurrent.MoreExecutors;
 
 import miselico.prototypes.client.RemoteKB;
 import miselico.prototypes.knowledgebase.ID;
@@ -38,24 +34,36 @@ public class BenchmarkClient {
 		if (args.length > 1) {
 			address = new URI(args[1]);
 		}
+		RemoteKB.FixpointMode mode = RemoteKB.FixpointMode.SERVER;
+		if (args.length > 2) {
+			mode = RemoteKB.FixpointMode.valueOf(args[2]);
+		}
 
 		Random r = new Random(475646L);
 		// variable to make sure the JIT does not throw out the computations
 		int _void = 0;
-		ExecutorService pool = MoreExecutors.getExitingExecutorService((ThreadPoolExecutor) Executors.newFixedThreadPool(concurrentRequests));
+		// the requests are asynchronous, this only limits how many are in
+		// flight at the same time.
+		Semaphore inFlight = new Semaphore(concurrentRequests);
 
 		for (int i = 1; i <= BenchmarkClient.batches; i++) {
 			Stopwatch w = Stopwatch.createStarted();
 			int batchSize = i * BenchmarkClient.batchFactor;
-			List<Future<Prototype>> fprots = new ArrayList<>(batchSize);
+			List<CompletableFuture<Prototype>> fprots = new ArrayList<>(batchSize);
 			try (RemoteKB rkb = new RemoteKB(address);) {
+				rkb.setFixpointMode(mode);
 				for (int j = 0; j < batchSize; j++) {
 					ID id = Datasets.generateID(r.nextInt(BenchmarkClient.layers), r.nextInt(BenchmarkClient.pPerLayer));
-					fprots.add(pool.submit(() -> rkb.computeFixPoint(id)));
+					inFlight.acquireUninterruptibly();
+					CompletableFuture<Prototype> fprot = rkb.computeFixPointAsync(id);
+					fprot.whenComplete((prot, e) -> inFlight.release());
+					fprots.add(fprot);
 				}
-				for (Future<Prototype> future : fprots) {
-					_void ^= Futures.getUnchecked(future).hashCode();
+				for (CompletableFuture<Prototype> future : fprots) {
+					_void ^= future.join().hashCode();
 				}
+				System.out.println(rkb.coalescingStats());
+				System.out.println(rkb.fixpointStats());
 			}
 			System.out.println("Experiment for " + batchSize + " prototypes finished in " + w.elapsed(TimeUnit.MILLISECONDS) + "ms");
 		}
@@ -0,0 +1,63 @@
+package miselico.prototypes.experiments;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.abdera.i18n.iri.IRI;
+
+import com.google.common.base.Stopwatch;
+
+import miselico.prototypes.knowledgebase.ID;
+import miselico.prototypes.knowledgebase.SimpleIRI;
+
+/**
+ * Compares the validation of IRIs as done by {@link ID#of(String)} before and
+ * after the introduction of {@link SimpleIRI}.
+ *
+ * @author michael
+ *
+ */
+public final class IRIBenchmark {
+
+	private IRIBenchmark() {
+		// utility class
+	}
+
+	public static void main(String[] args) {
+		int amount = 3_000_000;
+		String[] iris = new String[amount];
+		for (int i = 0; i < amount; i++) {
+			iris[i] = "http://www.example.com#object" + (i / 100_000) + "_" + (i % 100_000);
+		}
+		for (int round = 0; round < 5; round++) {
+			System.gc();
+			Stopwatch w = Stopwatch.createStarted();
+			int twoStep = 0;
+			for (String iri : iris) {
+				twoStep += IRIBenchmark.twoStep(iri).length();
+			}
+			long twoStepTime = w.elapsed(TimeUnit.MILLISECONDS);
+
+			System.gc();
+			w = Stopwatch.createStarted();
+			int fast = 0;
+			for (String iri : iris) {
+				fast += (SimpleIRI.isValid(iri) ? iri : IRIBenchmark.twoStep(iri)).length();
+			}
+			long fastTime = w.elapsed(TimeUnit.MILLISECONDS);
+			if (fast != twoStep) {
+				throw new Error("Results differ");
+			}
+			System.out.println("Validating " + amount + " IRIs, URI then IRI : " + twoStepTime + "ms, fast path : " + fastTime + "ms");
+		}
+	}
+
+	private static String twoStep(String value) {
+		try {
+			return new URI(value).toString();
+		} catch (URISyntaxException e) {
+			return new IRI(value).toString();
+		}
+	}
+}
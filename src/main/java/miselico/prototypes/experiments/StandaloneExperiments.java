@@ -1,5 +1,6 @@
 package miselico.prototypes.experiments;
 
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
@@ -43,24 +44,41 @@ public final class StandaloneExperiments {
 		long building = w.elapsed(TimeUnit.MILLISECONDS);
 		System.out.println("cons check done");
 		System.gc();
+		Stopwatch parallelW = Stopwatch.createStarted();
+		kbb.build(ForkJoinPool.commonPool());
+		long parallelBuilding = parallelW.elapsed(TimeUnit.MILLISECONDS);
+		System.gc();
+		w.reset();
 		w.start();
 		KnowledgeBase fixP = kb.computeFixPoint();
 		w.stop();
 		long fixpoint = w.elapsed(TimeUnit.MILLISECONDS);
+		StringBuilder speedups = new StringBuilder();
+		for (int threads = 1; threads <= Runtime.getRuntime().availableProcessors(); threads *= 2) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			System.gc();
+			Stopwatch parallelFixpointW = Stopwatch.createStarted();
+			kb.computeFixPoint(pool);
+			long parallelFixpoint = parallelFixpointW.elapsed(TimeUnit.MILLISECONDS);
+			pool.shutdown();
+			speedups.append(threads).append(" threads : ").append(parallelFixpoint).append("ms (speedup ").append(String.format("%.2f", (double) fixpoint / Math.max(1, parallelFixpoint))).append(") ");
+		}
 
 		DescriptiveStatistics kbPropertyStats = new DescriptiveStatistics();
 		for (PrototypeDefinition def : kb.KB.values()) {
-			kbPropertyStats.addValue(def.add.entries().size());
+			kbPropertyStats.addValue(def.add.size());
 		}
 
 		DescriptiveStatistics fpPropertyStats = new DescriptiveStatistics();
 		for (PrototypeDefinition def : fixP.KB.values()) {
-			fpPropertyStats.addValue(def.add.entries().size());
+			fpPropertyStats.addValue(def.add.size());
 		}
 
 		System.out.println("Total number of prototypes " + fixP.size());
 		System.out.println("time for consistency check " + building + "ms");
+		System.out.println("time for parallel consistency check " + parallelBuilding + "ms using " + ForkJoinPool.commonPool().getParallelism() + " threads");
 		System.out.println("Time for fixpoint computation " + fixpoint + "ms");
+		System.out.println("Time for parallel fixpoint computation : " + speedups);
 		System.out.println("KB property stats : " + kbPropertyStats);
 		System.out.println("FP property stats : " + fpPropertyStats);
 	}
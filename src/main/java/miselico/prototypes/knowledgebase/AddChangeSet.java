@@ -1,7 +1,6 @@
 package miselico.prototypes.knowledgebase;
 
 import com.google.common.collect.HashMultimap;
-import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.SetMultimap;
 
 import miselico.prototypes.joiners.AddStrategy;
@@ -15,8 +14,19 @@ import miselico.prototypes.joiners.AddStrategy;
  */
 public final class AddChangeSet extends ChangeSet {
 
-	private AddChangeSet(ImmutableSetMultimap<Property, ID> changes) {
-		super(changes);
+	private AddChangeSet(ChangeSetStore store) {
+		super(store);
+	}
+
+	/**
+	 * Create an {@link AddChangeSet} with the given store, which is not
+	 * copied.
+	 * 
+	 * @param store
+	 * @return
+	 */
+	static AddChangeSet of(ChangeSetStore store) {
+		return store.isEmpty() ? AddChangeSet.EMPTY : new AddChangeSet(store);
 	}
 
 	/**
@@ -26,7 +36,7 @@ public final class AddChangeSet extends ChangeSet {
 	 * @return
 	 */
 	public static AddChangeSet fromMutable(MutableChangeSet mcs) {
-		return new AddChangeSet(ImmutableSetMultimap.copyOf(mcs.changes));
+		return new AddChangeSet(mcs.freeze());
 	}
 
 	/**
@@ -36,8 +46,28 @@ public final class AddChangeSet extends ChangeSet {
 	 *         {@link ChangeSet}
 	 */
 	public MutableChangeSet mutableCopy() {
-		return new MutableChangeSet(this.changes);
+		MutableChangeSet mcs = new MutableChangeSet();
+		this.addTo(mcs);
+		return mcs;
+	}
 
+	/**
+	 * Compute the fixpoint of a prototype with the given remove and add sets,
+	 * whose parent has this changeset as its fixpoint. The result shares its
+	 * unchanged properties with this changeset, such that the fixpoints of a
+	 * whole KB take memory in the order of the size of the definitions.
+	 * 
+	 * @param remove
+	 * @param add
+	 * @return
+	 */
+	public AddChangeSet derive(RemoveChangeSet remove, AddChangeSet add) {
+		PersistentPropertyMap parent = PersistentPropertyMap.copyOf(this.store);
+		PersistentPropertyMap derived = parent.derive(remove, add);
+		if ((derived == parent) && (parent == this.store)) {
+			return this;
+		}
+		return new AddChangeSet(derived);
 	}
 
 	/**
@@ -59,7 +89,7 @@ public final class AddChangeSet extends ChangeSet {
 	 * @see AddStrategy
 	 */
 	public void addTo(MutableChangeSet mcs) {
-		mcs.changes.putAll(super.changes);
+		this.store.addTo(mcs);
 	}
 
 	/**
@@ -88,7 +118,7 @@ public final class AddChangeSet extends ChangeSet {
 		 * @return the builder
 		 */
 		public Builder andAdd(Property p, ID id) {
-			this.add.put(p, id);
+			this.add.put(p.canonical(), id.canonical());
 			return this;
 		}
 
@@ -102,7 +132,7 @@ public final class AddChangeSet extends ChangeSet {
 			if (this.add.isEmpty()) {
 				return AddChangeSet.empty();
 			} else {
-				return new AddChangeSet(ImmutableSetMultimap.copyOf(this.add));
+				return new AddChangeSet(SortedArrayStore.of(this.add));
 			}
 		}
 	}
@@ -116,6 +146,6 @@ public final class AddChangeSet extends ChangeSet {
 		return AddChangeSet.EMPTY;
 	}
 
-	private static AddChangeSet EMPTY = new AddChangeSet(ImmutableSetMultimap.<Property, ID> of());
+	private static AddChangeSet EMPTY = new AddChangeSet(SortedArrayStore.EMPTY);
 
 }
@@ -0,0 +1,97 @@
+package miselico.prototypes.knowledgebase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Adapters from the blocking knowledge base interfaces to the asynchronous
+ * ones. The adapters answer in the calling thread and return a completed
+ * future, which is the best one can do for knowledge bases in memory.
+ *
+ * @author michael
+ *
+ */
+public final class AsyncKnowledgeBases {
+
+	private AsyncKnowledgeBases() {
+		// utility class
+	}
+
+	/**
+	 * Adapt the given knowledge base.
+	 *
+	 * @param kb
+	 * @return
+	 */
+	public static IAsyncKnowledgeBase adapt(IKnowledgeBase kb) {
+		return id -> AsyncKnowledgeBases.isDefined(kb, id);
+	}
+
+	/**
+	 * Adapt the given knowledge base, including the computation of fixpoints.
+	 *
+	 * @param kb
+	 * @return
+	 */
+	public static IAsyncFPKnowledgeBase adapt(IFPKnowledgeBase kb) {
+		return new IAsyncFPKnowledgeBase() {
+
+			@Override
+			public CompletableFuture<Optional<Prototype>> isDefinedAsync(ID id) {
+				return AsyncKnowledgeBases.isDefined(kb, id);
+			}
+
+			@Override
+			public CompletableFuture<Prototype> computeFixPointAsync(ID id) {
+				try {
+					return CompletableFuture.completedFuture(kb.computeFixPoint(id));
+				} catch (RuntimeException | Error e) {
+					return AsyncKnowledgeBases.failed(e);
+				}
+			}
+		};
+	}
+
+	private static CompletableFuture<Optional<Prototype>> isDefined(IKnowledgeBase kb, ID id) {
+		try {
+			return CompletableFuture.completedFuture(AsyncKnowledgeBases.widen(kb.isDefined(id)));
+		} catch (RuntimeException | Error e) {
+			return AsyncKnowledgeBases.failed(e);
+		}
+	}
+
+	/**
+	 * Optionals are immutable, so an Optional of a subtype can be used as an
+	 * Optional of Prototype.
+	 */
+	@SuppressWarnings("unchecked")
+	static Optional<Prototype> widen(Optional<? extends Prototype> proto) {
+		return (Optional<Prototype>) proto;
+	}
+
+	static <T> CompletableFuture<T> failed(Throwable t) {
+		CompletableFuture<T> failed = new CompletableFuture<>();
+		failed.completeExceptionally(t);
+		return failed;
+	}
+
+	/**
+	 * Start the operation for all IDs and combine the results in order.
+	 */
+	static <T> CompletableFuture<List<T>> all(List<ID> ids, Function<ID, CompletableFuture<T>> operation) {
+		List<CompletableFuture<T>> futures = new ArrayList<>(ids.size());
+		for (ID id : ids) {
+			futures.add(operation.apply(id));
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).thenApply(done -> {
+			List<T> results = new ArrayList<>(futures.size());
+			for (CompletableFuture<T> future : futures) {
+				results.add(future.join());
+			}
+			return results;
+		});
+	}
+}
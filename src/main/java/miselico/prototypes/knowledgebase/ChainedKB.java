@@ -1,14 +1,37 @@
 package miselico.prototypes.knowledgebase;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
 
 /**
  * An {@link IKnowledgeBase} which connects multiple {@link IKnowledgeBase}s
  * together. If a prototype is not available in the first KB, then it searches
  * the next one until it find one where the Prototype is defined. If none is
  * found, an empty {@link Optional} is returned.
- * 
+ *
+ * Optionally, a base can be guarded by a Bloom filter over the IDs it defines
+ * (see {@link Builder#addFiltered(IKnowledgeBase, Supplier, double)}). A base
+ * is only asked for an ID if its filter might contain it, which saves full
+ * lookups on large bases and round-trips to remote ones. The filters do not
+ * need to contain {@link Prototype#P_0}, it is always answered by the first
+ * base. A filtered {@link KnowledgeBase} also answers the IDs of its external
+ * KB, these are not in the filter and are asked from the external KB directly.
+ *
+ * Optionally, IDs which none of the bases defines are remembered for some
+ * time (see {@link Builder#cacheMisses(long, long, TimeUnit)}).
+ *
  * @author michael
  *
  */
@@ -16,39 +39,344 @@ public final class ChainedKB implements IKnowledgeBase {
 
 	/**
 	 * Constructs a {@link ChainedKB} from the given bases.
-	 * 
+	 *
 	 * @param bases
 	 * @return
 	 */
 	public static IKnowledgeBase chain(IKnowledgeBase... bases) {
-		return new ChainedKB(bases);
+		Builder b = ChainedKB.builder();
+		for (IKnowledgeBase base : bases) {
+			b.add(base);
+		}
+		return b.build();
 	}
 
 	/**
 	 * Constructs a {@link ChainedKB} from the given bases.
-	 * 
+	 *
 	 * @param bases
 	 * @return
 	 */
-	public static IKnowledgeBase chain(List<IKnowledgeBase> bases) {
-		return ChainedKB.chain(bases.toArray(new KnowledgeBase[bases.size()]));
+	public static IKnowledgeBase chain(List<? extends IKnowledgeBase> bases) {
+		return ChainedKB.chain(bases.toArray(new IKnowledgeBase[bases.size()]));
+	}
+
+	public static Builder builder() {
+		return new Builder();
 	}
 
 	private final IKnowledgeBase[] bases;
+	/**
+	 * The filter for each base, null for bases without filter.
+	 */
+	private final MembershipFilter[] filters;
+
+	/**
+	 * IDs which none of the bases defined, null if misses are not cached.
+	 */
+	private final Cache<ID, Boolean> misses;
 
-	private ChainedKB(IKnowledgeBase[] bases) {
+	private ChainedKB(IKnowledgeBase[] bases, MembershipFilter[] filters, Cache<ID, Boolean> misses) {
 		this.bases = bases;
+		this.filters = filters;
+		this.misses = misses;
+	}
+
+	private boolean isCachedMiss(ID id) {
+		return (this.misses != null) && (this.misses.getIfPresent(id) != null);
+	}
+
+	private void cacheMiss(ID id) {
+		if (this.misses != null) {
+			this.misses.put(id, Boolean.TRUE);
+		}
+	}
+
+	@Override
+	public PrototypeDefinition lookup(ID id) {
+		boolean p0 = Prototype.P_0.id.equals(id);
+		if (!p0 && this.isCachedMiss(id)) {
+			return null;
+		}
+		for (int i = 0; i < this.bases.length; i++) {
+			MembershipFilter filter = this.filters[i];
+			if (!p0 && (filter != null) && !filter.mightContain(id)) {
+				if (filter.uncovered != null) {
+					PrototypeDefinition def = filter.uncovered.lookup(id);
+					if (def != null) {
+						return def;
+					}
+				}
+				continue;
+			}
+			PrototypeDefinition def = this.bases[i].lookup(id);
+			if (def != null) {
+				return def;
+			}
+			if (!p0 && (filter != null)) {
+				filter.falsePositives.increment();
+			}
+		}
+		this.cacheMiss(id);
+		return null;
 	}
 
 	@Override
 	public Optional<? extends Prototype> isDefined(ID id) {
-		for (IKnowledgeBase base : this.bases) {
-			Optional<? extends Prototype> proto = base.isDefined(id);
+		boolean p0 = Prototype.P_0.id.equals(id);
+		if (!p0 && this.isCachedMiss(id)) {
+			return Optional.empty();
+		}
+		for (int i = 0; i < this.bases.length; i++) {
+			MembershipFilter filter = this.filters[i];
+			if (!p0 && (filter != null) && !filter.mightContain(id)) {
+				if (filter.uncovered != null) {
+					Optional<? extends Prototype> proto = filter.uncovered.isDefined(id);
+					if (proto.isPresent()) {
+						return proto;
+					}
+				}
+				continue;
+			}
+			Optional<? extends Prototype> proto = this.bases[i].isDefined(id);
 			if (proto.isPresent()) {
 				return proto;
 			}
+			if (!p0 && (filter != null)) {
+				filter.falsePositives.increment();
+			}
 		}
+		this.cacheMiss(id);
 		return Optional.empty();
 	}
 
+	/**
+	 * Rebuild the filters of all bases from their providers and forget the
+	 * cached misses. Bases which change should be refreshed regularly, an ID
+	 * added to a base after its filter was built is not found.
+	 */
+	public void refreshFilters() {
+		for (MembershipFilter filter : this.filters) {
+			if (filter != null) {
+				filter.refresh();
+			}
+		}
+		if (this.misses != null) {
+			this.misses.invalidateAll();
+		}
+	}
+
+	/**
+	 * Get the statistics of the cache of misses, see
+	 * {@link Builder#cacheMisses(long, long, TimeUnit)}.
+	 *
+	 * @return the statistics, or an empty Optional if misses are not cached.
+	 */
+	public Optional<CacheStats> missCacheStats() {
+		return this.misses == null ? Optional.empty() : Optional.of(this.misses.stats());
+	}
+
+	/**
+	 * Get the statistics of the filter of the base at the given position in
+	 * the chain.
+	 *
+	 * @param base
+	 *            the position of the base
+	 * @return the statistics, or an empty Optional if the base has no filter.
+	 */
+	public Optional<FilterStats> filterStats(int base) {
+		Preconditions.checkElementIndex(base, this.bases.length);
+		MembershipFilter filter = this.filters[base];
+		if (filter == null) {
+			return Optional.empty();
+		}
+		return Optional.of(filter.stats());
+	}
+
+	/**
+	 * Statistics about the filter of one base. The observed false positive
+	 * rate is the fraction of the IDs not in the base, which passed the filter
+	 * anyway.
+	 *
+	 * @author michael
+	 *
+	 */
+	public static final class FilterStats {
+		/**
+		 * The false positive probability expected by the filter, given the
+		 * number of IDs it contains.
+		 */
+		public final double expectedFpp;
+		/**
+		 * The number of lookups the filter saved.
+		 */
+		public final long skipped;
+		/**
+		 * The number of lookups which passed the filter, but were not defined
+		 * in the base.
+		 */
+		public final long falsePositives;
+
+		private FilterStats(double expectedFpp, long skipped, long falsePositives) {
+			this.expectedFpp = expectedFpp;
+			this.skipped = skipped;
+			this.falsePositives = falsePositives;
+		}
+
+		/**
+		 * The observed false positive rate, 0 if no IDs missing from the base
+		 * were asked yet.
+		 *
+		 * @return
+		 */
+		public double observedFpp() {
+			long negatives = this.skipped + this.falsePositives;
+			return negatives == 0 ? 0 : (double) this.falsePositives / negatives;
+		}
+
+		@Override
+		public String toString() {
+			return "FilterStats [expectedFpp=" + this.expectedFpp + ", observedFpp=" + this.observedFpp() + ", skipped=" + this.skipped + ", falsePositives=" + this.falsePositives + "]";
+		}
+	}
+
+	/**
+	 * The IDs are added to the filter by their IRI, such that literals are not
+	 * interned for it.
+	 */
+	private static final Funnel<ID> idFunnel = (id, into) -> into.putUnencodedChars(id.toString());
+
+	private static final class MembershipFilter {
+		private final Supplier<? extends Collection<ID>> provider;
+		private final double fpp;
+		/**
+		 * The KB which answers the IDs the base defines, but which are not in
+		 * the filter. Null if the filter covers the whole base.
+		 */
+		final IKnowledgeBase uncovered;
+		private volatile BloomFilter<ID> filter;
+		final LongAdder skipped = new LongAdder();
+		final LongAdder falsePositives = new LongAdder();
+
+		MembershipFilter(Supplier<? extends Collection<ID>> provider, double fpp, IKnowledgeBase uncovered) {
+			this.provider = provider;
+			this.fpp = fpp;
+			this.uncovered = uncovered;
+			this.refresh();
+		}
+
+		void refresh() {
+			Collection<ID> ids = this.provider.get();
+			BloomFilter<ID> newFilter = BloomFilter.create(ChainedKB.idFunnel, Math.max(ids.size(), 1), this.fpp);
+			for (ID id : ids) {
+				newFilter.put(id);
+			}
+			this.filter = newFilter;
+		}
+
+		boolean mightContain(ID id) {
+			if (this.filter.mightContain(id)) {
+				return true;
+			}
+			this.skipped.increment();
+			return false;
+		}
+
+		FilterStats stats() {
+			return new FilterStats(this.filter.expectedFpp(), this.skipped.sum(), this.falsePositives.sum());
+		}
+	}
+
+	/**
+	 * A builder for {@link ChainedKB}s. The bases are asked in the order in
+	 * which they are added.
+	 *
+	 * @author michael
+	 *
+	 */
+	public static final class Builder {
+		private final List<IKnowledgeBase> bases = new ArrayList<>();
+		private final List<MembershipFilter> filters = new ArrayList<>();
+		private Cache<ID, Boolean> misses = null;
+
+		private Builder() {
+		}
+
+		/**
+		 * Remember IDs which none of the bases defines, such that asking them
+		 * again does not go through the chain. This helps when a base is
+		 * slow, like a remote one, and the same missing IDs are asked often.
+		 * An ID defined in one of the bases after the miss is found only after
+		 * the miss expired or {@link ChainedKB#refreshFilters()} was called.
+		 *
+		 * @param maximumSize
+		 *            the maximum number of misses remembered
+		 * @param ttl
+		 *            how long a miss is remembered
+		 * @param unit
+		 * @return the builder
+		 */
+		public Builder cacheMisses(long maximumSize, long ttl, TimeUnit unit) {
+			this.misses = CacheBuilder.newBuilder().maximumSize(maximumSize).expireAfterWrite(ttl, unit).recordStats().build();
+			return this;
+		}
+
+		/**
+		 * Add a base which is asked for every ID.
+		 *
+		 * @param base
+		 * @return the builder
+		 */
+		public Builder add(IKnowledgeBase base) {
+			Preconditions.checkNotNull(base);
+			this.bases.add(base);
+			this.filters.add(null);
+			return this;
+		}
+
+		/**
+		 * Add a {@link KnowledgeBase}, guarded by a filter over the prototypes
+		 * it defines. The IDs it answers from its external KB are not in the
+		 * filter, these are asked from the external KB instead.
+		 *
+		 * @param base
+		 * @param fpp
+		 *            the desired false positive probability of the filter
+		 * @return the builder
+		 */
+		public Builder addFiltered(KnowledgeBase base, double fpp) {
+			IKnowledgeBase external = base.external();
+			return this.addFiltered(base, () -> base.KB.keySet(), fpp, external == EmptyKnowledgeBase.instance ? null : external);
+		}
+
+		/**
+		 * Add a base, guarded by a filter built from the IDs the provider
+		 * returns. The provider is asked again on
+		 * {@link ChainedKB#refreshFilters()}, and must return all IDs the base
+		 * defines, except possibly {@link Prototype#P_0}.
+		 *
+		 * @param base
+		 * @param ids
+		 *            the provider of the IDs defined in the base
+		 * @param fpp
+		 *            the desired false positive probability of the filter
+		 * @return the builder
+		 */
+		public Builder addFiltered(IKnowledgeBase base, Supplier<? extends Collection<ID>> ids, double fpp) {
+			return this.addFiltered(base, ids, fpp, null);
+		}
+
+		private Builder addFiltered(IKnowledgeBase base, Supplier<? extends Collection<ID>> ids, double fpp, IKnowledgeBase uncovered) {
+			Preconditions.checkNotNull(base);
+			Preconditions.checkArgument((fpp > 0) && (fpp < 1), "The false positive probability must be between 0 and 1");
+			this.bases.add(base);
+			this.filters.add(new MembershipFilter(ids, fpp, uncovered));
+			return this;
+		}
+
+		public ChainedKB build() {
+			return new ChainedKB(this.bases.toArray(new IKnowledgeBase[this.bases.size()]), this.filters.toArray(new MembershipFilter[this.filters.size()]), this.misses);
+		}
+	}
+
 }
@@ -18,11 +18,15 @@ import com.google.common.collect.ImmutableSetMultimap;
  */
 public class ChangeSet {
 
-	protected final ImmutableSetMultimap<Property, ID> changes;
+	final ChangeSetStore store;
 
 	protected ChangeSet(ImmutableSetMultimap<Property, ID> changes) {
-		Preconditions.checkNotNull(changes);
-		this.changes = ImmutableSetMultimap.copyOf(changes);
+		this(ChangeSetStore.of(changes));
+	}
+
+	ChangeSet(ChangeSetStore store) {
+		Preconditions.checkNotNull(store);
+		this.store = store;
 	}
 
 	/**
@@ -33,7 +37,7 @@ public class ChangeSet {
 	 * @return The changes
 	 */
 	public ImmutableSet<ID> apply(Property p) {
-		return this.changes.get(p);
+		return this.store.get(p);
 	}
 
 	/**
@@ -43,7 +47,7 @@ public class ChangeSet {
 	 * @return The changes.
 	 */
 	public ImmutableSet<Entry<Property, ID>> entries() {
-		return this.changes.entries();
+		return this.store.entries();
 	}
 
 	/**
@@ -53,7 +57,7 @@ public class ChangeSet {
 	 * @return
 	 */
 	public ImmutableSet<Entry<Property, Collection<ID>>> entrySet() {
-		return this.changes.asMap().entrySet();
+		return this.store.entrySet();
 	}
 
 	/**
@@ -62,7 +66,7 @@ public class ChangeSet {
 	 * @return
 	 */
 	public ImmutableSet<Property> affectsProperties() {
-		return this.changes.keySet();
+		return this.store.properties();
 	}
 
 	/**
@@ -71,7 +75,7 @@ public class ChangeSet {
 	 */
 	@Override
 	public String toString() {
-		return this.changes.toString();
+		return this.store.toString();
 	}
 
 	/**
@@ -79,12 +83,22 @@ public class ChangeSet {
 	 * @return True if this changeset does not affect any properties.
 	 */
 	public boolean isEmpty() {
-		return this.changes.isEmpty();
+		return this.store.isEmpty();
+	}
+
+	/**
+	 * The number of (property,ID) pairs in this changeset, this is the size of
+	 * {@link #entries()}.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return this.store.size();
 	}
 
 	@Override
 	public int hashCode() {
-		return this.changes.hashCode();
+		return this.store.hashCode();
 	}
 
 	@Override
@@ -99,7 +113,7 @@ public class ChangeSet {
 			return false;
 		}
 		ChangeSet other = (ChangeSet) obj;
-		return this.changes.equals(other.changes);
+		return this.store.sameContent(other.store);
 	}
 
 }
@@ -0,0 +1,107 @@
+package miselico.prototypes.knowledgebase;
+
+import java.util.Collection;
+import java.util.Map.Entry;
+import java.util.function.BiConsumer;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+
+/**
+ * The storage of the (property, value) pairs of a {@link ChangeSet}. A store is
+ * immutable.
+ *
+ * Two stores are equal if they contain the same pairs, regardless of their
+ * representation. Their hash code is the one of the equivalent
+ * {@link ImmutableSetMultimap}.
+ *
+ * @author michael
+ *
+ */
+abstract class ChangeSetStore {
+
+	/**
+	 * Receives the handles of a property and its (sorted) values. The array
+	 * must not be modified.
+	 */
+	interface HandleVisitor {
+		void visit(int property, int[] values);
+	}
+
+	/**
+	 * The values of the property, empty if the property does not occur.
+	 */
+	abstract ImmutableSet<ID> get(Property p);
+
+	abstract ImmutableSet<Property> properties();
+
+	/**
+	 * The number of (property, value) pairs in this store.
+	 */
+	abstract int size();
+
+	abstract void forEach(BiConsumer<? super Property, ? super ID> action);
+
+	/**
+	 * Visit each property with its values, as handles.
+	 */
+	abstract void forEachHandles(HandleVisitor visitor);
+
+	/**
+	 * Add all pairs of this store to the {@link MutableChangeSet}
+	 */
+	abstract void addTo(MutableChangeSet mcs);
+
+	/**
+	 * Remove all pairs of this store from the {@link MutableChangeSet}
+	 */
+	abstract void removeFrom(MutableChangeSet mcs);
+
+	/**
+	 * The content of this store as a multimap. Depending on the representation,
+	 * this creates a copy.
+	 */
+	abstract ImmutableSetMultimap<Property, ID> asMultimap();
+
+	boolean isEmpty() {
+		return this.size() == 0;
+	}
+
+	ImmutableSet<Entry<Property, ID>> entries() {
+		return this.asMultimap().entries();
+	}
+
+	ImmutableSet<Entry<Property, Collection<ID>>> entrySet() {
+		return this.asMultimap().asMap().entrySet();
+	}
+
+	/**
+	 * Whether the other store contains the same pairs as this one.
+	 */
+	boolean sameContent(ChangeSetStore other) {
+		if (this.size() != other.size()) {
+			return false;
+		}
+		for (Property p : this.properties()) {
+			if (!this.get(p).equals(other.get(p))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The hash code of the equivalent {@link ImmutableSetMultimap}.
+	 */
+	@Override
+	public abstract int hashCode();
+
+	@Override
+	public String toString() {
+		return this.asMultimap().toString();
+	}
+
+	static ChangeSetStore of(ImmutableSetMultimap<Property, ID> changes) {
+		return SortedArrayStore.of(changes);
+	}
+}
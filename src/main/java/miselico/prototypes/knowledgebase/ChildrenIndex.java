@@ -0,0 +1,230 @@
+package miselico.prototypes.knowledgebase;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.function.IntConsumer;
+
+/**
+ * The parent to children adjacency of the prototypes in a
+ * {@link KnowledgeBase}, over ID handles. Parents which are not defined in the
+ * KB itself (P_0 and external prototypes) are included. Also the size of the
+ * subtree below each parent is stored.
+ *
+ * The index is persistent. A {@link KnowledgeBase} built on another one derives
+ * its index from the one of its base using
+ * {@link #derive(Map, Map, Collection)}, which only visits the changed
+ * prototypes and their ancestors.
+ *
+ * The children are therefore kept in a {@link HandleSetMap} and the counts,
+ * unboxed, in an {@link IntIntTrie}, rather than in CSR form (an array with
+ * the children of all parents and an array of offsets into it). CSR arrays
+ * are more compact, but changing a single parent means copying them
+ * entirely. The CSR form is only used while creating the index from scratch.
+ *
+ * @author michael
+ *
+ */
+final class ChildrenIndex {
+
+	private final HandleSetMap children;
+	/**
+	 * The number of descendants of each parent.
+	 */
+	private final IntIntTrie descendants;
+
+	private ChildrenIndex(HandleSetMap children, IntIntTrie descendants) {
+		this.children = children;
+		this.descendants = descendants;
+	}
+
+	/**
+	 * Create the index of the given prototypes. The adjacency is first built
+	 * in CSR form, which is used to compute the subtree sizes.
+	 */
+	static ChildrenIndex of(Map<ID, PrototypeDefinition> kb) {
+		int size = kb.size();
+		int[] childHandles = new int[size];
+		int[] parentHandles = new int[size];
+		int n = 0;
+		for (Entry<ID, PrototypeDefinition> proto : kb.entrySet()) {
+			childHandles[n] = proto.getKey().handle();
+			parentHandles[n] = proto.getValue().parent.handle();
+			n++;
+		}
+		int[] parents = parentHandles.clone();
+		Arrays.sort(parents);
+		int distinct = 0;
+		for (int i = 0; i < size; i++) {
+			if ((i == 0) || (parents[i] != parents[i - 1])) {
+				parents[distinct++] = parents[i];
+			}
+		}
+		parents = Arrays.copyOf(parents, distinct);
+
+		int[] offsets = new int[distinct + 1];
+		int[] rowOf = new int[size];
+		for (int i = 0; i < size; i++) {
+			rowOf[i] = Arrays.binarySearch(parents, parentHandles[i]);
+			offsets[rowOf[i] + 1]++;
+		}
+		for (int i = 0; i < distinct; i++) {
+			offsets[i + 1] += offsets[i];
+		}
+		int[] children = new int[size];
+		int[] fill = Arrays.copyOf(offsets, distinct);
+		for (int i = 0; i < size; i++) {
+			children[fill[rowOf[i]]++] = childHandles[i];
+		}
+
+		// Order the prototypes such that each comes after its parent, starting
+		// from the parents not in the KB. Then accumulate the subtree sizes in
+		// reverse order.
+		int[] order = new int[size];
+		int[] parentRow = new int[size];
+		int head = 0;
+		int tail = 0;
+		for (int row = 0; row < distinct; row++) {
+			if (!kb.containsKey(ID.byHandle(parents[row]))) {
+				for (int i = offsets[row]; i < offsets[row + 1]; i++) {
+					parentRow[tail] = row;
+					order[tail++] = children[i];
+				}
+			}
+		}
+		while (head < tail) {
+			int row = Arrays.binarySearch(parents, order[head++]);
+			if (row >= 0) {
+				for (int i = offsets[row]; i < offsets[row + 1]; i++) {
+					parentRow[tail] = row;
+					order[tail++] = children[i];
+				}
+			}
+		}
+		int[] descendants = new int[distinct];
+		for (int i = tail - 1; i >= 0; i--) {
+			int row = Arrays.binarySearch(parents, order[i]);
+			descendants[parentRow[i]] += 1 + (row >= 0 ? descendants[row] : 0);
+		}
+		IntIntTrie counts = IntIntTrie.EMPTY;
+		for (int row = 0; row < distinct; row++) {
+			counts = counts.put(parents[row], descendants[row]);
+		}
+		return new ChildrenIndex(HandleSetMap.of(parentHandles, childHandles), counts);
+	}
+
+	/**
+	 * Derive the index of a KB built on the given base. The base must be
+	 * consistent, and so must be the KB the result is for.
+	 *
+	 * @param base
+	 *            The prototypes of the base, which this is the index of
+	 * @param added
+	 *            The prototypes which were added or replaced
+	 * @param detached
+	 *            The IDs of prototypes of the base which were removed or
+	 *            replaced
+	 * @return The index of the KB built on the base
+	 */
+	ChildrenIndex derive(Map<ID, PrototypeDefinition> base, Map<ID, PrototypeDefinition> added, Collection<ID> detached) {
+		Derivation d = new Derivation(base);
+		for (ID id : detached) {
+			PrototypeDefinition def = base.get(id);
+			if (def != null) {
+				d.detach(id.handle(), def.parent.handle());
+			}
+		}
+		for (Entry<ID, PrototypeDefinition> proto : added.entrySet()) {
+			d.attach(proto.getKey().handle(), proto.getValue().parent.handle());
+		}
+		return new ChildrenIndex(d.children, d.descendants);
+	}
+
+	/**
+	 * The index while it is derived. The subtree of each prototype which is
+	 * detached is moved as a whole, the descendant counts of the ancestors it
+	 * is detached from or attached to are adjusted. Prototypes which are
+	 * detached or not attached yet have no parent, such that the adjustments
+	 * stop there.
+	 */
+	private final class Derivation {
+		private final Map<ID, PrototypeDefinition> base;
+		HandleSetMap children = ChildrenIndex.this.children;
+		IntIntTrie descendants = ChildrenIndex.this.descendants;
+		/**
+		 * The parents which differ from the base, -1 for detached prototypes.
+		 */
+		private final Map<Integer, Integer> parents = new HashMap<>();
+
+		Derivation(Map<ID, PrototypeDefinition> base) {
+			this.base = base;
+		}
+
+		/**
+		 * The current parent, -1 if there is none within the KB.
+		 */
+		private int parent(int child) {
+			Integer parent = this.parents.get(child);
+			if (parent != null) {
+				return parent;
+			}
+			PrototypeDefinition def = this.base.get(ID.byHandle(child));
+			return def == null ? -1 : def.parent.handle();
+		}
+
+		private int count(int handle) {
+			return this.descendants.get(handle, 0);
+		}
+
+		/**
+		 * Add the delta to the descendant count of the parent and all its
+		 * ancestors.
+		 */
+		private void adjust(int parent, int delta) {
+			for (int current = parent; current >= 0; current = this.parent(current)) {
+				int count = this.count(current) + delta;
+				this.descendants = count == 0 ? this.descendants.remove(current) : this.descendants.put(current, count);
+			}
+		}
+
+		void detach(int child, int parent) {
+			this.children = this.children.without(parent, child);
+			this.adjust(parent, -(1 + this.count(child)));
+			this.parents.put(child, -1);
+		}
+
+		void attach(int child, int parent) {
+			this.children = this.children.with(parent, child);
+			this.adjust(parent, 1 + this.count(child));
+			this.parents.put(child, parent);
+		}
+	}
+
+	/**
+	 * The handles of the children of the prototype with the given handle, as
+	 * a new array.
+	 */
+	int[] children(int handle) {
+		return this.children.get(handle).clone();
+	}
+
+	void forEachChild(int handle, IntConsumer action) {
+		this.children.forEach(handle, action);
+	}
+
+	/**
+	 * The number of children of the prototype with the given handle
+	 */
+	int childCount(int handle) {
+		return this.children.get(handle).length;
+	}
+
+	/**
+	 * The number of descendants of the prototype with the given handle
+	 */
+	int descendantCount(int handle) {
+		return this.descendants.get(handle, 0);
+	}
+}
@@ -0,0 +1,304 @@
+package miselico.prototypes.knowledgebase;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * An immutable {@link IFPKnowledgeBase} storing its prototypes column-wise in
+ * primitive arrays, keyed by the handles of the interned {@link ID}s and
+ * {@link Property}s. Compared to {@link KnowledgeBase}, which keeps two
+ * multimaps per prototype, this needs a few ints per prototype plus two ints
+ * per (property, value) pair.
+ *
+ * Row i describes the prototype with ID handle {@code ids[i]}. The rows are
+ * sorted by handle such that a row can be found by binary search. The add and
+ * remove sets are stored CSR style: the entries of row i are found between
+ * {@code offsets[i]} and {@code offsets[i+1]} in the property and value
+ * columns. In the remove columns, a value of {@link #REMOVE_ALL} marks a
+ * removeAll of the property.
+ *
+ * A {@link ColumnarKnowledgeBase} is created from a consistent
+ * {@link KnowledgeBase} using {@link ColumnarKnowledgeBase#copyOf(KnowledgeBase)}
+ * or directly using {@link KnowledgeBase.Builder#buildColumnar()}. It answers
+ * {@link #isDefined(ID)} and {@link #computeFixPoint(ID)} exactly like the
+ * {@link KnowledgeBase} it was created from.
+ *
+ * @author michael
+ *
+ */
+public final class ColumnarKnowledgeBase implements IFPKnowledgeBase {
+
+	/**
+	 * Marker in the remove value column for a removeAll of the property.
+	 */
+	static final int REMOVE_ALL = -1;
+
+	private final int[] ids;
+	private final int[] parents;
+
+	private final int[] addOffsets;
+	private final int[] addProperties;
+	private final int[] addValues;
+
+	/**
+	 * The rows which have a non-empty remove set. Most prototypes do not
+	 * remove anything, this allows to skip the remove columns for those.
+	 */
+	private final BitSet removing;
+	private final int[] removeOffsets;
+	private final int[] removeProperties;
+	private final int[] removeValues;
+
+	private final IKnowledgeBase external;
+
+	private ColumnarKnowledgeBase(int[] ids, int[] parents, int[] addOffsets, int[] addProperties, int[] addValues, BitSet removing, int[] removeOffsets, int[] removeProperties, int[] removeValues, IKnowledgeBase external) {
+		this.ids = ids;
+		this.parents = parents;
+		this.addOffsets = addOffsets;
+		this.addProperties = addProperties;
+		this.addValues = addValues;
+		this.removing = removing;
+		this.removeOffsets = removeOffsets;
+		this.removeProperties = removeProperties;
+		this.removeValues = removeValues;
+		this.external = external;
+	}
+
+	/**
+	 * Create a {@link ColumnarKnowledgeBase} with the same content and the
+	 * same external {@link IKnowledgeBase} as the given {@link KnowledgeBase}.
+	 * The given KB has been checked for consistency when it was constructed,
+	 * so no checks are performed.
+	 *
+	 * @param kb
+	 * @return
+	 */
+	public static ColumnarKnowledgeBase copyOf(KnowledgeBase kb) {
+		return ColumnarKnowledgeBase.of(kb.KB, kb.external());
+	}
+
+	/**
+	 * Create a {@link ColumnarKnowledgeBase} with the given prototypes, which
+	 * must be consistent with the external {@link IKnowledgeBase}.
+	 *
+	 * @param protos
+	 * @param external
+	 * @return
+	 */
+	static ColumnarKnowledgeBase of(Map<ID, PrototypeDefinition> protos, IKnowledgeBase external) {
+		int size = protos.size();
+		List<Entry<ID, PrototypeDefinition>> rows = new ArrayList<>(protos.entrySet());
+		rows.sort(Comparator.comparingInt(e -> e.getKey().handle()));
+
+		int addCount = 0;
+		int removeCount = 0;
+		for (Entry<ID, PrototypeDefinition> row : rows) {
+			PrototypeDefinition def = row.getValue();
+			addCount += def.add.size();
+			removeCount += def.remove.size() + def.remove.getRemoveAll().size();
+		}
+
+		int[] ids = new int[size];
+		int[] parents = new int[size];
+		int[] addOffsets = new int[size + 1];
+		int[] addProperties = new int[addCount];
+		int[] addValues = new int[addCount];
+		BitSet removing = new BitSet(size);
+		int[] removeOffsets = new int[size + 1];
+		int[] removeProperties = new int[removeCount];
+		int[] removeValues = new int[removeCount];
+
+		int addPos = 0;
+		int removePos = 0;
+		for (int i = 0; i < size; i++) {
+			ids[i] = rows.get(i).getKey().handle();
+			PrototypeDefinition def = rows.get(i).getValue();
+			parents[i] = def.parent.handle();
+			for (Entry<Property, ID> add : def.add.entries()) {
+				addProperties[addPos] = add.getKey().handle();
+				addValues[addPos] = add.getValue().handle();
+				addPos++;
+			}
+			addOffsets[i + 1] = addPos;
+			if (!def.remove.isEmpty()) {
+				removing.set(i);
+				for (Property removeAll : def.remove.getRemoveAll()) {
+					removeProperties[removePos] = removeAll.handle();
+					removeValues[removePos] = ColumnarKnowledgeBase.REMOVE_ALL;
+					removePos++;
+				}
+				for (Entry<Property, ID> remove : def.remove.entries()) {
+					removeProperties[removePos] = remove.getKey().handle();
+					removeValues[removePos] = remove.getValue().handle();
+					removePos++;
+				}
+			}
+			removeOffsets[i + 1] = removePos;
+		}
+		return new ColumnarKnowledgeBase(ids, parents, addOffsets, addProperties, addValues, removing, removeOffsets, removeProperties, removeValues, external);
+	}
+
+	/**
+	 * Find the row for the ID with the given handle.
+	 *
+	 * @param handle
+	 * @return the row, or a negative number if there is no such row
+	 */
+	private int row(int handle) {
+		return Arrays.binarySearch(this.ids, handle);
+	}
+
+	private PrototypeDefinition definition(int row) {
+		AddChangeSet.Builder add = AddChangeSet.builder();
+		for (int i = this.addOffsets[row]; i < this.addOffsets[row + 1]; i++) {
+			add.andAdd(Property.byHandle(this.addProperties[i]), ID.byHandle(this.addValues[i]));
+		}
+		RemoveChangeSet remove = RemoveChangeSet.empty();
+		if (this.removing.get(row)) {
+			RemoveChangeSet.Builder removeBuilder = RemoveChangeSet.builder();
+			for (int i = this.removeOffsets[row]; i < this.removeOffsets[row + 1]; i++) {
+				Property property = Property.byHandle(this.removeProperties[i]);
+				int value = this.removeValues[i];
+				if (value == ColumnarKnowledgeBase.REMOVE_ALL) {
+					removeBuilder.andRemoveAll(property);
+				} else {
+					removeBuilder.andRemove(property, ID.byHandle(value));
+				}
+			}
+			remove = removeBuilder.build();
+		}
+		return PrototypeDefinition.create(ID.byHandle(this.parents[row]), remove, add.build());
+	}
+
+	@Override
+	public PrototypeDefinition lookup(ID id) {
+		int row = this.row(id.internedHandle());
+		if (row >= 0) {
+			return this.definition(row);
+		}
+		if (id.equals(Prototype.P_0.id)) {
+			return PrototypeDefinition.P_0;
+		}
+		return this.external.lookup(id);
+	}
+
+	@Override
+	public Prototype computeFixPoint(ID id) {
+		int p0 = Prototype.P_0.id.handle();
+		// the rows of the branch in this KB, the first one is the deepest
+		int[] branch = new int[8];
+		int depth = 0;
+		// the part of the branch defined externally, with the top most first
+		Deque<PrototypeDefinition> externalBranch = new ArrayDeque<>();
+
+		int current = id.internedHandle();
+		int row = this.row(current);
+		if (row < 0) {
+			Preconditions.checkArgument(this.lookup(id) != null);
+		}
+		while (current != p0) {
+			row = this.row(current);
+			if (row < 0) {
+				// externally defined, the rest of the branch is external too.
+				ID externalID = current < 0 ? id : ID.byHandle(current);
+				while (!(Prototype.P_0.id.equals(externalID))) {
+					PrototypeDefinition externalDef = this.lookup(externalID);
+					externalBranch.addFirst(externalDef);
+					externalID = externalDef.parent;
+				}
+				break;
+			}
+			if (depth == branch.length) {
+				branch = Arrays.copyOf(branch, depth * 2);
+			}
+			branch[depth++] = row;
+			current = this.parents[row];
+		}
+
+		MutableChangeSet fixpointAdd = MutableChangeSet.acquire();
+		AddChangeSet addCS;
+		try {
+			for (PrototypeDefinition def : externalBranch) {
+				def.remove.removeFrom(fixpointAdd);
+				def.add.addTo(fixpointAdd);
+			}
+			for (int i = depth - 1; i >= 0; i--) {
+				this.applyRow(branch[i], fixpointAdd);
+			}
+			addCS = AddChangeSet.fromMutable(fixpointAdd);
+		} finally {
+			fixpointAdd.release();
+		}
+		PrototypeDefinition def = PrototypeDefinition.create(Prototype.P_0, RemoveChangeSet.empty(), addCS);
+		return new Prototype(id, def);
+	}
+
+	/**
+	 * Apply first the removals and then the additions of the given row to the
+	 * {@link MutableChangeSet}.
+	 *
+	 * @param row
+	 * @param mcs
+	 */
+	private void applyRow(int row, MutableChangeSet mcs) {
+		if (this.removing.get(row)) {
+			for (int i = this.removeOffsets[row]; i < this.removeOffsets[row + 1]; i++) {
+				int property = this.removeProperties[i];
+				int value = this.removeValues[i];
+				if (value == ColumnarKnowledgeBase.REMOVE_ALL) {
+					mcs.removeAll(property);
+				} else {
+					mcs.remove(property, value);
+				}
+			}
+		}
+		for (int i = this.addOffsets[row]; i < this.addOffsets[row + 1]; i++) {
+			mcs.add(this.addProperties[i], this.addValues[i]);
+		}
+	}
+
+	/**
+	 * Amount of prototypes internal to this KB
+	 *
+	 * @return
+	 */
+	public int size() {
+		return this.ids.length;
+	}
+
+	/**
+	 * All IDs of the prototypes internal to this KB, in handle order.
+	 *
+	 * @return
+	 */
+	public Collection<ID> ids() {
+		return new AbstractList<ID>() {
+
+			@Override
+			public ID get(int index) {
+				return ID.byHandle(ColumnarKnowledgeBase.this.ids[index]);
+			}
+
+			@Override
+			public int size() {
+				return ColumnarKnowledgeBase.this.ids.length;
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return "ColumnarKnowledgeBase [size=" + this.size() + "]";
+	}
+}
@@ -15,6 +15,14 @@ public enum EmptyKnowledgeBase implements IKnowledgeBase {
 	 */
 	instance;
 
+	@Override
+	public PrototypeDefinition lookup(ID id) {
+		if (id.equals(Prototype.P_0.id)) {
+			return PrototypeDefinition.P_0;
+		}
+		return null;
+	}
+
 	@Override
 	public Optional<Prototype> isDefined(ID id) {
 		if (id.equals(Prototype.P_0.id)) {
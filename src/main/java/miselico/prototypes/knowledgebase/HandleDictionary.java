@@ -0,0 +1,118 @@
+package miselico.prototypes.knowledgebase;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * An interning dictionary which maps each distinct (canonical) IRI string to
+ * one canonical object carrying a dense integer handle. Handles are assigned
+ * consecutively starting from 0 and are never reused, which makes them
+ * suitable as indices in primitive arrays.
+ *
+ * Lookups by value are lock free. Adding a new value takes a lock, but this
+ * only happens the first time an IRI is seen.
+ *
+ * Entries are never removed from the dictionary.
+ *
+ * @author michael
+ *
+ * @param <T>
+ *            The type of the canonical objects
+ */
+final class HandleDictionary<T> {
+
+	/**
+	 * Creates the canonical object for a value which is not yet in the
+	 * dictionary.
+	 *
+	 * @param <T>
+	 */
+	interface Factory<T> {
+		T create(String value, int handle);
+	}
+
+	private final ConcurrentHashMap<String, T> byValue = new ConcurrentHashMap<>();
+	private final Factory<T> factory;
+
+	/**
+	 * The canonical objects indexed by their handle. Only grown while holding
+	 * the lock on this dictionary. Volatile such that a reader which obtained a
+	 * handle also sees an array containing it.
+	 */
+	private volatile Object[] byHandle = new Object[1024];
+	private int size = 0;
+
+	HandleDictionary(Factory<T> factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * Get the canonical object for the value, if the value has been interned
+	 * before.
+	 *
+	 * @param value
+	 * @return the canonical object or null if the value is unknown
+	 */
+	T get(String value) {
+		return this.byValue.get(value);
+	}
+
+	/**
+	 * Get the canonical object for the value, creating it if the value is seen
+	 * for the first time. The value must be in canonical form already.
+	 *
+	 * @param value
+	 * @return the canonical object
+	 */
+	T intern(String value) {
+		T known = this.byValue.get(value);
+		if (known != null) {
+			return known;
+		}
+		synchronized (this) {
+			known = this.byValue.get(value);
+			if (known != null) {
+				return known;
+			}
+			int handle = this.size;
+			T created = this.factory.create(value, handle);
+			Object[] table = this.byHandle;
+			if (handle == table.length) {
+				table = Arrays.copyOf(table, table.length * 2);
+			}
+			table[handle] = created;
+			this.byHandle = table;
+			this.size = handle + 1;
+			// publishing through the map happens after the array write.
+			this.byValue.put(value, created);
+			return created;
+		}
+	}
+
+	/**
+	 * Get the canonical object with the given handle.
+	 *
+	 * @param handle
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if no object with the handle was created by this dictionary
+	 */
+	@SuppressWarnings("unchecked")
+	T get(int handle) {
+		Object[] table = this.byHandle;
+		Preconditions.checkArgument((handle >= 0) && (handle < table.length) && (table[handle] != null), "Unknown handle %s", handle);
+		return (T) table[handle];
+	}
+
+	/**
+	 * The number of distinct values interned so far. All handles are smaller
+	 * than this number.
+	 *
+	 * @return
+	 */
+	int size() {
+		return this.byValue.size();
+	}
+}
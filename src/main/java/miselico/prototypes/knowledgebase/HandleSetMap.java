@@ -0,0 +1,105 @@
+package miselico.prototypes.knowledgebase;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A persistent map from a handle to a set of handles, used for the indexes of
+ * a {@link KnowledgeBase}. The sets are sorted arrays kept in an
+ * {@link IntTrie}. Adding or removing a pair copies the set of its key and the
+ * path to it, everything else is shared with the original map. Keys without
+ * values are not stored.
+ *
+ * @author michael
+ *
+ */
+final class HandleSetMap {
+
+	static final int[] NONE = new int[0];
+
+	static final HandleSetMap EMPTY = new HandleSetMap(IntTrie.<int[]> empty());
+
+	private final IntTrie<int[]> sets;
+
+	private HandleSetMap(IntTrie<int[]> sets) {
+		this.sets = sets;
+	}
+
+	/**
+	 * The sorted values of the key. The array must not be modified.
+	 */
+	int[] get(int key) {
+		int[] values = this.sets.get(key);
+		return values == null ? HandleSetMap.NONE : values;
+	}
+
+	void forEach(int key, IntConsumer action) {
+		for (int value : this.get(key)) {
+			action.accept(value);
+		}
+	}
+
+	/**
+	 * The map with the pair added, this map itself if it contains the pair.
+	 */
+	HandleSetMap with(int key, int value) {
+		int[] values = this.get(key);
+		int i = Arrays.binarySearch(values, value);
+		if (i >= 0) {
+			return this;
+		}
+		int position = -(i + 1);
+		int[] result = new int[values.length + 1];
+		System.arraycopy(values, 0, result, 0, position);
+		result[position] = value;
+		System.arraycopy(values, position, result, position + 1, values.length - position);
+		return new HandleSetMap(this.sets.put(key, result));
+	}
+
+	/**
+	 * The map with the pair removed, this map itself if it does not contain
+	 * the pair.
+	 */
+	HandleSetMap without(int key, int value) {
+		int[] values = this.get(key);
+		int i = Arrays.binarySearch(values, value);
+		if (i < 0) {
+			return this;
+		}
+		if (values.length == 1) {
+			return new HandleSetMap(this.sets.remove(key));
+		}
+		int[] result = new int[values.length - 1];
+		System.arraycopy(values, 0, result, 0, i);
+		System.arraycopy(values, i + 1, result, i, values.length - i - 1);
+		return new HandleSetMap(this.sets.put(key, result));
+	}
+
+	/**
+	 * Create the map with the pairs given as parallel arrays of keys and
+	 * values.
+	 */
+	static HandleSetMap of(int[] keys, int[] values) {
+		long[] pairs = new long[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			pairs[i] = ((long) keys[i] << 32) | values[i];
+		}
+		Arrays.sort(pairs);
+		IntTrie<int[]> sets = IntTrie.empty();
+		int start = 0;
+		for (int i = 1; i <= pairs.length; i++) {
+			if ((i == pairs.length) || ((pairs[i] >>> 32) != (pairs[start] >>> 32))) {
+				int[] set = new int[i - start];
+				int n = 0;
+				for (int j = start; j < i; j++) {
+					if ((j == start) || (pairs[j] != pairs[j - 1])) {
+						set[n++] = (int) pairs[j];
+					}
+				}
+				sets = sets.put((int) (pairs[start] >>> 32), n == set.length ? set : Arrays.copyOf(set, n));
+				start = i;
+			}
+		}
+		return new HandleSetMap(sets);
+	}
+}
@@ -0,0 +1,35 @@
+package miselico.prototypes.knowledgebase;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The asynchronous companion of {@link IFPKnowledgeBase}.
+ * 
+ * @author michael
+ *
+ */
+public interface IAsyncFPKnowledgeBase extends IAsyncKnowledgeBase {
+
+	/**
+	 * Compute the fixpoint of the given prototype. The asynchronous version
+	 * of {@link IFPKnowledgeBase#computeFixPoint(ID)}.
+	 * 
+	 * @param id
+	 *            The ID of the prototype.
+	 * @return A future completed with the Prototype in fixpoint form, or
+	 *         completed exceptionally if the id is not in the knowledge base.
+	 */
+	CompletableFuture<Prototype> computeFixPointAsync(ID id);
+
+	/**
+	 * Compute the fixpoints of all given prototypes. The default starts all
+	 * computations at once and completes when all of them are done.
+	 * 
+	 * @param ids
+	 * @return A future completed with the fixpoints in the order of the IDs.
+	 */
+	default CompletableFuture<List<Prototype>> computeFixPointAllAsync(List<ID> ids) {
+		return AsyncKnowledgeBases.all(ids, this::computeFixPointAsync);
+	}
+}
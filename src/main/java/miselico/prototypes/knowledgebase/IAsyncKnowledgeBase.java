@@ -0,0 +1,39 @@
+package miselico.prototypes.knowledgebase;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The asynchronous companion of {@link IKnowledgeBase}. Implementations which
+ * need to wait for I/O, like a remote knowledge base, return before the answer
+ * is known, such that many lookups can be in flight without a thread waiting
+ * for each of them. Local knowledge bases can be adapted using
+ * {@link AsyncKnowledgeBases#adapt(IKnowledgeBase)}.
+ * 
+ * @author michael
+ *
+ */
+public interface IAsyncKnowledgeBase {
+	/**
+	 * Is a prototype with the given ID defined? The asynchronous version of
+	 * {@link IKnowledgeBase#isDefined(ID)}.
+	 * 
+	 * @param id
+	 *            The ID of the prototype
+	 * @return A future completed with an Optional containing the prototype if
+	 *         it was defined in this knowledge base.
+	 */
+	CompletableFuture<Optional<Prototype>> isDefinedAsync(ID id);
+
+	/**
+	 * Look up all given IDs. The default starts all lookups at once and
+	 * completes when all of them are done.
+	 * 
+	 * @param ids
+	 * @return A future completed with the results in the order of the IDs.
+	 */
+	default CompletableFuture<List<Optional<Prototype>>> isDefinedAllAsync(List<ID> ids) {
+		return AsyncKnowledgeBases.all(ids, this::isDefinedAsync);
+	}
+}
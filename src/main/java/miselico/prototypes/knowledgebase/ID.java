@@ -13,11 +13,29 @@ import com.google.common.base.Preconditions;
  * 
  * An ID is immutable
  * 
+ * IDs which are stored in a knowledge base are interned in a global
+ * dictionary. Each distinct IRI is then assigned a dense integer handle (see
+ * {@link #handle()}) which is unique within the running JVM, and from then on
+ * {@link ID#of(String)} returns the interned instance for that IRI. Interned
+ * IDs are never released, this includes literals (see {@link LiteralID}).
+ * 
+ * Creating an ID does not intern it. An IRI which is only parsed, for instance
+ * to look it up on behalf of a client, results in a throwaway instance which
+ * only gets a handle once {@link #handle()} is called. Two interned IDs are
+ * compared by their handles, other IDs by their IRI.
+ * 
  * @author michael
  *
  */
 public class ID {
 	private final String value;
+	/**
+	 * The handle, -1 while not interned.
+	 */
+	private volatile int handle;
+	private final int hash;
+
+	private static final HandleDictionary<ID> dictionary = new HandleDictionary<>(ID::new);
 
 	/**
 	 * Creates an ID from the given value
@@ -31,10 +49,19 @@ public class ID {
 	 *             if the iri is not absolute
 	 */
 	public static ID of(String value) throws IRISyntaxException {
+		// IRIs seen before do not need to be validated again.
+		ID known = ID.dictionary.get(value);
+		if (known != null) {
+			return known;
+		}
 		// creating a URI type is about three times faster as a IRI type, so we
 		// try that first
 		// This might be implementation dependent.
 
+		// the common case of a plain ASCII IRI is checked without parsing
+		if (SimpleIRI.isValid(value)) {
+			return new ID(value, -1);
+		}
 		String uriString;
 		try {
 			URI uri = new URI(value);
@@ -42,7 +69,50 @@ public class ID {
 		} catch (URISyntaxException e) {
 			uriString = new IRI(value).toString();
 		}
-		return new ID(uriString);
+		return ID.lookup(uriString);
+	}
+
+	/**
+	 * The interned ID for the canonical IRI if there is one, a new ID which is
+	 * not interned otherwise.
+	 */
+	private static ID lookup(String canonical) {
+		ID known = ID.dictionary.get(canonical);
+		if (known != null) {
+			return known;
+		}
+		return new ID(canonical, -1);
+	}
+
+	/**
+	 * Get the ID for a value which is known to be a valid absolute IRI in
+	 * canonical form, without validating it. Used when loading data which was
+	 * validated when it was written, like a {@link SnapshotKnowledgeBase}.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	static ID trusted(String value) {
+		return ID.lookup(value);
+	}
+
+	/**
+	 * Get the ID with the given handle.
+	 * 
+	 * @param handle
+	 * @return The canonical ID
+	 * @throws IllegalArgumentException
+	 *             if no ID has the given handle
+	 */
+	static ID byHandle(int handle) {
+		return ID.dictionary.get(handle);
+	}
+
+	/**
+	 * The number of interned IDs.
+	 */
+	static int dictionarySize() {
+		return ID.dictionary.size();
 	}
 
 	/**
@@ -55,9 +125,7 @@ public class ID {
 	 *             if the iri is not absolute
 	 */
 	public ID(IRI iri) {
-		Preconditions.checkNotNull(iri);
-		Preconditions.checkArgument(iri.isAbsolute(), "Only absolute IRIs are valid IDs");
-		this.value = iri.toString();
+		this(ID.checkAbsolute(iri.isAbsolute(), iri.toString()), -1);
 	}
 
 	/**
@@ -70,24 +138,88 @@ public class ID {
 	 *             if the uri is not absolute
 	 */
 	public ID(URI uri) {
-		Preconditions.checkNotNull(uri);
-		Preconditions.checkArgument(uri.isAbsolute(), "Only absolute IRIs are valid IDs");
-		this.value = uri.toString();
+		this(ID.checkAbsolute(uri.isAbsolute(), uri.toString()), -1);
+	}
+
+	private static String checkAbsolute(boolean absolute, String uriString) {
+		Preconditions.checkArgument(absolute, "Only absolute IRIs are valid IDs");
+		return uriString;
+	}
+
+	/**
+	 * Constructor for {@link LiteralID}, which computes its string and handle
+	 * lazily.
+	 * 
+	 * @param hash
+	 *            the hash code of the string representation.
+	 */
+	ID(int hash) {
+		this.value = null;
+		this.handle = -1;
+		this.hash = hash;
 	}
 
 	/**
 	 * Constructs an ID from a String. This is private because the String value
 	 * is not checked.
 	 * 
-	 * @param uri
+	 * @param uriString
+	 * @param handle
+	 *            The handle assigned by the dictionary, or -1 for an ID which
+	 *            is not interned
 	 * @throws NullPointerException
 	 *             if uri is null
-	 * @throws IllegalArgumentException
-	 *             if the uri is not absolute
 	 */
-	private ID(String uriString) {
+	private ID(String uriString, int handle) {
 		Preconditions.checkNotNull(uriString);
 		this.value = uriString;
+		this.handle = handle;
+		this.hash = uriString.hashCode();
+	}
+
+	/**
+	 * The dense integer handle of this ID. Interns the ID if that did not
+	 * happen yet, so this is meant for storing the ID. Use
+	 * {@link #internedHandle()} to look it up.
+	 * 
+	 * @return
+	 */
+	public int handle() {
+		int h = this.handle;
+		if (h < 0) {
+			h = ID.dictionary.intern(this.toString()).handle;
+			this.handle = h;
+		}
+		return h;
+	}
+
+	/**
+	 * The handle of this ID if it is interned, -1 otherwise. Does not intern
+	 * the ID. An ID which is not interned is not stored anywhere, so -1 can be
+	 * treated as not found.
+	 * 
+	 * @return
+	 */
+	int internedHandle() {
+		int h = this.handle;
+		if (h < 0) {
+			ID known = ID.dictionary.get(this.toString());
+			if (known != null) {
+				h = known.handle;
+				this.handle = h;
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * Get the canonical instance for this ID, interning it if needed. This is
+	 * the instance returned by {@link ID#of(String)} once the ID is interned.
+	 * 
+	 * @return
+	 */
+	public ID canonical() {
+		return ID.dictionary.get(this.handle());
 	}
 
 	/**
@@ -96,12 +228,12 @@ public class ID {
 	 * @return
 	 */
 	public IRI getValue() {
-		return new IRI(this.value);
+		return new IRI(this.toString());
 	}
 
 	@Override
 	public int hashCode() {
-		return this.value.hashCode();
+		return this.hash;
 	}
 
 	@Override
@@ -112,11 +244,20 @@ public class ID {
 		if (obj == null) {
 			return false;
 		}
-		if (this.getClass() != obj.getClass()) {
+		if (!(obj instanceof ID)) {
 			return false;
 		}
+		if (obj instanceof LiteralID) {
+			// literals compare by value
+			return obj.equals(this);
+		}
 		ID other = (ID) obj;
-		return this.value.equals(other.value);
+		int h = this.handle;
+		int otherHandle = other.handle;
+		if ((h >= 0) && (otherHandle >= 0)) {
+			return h == otherHandle;
+		}
+		return (this.hash == other.hash) && this.value.equals(other.value);
 	}
 
 	/**
@@ -1,5 +1,9 @@
 package miselico.prototypes.knowledgebase;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * The interface which every knowledge base implementation must implement.
  * 
@@ -18,4 +22,22 @@ public interface IFPKnowledgeBase extends IKnowledgeBase {
 	 *             If the id is not in the {@link IKnowledgeBase}
 	 */
 	Prototype computeFixPoint(ID id);
+
+	/**
+	 * Compute the fixpoints of all given prototypes. The default calls
+	 * {@link #computeFixPoint(ID)} for each of them.
+	 * 
+	 * @param ids
+	 *            The IDs of the prototypes.
+	 * @return The prototypes in fixpoint form, by ID.
+	 * @throws IllegalArgumentException
+	 *             If one of the ids is not in the {@link IKnowledgeBase}
+	 */
+	default Map<ID, Prototype> computeFixPointAll(Collection<ID> ids) {
+		Map<ID, Prototype> fixpoints = new HashMap<>();
+		for (ID id : ids) {
+			fixpoints.put(id, this.computeFixPoint(id));
+		}
+		return fixpoints;
+	}
 }
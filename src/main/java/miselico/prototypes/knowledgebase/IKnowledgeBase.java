@@ -1,5 +1,8 @@
 package miselico.prototypes.knowledgebase;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 
 /**
@@ -9,6 +12,23 @@ import java.util.Optional;
  *
  */
 public interface IKnowledgeBase {
+	/**
+	 * Get the definition of the prototype with the given ID. This is the
+	 * lower-level variant of {@link #isDefined(ID)}, which does not allocate a
+	 * {@link Prototype} nor an {@link Optional} for each call.
+	 * 
+	 * Every KB must define the empty prototype {@code P_O }, its definition is
+	 * {@link PrototypeDefinition#P_0}.
+	 * 
+	 * Every knowledge base must support concurrent reads.
+	 * 
+	 * @param id
+	 *            The ID of the prototype
+	 * @return The definition of the prototype if it was defined in this
+	 *         knowledge base, null otherwise.
+	 */
+	PrototypeDefinition lookup(ID id);
+
 	/**
 	 * Is a prototype with the given ID defined?
 	 * 
@@ -21,5 +41,35 @@ public interface IKnowledgeBase {
 	 * @return An Optional containing the prototype if it was defined in this
 	 *         knowledge base.
 	 */
-	Optional<? extends Prototype> isDefined(ID id);
+	default Optional<? extends Prototype> isDefined(ID id) {
+		PrototypeDefinition def = this.lookup(id);
+		if (def == null) {
+			return Optional.empty();
+		}
+		if (id.equals(Prototype.P_0.id)) {
+			return Prototype.OptP_0;
+		}
+		return Optional.of(new Prototype(id, def));
+	}
+
+	/**
+	 * Look up all given IDs. Implementations for which each lookup is
+	 * expensive, like remote ones, can answer many IDs at once. The default
+	 * asks {@link #isDefined(ID)} for each of them.
+	 * 
+	 * @param ids
+	 *            The IDs of the prototypes
+	 * @return The prototypes which are defined in this knowledge base, by ID.
+	 *         IDs which are not defined are not in the map.
+	 */
+	default Map<ID, Prototype> isDefinedAll(Collection<ID> ids) {
+		Map<ID, Prototype> defined = new HashMap<>();
+		for (ID id : ids) {
+			Optional<? extends Prototype> proto = this.isDefined(id);
+			if (proto.isPresent()) {
+				defined.put(id, proto.get());
+			}
+		}
+		return defined;
+	}
 }
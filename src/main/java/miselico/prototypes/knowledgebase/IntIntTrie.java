@@ -0,0 +1,181 @@
+package miselico.prototypes.knowledgebase;
+
+/**
+ * An {@link IntTrie} with int values, which are stored unboxed in an int array
+ * next to the keys. It has the same layout as {@link IntTrie}: the keys stored
+ * directly in a node are marked in dataMap, the subnodes in nodeMap, both
+ * indexed by the 5 bits of the key for the level of the node. Changing the
+ * trie only copies the path to the changed key.
+ *
+ * @author michael
+ *
+ */
+final class IntIntTrie {
+
+	private static final int BITS = 5;
+	private static final int MASK = (1 << IntIntTrie.BITS) - 1;
+
+	static final IntIntTrie EMPTY = new IntIntTrie(0, 0, new int[0], new int[0], new IntIntTrie[0]);
+
+	private final int dataMap;
+	private final int nodeMap;
+	private final int[] keys;
+	private final int[] values;
+	private final IntIntTrie[] nodes;
+
+	private IntIntTrie(int dataMap, int nodeMap, int[] keys, int[] values, IntIntTrie[] nodes) {
+		this.dataMap = dataMap;
+		this.nodeMap = nodeMap;
+		this.keys = keys;
+		this.values = values;
+		this.nodes = nodes;
+	}
+
+	private static int bit(int key, int shift) {
+		return 1 << ((key >>> shift) & IntIntTrie.MASK);
+	}
+
+	private static int index(int map, int bit) {
+		return Integer.bitCount(map & (bit - 1));
+	}
+
+	/**
+	 * The value for the key, the given default if the key is not in the trie.
+	 */
+	int get(int key, int absent) {
+		IntIntTrie node = this;
+		for (int shift = 0;; shift += IntIntTrie.BITS) {
+			int bit = IntIntTrie.bit(key, shift);
+			if ((node.dataMap & bit) != 0) {
+				int i = IntIntTrie.index(node.dataMap, bit);
+				return node.keys[i] == key ? node.values[i] : absent;
+			}
+			if ((node.nodeMap & bit) == 0) {
+				return absent;
+			}
+			node = node.nodes[IntIntTrie.index(node.nodeMap, bit)];
+		}
+	}
+
+	/**
+	 * The trie with the key mapped to the value.
+	 */
+	IntIntTrie put(int key, int value) {
+		return this.put(key, value, 0);
+	}
+
+	/**
+	 * The trie without the key, this trie itself if it does not contain the
+	 * key.
+	 */
+	IntIntTrie remove(int key) {
+		return this.remove(key, 0);
+	}
+
+	private IntIntTrie put(int key, int value, int shift) {
+		int bit = IntIntTrie.bit(key, shift);
+		if ((this.dataMap & bit) != 0) {
+			int i = IntIntTrie.index(this.dataMap, bit);
+			if (this.keys[i] == key) {
+				if (this.values[i] == value) {
+					return this;
+				}
+				int[] values = this.values.clone();
+				values[i] = value;
+				return new IntIntTrie(this.dataMap, this.nodeMap, this.keys, values, this.nodes);
+			}
+			// two keys in the same slot, push both down.
+			IntIntTrie pair = IntIntTrie.pair(this.keys[i], this.values[i], key, value, shift + IntIntTrie.BITS);
+			return this.removeData(i, bit).insertNode(bit, pair);
+		}
+		if ((this.nodeMap & bit) != 0) {
+			int i = IntIntTrie.index(this.nodeMap, bit);
+			IntIntTrie sub = this.nodes[i].put(key, value, shift + IntIntTrie.BITS);
+			if (sub == this.nodes[i]) {
+				return this;
+			}
+			IntIntTrie[] nodes = this.nodes.clone();
+			nodes[i] = sub;
+			return new IntIntTrie(this.dataMap, this.nodeMap, this.keys, this.values, nodes);
+		}
+		return this.insertData(bit, key, value);
+	}
+
+	private IntIntTrie remove(int key, int shift) {
+		int bit = IntIntTrie.bit(key, shift);
+		if ((this.dataMap & bit) != 0) {
+			int i = IntIntTrie.index(this.dataMap, bit);
+			return this.keys[i] == key ? this.removeData(i, bit) : this;
+		}
+		if ((this.nodeMap & bit) != 0) {
+			int i = IntIntTrie.index(this.nodeMap, bit);
+			IntIntTrie sub = this.nodes[i].remove(key, shift + IntIntTrie.BITS);
+			if (sub == this.nodes[i]) {
+				return this;
+			}
+			if ((sub.nodeMap == 0) && (Integer.bitCount(sub.dataMap) == 1)) {
+				// keep the trie compact by inlining a single remaining key
+				return this.removeNode(i, bit).insertData(bit, sub.keys[0], sub.values[0]);
+			}
+			IntIntTrie[] nodes = this.nodes.clone();
+			nodes[i] = sub;
+			return new IntIntTrie(this.dataMap, this.nodeMap, this.keys, this.values, nodes);
+		}
+		return this;
+	}
+
+	private static IntIntTrie pair(int key1, int value1, int key2, int value2, int shift) {
+		int bit1 = IntIntTrie.bit(key1, shift);
+		int bit2 = IntIntTrie.bit(key2, shift);
+		if (bit1 == bit2) {
+			return new IntIntTrie(0, bit1, new int[0], new int[0], new IntIntTrie[] { IntIntTrie.pair(key1, value1, key2, value2, shift + IntIntTrie.BITS) });
+		}
+		if (Integer.compareUnsigned(bit1, bit2) < 0) {
+			return new IntIntTrie(bit1 | bit2, 0, new int[] { key1, key2 }, new int[] { value1, value2 }, new IntIntTrie[0]);
+		}
+		return new IntIntTrie(bit1 | bit2, 0, new int[] { key2, key1 }, new int[] { value2, value1 }, new IntIntTrie[0]);
+	}
+
+	private IntIntTrie insertData(int bit, int key, int value) {
+		int i = IntIntTrie.index(this.dataMap, bit);
+		int n = this.keys.length;
+		int[] keys = new int[n + 1];
+		int[] values = new int[n + 1];
+		System.arraycopy(this.keys, 0, keys, 0, i);
+		System.arraycopy(this.values, 0, values, 0, i);
+		keys[i] = key;
+		values[i] = value;
+		System.arraycopy(this.keys, i, keys, i + 1, n - i);
+		System.arraycopy(this.values, i, values, i + 1, n - i);
+		return new IntIntTrie(this.dataMap | bit, this.nodeMap, keys, values, this.nodes);
+	}
+
+	private IntIntTrie removeData(int i, int bit) {
+		int n = this.keys.length;
+		int[] keys = new int[n - 1];
+		int[] values = new int[n - 1];
+		System.arraycopy(this.keys, 0, keys, 0, i);
+		System.arraycopy(this.values, 0, values, 0, i);
+		System.arraycopy(this.keys, i + 1, keys, i, n - i - 1);
+		System.arraycopy(this.values, i + 1, values, i, n - i - 1);
+		return new IntIntTrie(this.dataMap & ~bit, this.nodeMap, keys, values, this.nodes);
+	}
+
+	private IntIntTrie insertNode(int bit, IntIntTrie node) {
+		int i = IntIntTrie.index(this.nodeMap, bit);
+		int n = this.nodes.length;
+		IntIntTrie[] nodes = new IntIntTrie[n + 1];
+		System.arraycopy(this.nodes, 0, nodes, 0, i);
+		nodes[i] = node;
+		System.arraycopy(this.nodes, i, nodes, i + 1, n - i);
+		return new IntIntTrie(this.dataMap, this.nodeMap | bit, this.keys, this.values, nodes);
+	}
+
+	private IntIntTrie removeNode(int i, int bit) {
+		int n = this.nodes.length;
+		IntIntTrie[] nodes = new IntIntTrie[n - 1];
+		System.arraycopy(this.nodes, 0, nodes, 0, i);
+		System.arraycopy(this.nodes, i + 1, nodes, i, n - i - 1);
+		return new IntIntTrie(this.dataMap, this.nodeMap & ~bit, this.keys, this.values, nodes);
+	}
+}
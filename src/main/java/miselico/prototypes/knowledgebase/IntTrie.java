@@ -0,0 +1,301 @@
+package miselico.prototypes.knowledgebase;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable hash array mapped trie (in the compressed CHAMP layout) with
+ * non-negative int keys, such as the handles of {@link ID}s and
+ * {@link Property}s. Handles are distinct, so the trie never has collisions.
+ * Changing the trie only copies the path to the changed key, everything else
+ * is shared with the original.
+ *
+ * The keys stored directly in a node are marked in dataMap, the subnodes in
+ * nodeMap, both indexed by the 5 bits of the key for the level of the node.
+ *
+ * @author michael
+ *
+ * @param <V>
+ *            The type of the values
+ */
+final class IntTrie<V> {
+
+	/**
+	 * Receives the keys and values of a trie.
+	 */
+	interface Visitor<V> {
+		void visit(int key, V value);
+	}
+
+	/**
+	 * Converts a key and its value to the element returned by an iterator.
+	 */
+	interface EntryFunction<V, T> {
+		T apply(int key, V value);
+	}
+
+	private static final int BITS = 5;
+	private static final int MASK = (1 << IntTrie.BITS) - 1;
+	/**
+	 * The maximal depth of a trie with 32 bit keys.
+	 */
+	private static final int MAX_DEPTH = (32 + IntTrie.BITS - 1) / IntTrie.BITS;
+
+	private static final IntTrie<Object> EMPTY = new IntTrie<>(0, 0, new int[0], new Object[0], new Object[0]);
+
+	private final int dataMap;
+	private final int nodeMap;
+	private final int[] keys;
+	private final Object[] values;
+	private final Object[] nodes;
+
+	private IntTrie(int dataMap, int nodeMap, int[] keys, Object[] values, Object[] nodes) {
+		this.dataMap = dataMap;
+		this.nodeMap = nodeMap;
+		this.keys = keys;
+		this.values = values;
+		this.nodes = nodes;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <V> IntTrie<V> empty() {
+		return (IntTrie<V>) IntTrie.EMPTY;
+	}
+
+	boolean isEmpty() {
+		return (this.dataMap == 0) && (this.nodeMap == 0);
+	}
+
+	private static int bit(int key, int shift) {
+		return 1 << ((key >>> shift) & IntTrie.MASK);
+	}
+
+	private static int index(int map, int bit) {
+		return Integer.bitCount(map & (bit - 1));
+	}
+
+	@SuppressWarnings("unchecked")
+	private V value(int i) {
+		return (V) this.values[i];
+	}
+
+	@SuppressWarnings("unchecked")
+	private IntTrie<V> node(int i) {
+		return (IntTrie<V>) this.nodes[i];
+	}
+
+	/**
+	 * The value for the key, null if the key is not in the trie.
+	 */
+	V get(int key) {
+		IntTrie<V> node = this;
+		for (int shift = 0;; shift += IntTrie.BITS) {
+			int bit = IntTrie.bit(key, shift);
+			if ((node.dataMap & bit) != 0) {
+				int i = IntTrie.index(node.dataMap, bit);
+				return node.keys[i] == key ? node.value(i) : null;
+			}
+			if ((node.nodeMap & bit) == 0) {
+				return null;
+			}
+			node = node.node(IntTrie.index(node.nodeMap, bit));
+		}
+	}
+
+	/**
+	 * The trie with the key mapped to the value.
+	 */
+	IntTrie<V> put(int key, V value) {
+		return this.put(key, value, 0);
+	}
+
+	/**
+	 * The trie without the key, this trie itself if it does not contain the
+	 * key.
+	 */
+	IntTrie<V> remove(int key) {
+		return this.remove(key, 0);
+	}
+
+	private IntTrie<V> put(int key, V value, int shift) {
+		int bit = IntTrie.bit(key, shift);
+		if ((this.dataMap & bit) != 0) {
+			int i = IntTrie.index(this.dataMap, bit);
+			if (this.keys[i] == key) {
+				if (this.values[i] == value) {
+					return this;
+				}
+				Object[] values = this.values.clone();
+				values[i] = value;
+				return new IntTrie<>(this.dataMap, this.nodeMap, this.keys, values, this.nodes);
+			}
+			// two keys in the same slot, push both down.
+			IntTrie<V> pair = IntTrie.pair(this.keys[i], this.value(i), key, value, shift + IntTrie.BITS);
+			return this.removeData(i, bit).insertNode(bit, pair);
+		}
+		if ((this.nodeMap & bit) != 0) {
+			int i = IntTrie.index(this.nodeMap, bit);
+			IntTrie<V> sub = this.node(i).put(key, value, shift + IntTrie.BITS);
+			if (sub == this.nodes[i]) {
+				return this;
+			}
+			Object[] nodes = this.nodes.clone();
+			nodes[i] = sub;
+			return new IntTrie<>(this.dataMap, this.nodeMap, this.keys, this.values, nodes);
+		}
+		return this.insertData(bit, key, value);
+	}
+
+	private IntTrie<V> remove(int key, int shift) {
+		int bit = IntTrie.bit(key, shift);
+		if ((this.dataMap & bit) != 0) {
+			int i = IntTrie.index(this.dataMap, bit);
+			return this.keys[i] == key ? this.removeData(i, bit) : this;
+		}
+		if ((this.nodeMap & bit) != 0) {
+			int i = IntTrie.index(this.nodeMap, bit);
+			IntTrie<V> sub = this.node(i).remove(key, shift + IntTrie.BITS);
+			if (sub == this.nodes[i]) {
+				return this;
+			}
+			if ((sub.nodeMap == 0) && (Integer.bitCount(sub.dataMap) == 1)) {
+				// keep the trie compact by inlining a single remaining key
+				return this.removeNode(i, bit).insertData(bit, sub.keys[0], sub.value(0));
+			}
+			Object[] nodes = this.nodes.clone();
+			nodes[i] = sub;
+			return new IntTrie<>(this.dataMap, this.nodeMap, this.keys, this.values, nodes);
+		}
+		return this;
+	}
+
+	private static <V> IntTrie<V> pair(int key1, V value1, int key2, V value2, int shift) {
+		int bit1 = IntTrie.bit(key1, shift);
+		int bit2 = IntTrie.bit(key2, shift);
+		if (bit1 == bit2) {
+			return new IntTrie<>(0, bit1, new int[0], new Object[0], new Object[] { IntTrie.pair(key1, value1, key2, value2, shift + IntTrie.BITS) });
+		}
+		if (Integer.compareUnsigned(bit1, bit2) < 0) {
+			return new IntTrie<>(bit1 | bit2, 0, new int[] { key1, key2 }, new Object[] { value1, value2 }, new Object[0]);
+		}
+		return new IntTrie<>(bit1 | bit2, 0, new int[] { key2, key1 }, new Object[] { value2, value1 }, new Object[0]);
+	}
+
+	private IntTrie<V> insertData(int bit, int key, V value) {
+		int i = IntTrie.index(this.dataMap, bit);
+		int n = this.keys.length;
+		int[] keys = new int[n + 1];
+		Object[] values = new Object[n + 1];
+		System.arraycopy(this.keys, 0, keys, 0, i);
+		System.arraycopy(this.values, 0, values, 0, i);
+		keys[i] = key;
+		values[i] = value;
+		System.arraycopy(this.keys, i, keys, i + 1, n - i);
+		System.arraycopy(this.values, i, values, i + 1, n - i);
+		return new IntTrie<>(this.dataMap | bit, this.nodeMap, keys, values, this.nodes);
+	}
+
+	private IntTrie<V> removeData(int i, int bit) {
+		int n = this.keys.length;
+		int[] keys = new int[n - 1];
+		Object[] values = new Object[n - 1];
+		System.arraycopy(this.keys, 0, keys, 0, i);
+		System.arraycopy(this.values, 0, values, 0, i);
+		System.arraycopy(this.keys, i + 1, keys, i, n - i - 1);
+		System.arraycopy(this.values, i + 1, values, i, n - i - 1);
+		return new IntTrie<>(this.dataMap & ~bit, this.nodeMap, keys, values, this.nodes);
+	}
+
+	private IntTrie<V> insertNode(int bit, IntTrie<V> node) {
+		int i = IntTrie.index(this.nodeMap, bit);
+		int n = this.nodes.length;
+		Object[] nodes = new Object[n + 1];
+		System.arraycopy(this.nodes, 0, nodes, 0, i);
+		nodes[i] = node;
+		System.arraycopy(this.nodes, i, nodes, i + 1, n - i);
+		return new IntTrie<>(this.dataMap, this.nodeMap | bit, this.keys, this.values, nodes);
+	}
+
+	private IntTrie<V> removeNode(int i, int bit) {
+		int n = this.nodes.length;
+		Object[] nodes = new Object[n - 1];
+		System.arraycopy(this.nodes, 0, nodes, 0, i);
+		System.arraycopy(this.nodes, i + 1, nodes, i, n - i - 1);
+		return new IntTrie<>(this.dataMap, this.nodeMap & ~bit, this.keys, this.values, nodes);
+	}
+
+	void forEach(Visitor<? super V> visitor) {
+		for (int i = 0; i < this.keys.length; i++) {
+			visitor.visit(this.keys[i], this.value(i));
+		}
+		for (int i = 0; i < this.nodes.length; i++) {
+			this.node(i).forEach(visitor);
+		}
+	}
+
+	/**
+	 * Iterate over the entries of the trie, in the same order as
+	 * {@link #forEach(Visitor)}.
+	 */
+	<T> Iterator<T> iterator(EntryFunction<? super V, ? extends T> function) {
+		return new Iterator<T>() {
+			private final Object[] path = new Object[IntTrie.MAX_DEPTH + 1];
+			/**
+			 * The position in each node of the path, counting the keys first
+			 * and then the subnodes.
+			 */
+			private final int[] positions = new int[IntTrie.MAX_DEPTH + 1];
+			private int depth = 0;
+
+			{
+				this.path[0] = IntTrie.this;
+				this.advance();
+			}
+
+			@SuppressWarnings("unchecked")
+			private IntTrie<V> current() {
+				return (IntTrie<V>) this.path[this.depth];
+			}
+
+			/**
+			 * Move to the next key, or to depth -1 if there is none.
+			 */
+			private void advance() {
+				while (this.depth >= 0) {
+					IntTrie<V> node = this.current();
+					int position = this.positions[this.depth];
+					if (position < node.keys.length) {
+						return;
+					}
+					int sub = position - node.keys.length;
+					if (sub < node.nodes.length) {
+						this.positions[this.depth]++;
+						this.depth++;
+						this.path[this.depth] = node.nodes[sub];
+						this.positions[this.depth] = 0;
+					} else {
+						this.path[this.depth] = null;
+						this.depth--;
+					}
+				}
+			}
+
+			@Override
+			public boolean hasNext() {
+				return this.depth >= 0;
+			}
+
+			@Override
+			public T next() {
+				if (this.depth < 0) {
+					throw new NoSuchElementException();
+				}
+				IntTrie<V> node = this.current();
+				int i = this.positions[this.depth]++;
+				T next = function.apply(node.keys[i], node.value(i));
+				this.advance();
+				return next;
+			}
+		};
+	}
+}
@@ -1,18 +1,43 @@
 package miselico.prototypes.knowledgebase;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Optional;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableCollection;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
 
 /**
  * A KB is a set of prototypes which (when combined with the Predefined KB) is
@@ -26,8 +51,58 @@ import com.google.common.collect.ImmutableMap;
  */
 public class KnowledgeBase implements IFPKnowledgeBase {
 
-	public final ImmutableMap<ID, PrototypeDefinition> KB;
+	/**
+	 * The default maximum total weight of the fixpoints cached by
+	 * {@link #computeFixPoint(ID)}. The weight of a fixpoint is the number of
+	 * (property, value) pairs in it, plus one. Use
+	 * {@link Builder#setFixPointCacheWeight(long)} to change it.
+	 */
+	public static final long DEFAULT_FIXPOINT_CACHE_WEIGHT = 1_000_000;
+
+	/**
+	 * The prototypes of this KB. This is an unmodifiable map which shares
+	 * structure with the KB this one was built from, see {@link Builder}. It
+	 * used to be an {@link ImmutableMap}, use {@link #prototypes()} where one
+	 * is needed.
+	 *
+	 * The map iterates in the order of the handles of the IDs, i.e. the order
+	 * in which they were first interned in this JVM, not the order in which
+	 * the prototypes were added. Anything written by iterating over it, like
+	 * serialized prototypes, is ordered the same way.
+	 */
+	public final Map<ID, PrototypeDefinition> KB;
+	/**
+	 * The copy returned by {@link #prototypes()}, created on first use.
+	 */
+	private volatile ImmutableMap<ID, PrototypeDefinition> immutableKB;
 	private final IKnowledgeBase external;
+	/**
+	 * Fixpoints of prototypes in this KB. A {@link KnowledgeBase} is immutable,
+	 * so entries never become invalid.
+	 */
+	private final Cache<ID, AddChangeSet> fixPoints;
+	private final long fixPointCacheWeight;
+	/**
+	 * The children of each prototype which has children in this KB, created
+	 * on first use.
+	 */
+	private volatile ChildrenIndex children;
+	/**
+	 * Index used to check removals, created on first use or derived from the
+	 * index of the KB this one was built from.
+	 */
+	private volatile HandleSetMap referencedBy;
+
+	/**
+	 * 
+	 * @param kB
+	 *            the data in this knowledge base
+	 * @param external
+	 *            data defined externally
+	 */
+	public KnowledgeBase(Map<ID, PrototypeDefinition> kB, IKnowledgeBase external) {
+		this(kB, external, KnowledgeBase.DEFAULT_FIXPOINT_CACHE_WEIGHT);
+	}
 
 	/**
 	 * 
@@ -35,9 +110,13 @@ public class KnowledgeBase implements IFPKnowledgeBase {
 	 *            the data in this knowledge base
 	 * @param external
 	 *            data defined externally
+	 * @param fixPointCacheWeight
+	 *            the maximum total weight of the fixpoints cached by
+	 *            {@link #computeFixPoint(ID)}, see
+	 *            {@link #DEFAULT_FIXPOINT_CACHE_WEIGHT}. 0 disables the cache.
 	 */
-	public KnowledgeBase(ImmutableMap<ID, PrototypeDefinition> kB, IKnowledgeBase external) {
-		this(kB, external, true);
+	public KnowledgeBase(Map<ID, PrototypeDefinition> kB, IKnowledgeBase external, long fixPointCacheWeight) {
+		this(PrototypeMap.copyOf(kB), external, fixPointCacheWeight, true);
 	}
 
 	/**
@@ -46,12 +125,17 @@ public class KnowledgeBase implements IFPKnowledgeBase {
 	 *            the data in this knowledge base
 	 * @param external
 	 *            data defined externally
+	 * @param fixPointCacheWeight
+	 *            the maximum total weight of the cached fixpoints
 	 * @throws Error
 	 *             in case the constructed knowledge base is not consistent.
 	 */
-	private KnowledgeBase(ImmutableMap<ID, PrototypeDefinition> kB, IKnowledgeBase external, boolean checkConsistency) {
+	private KnowledgeBase(Map<ID, PrototypeDefinition> kB, IKnowledgeBase external, long fixPointCacheWeight, boolean checkConsistency) {
+		Preconditions.checkArgument(fixPointCacheWeight >= 0, "The cache weight must not be negative");
 		this.KB = kB;
 		this.external = external;
+		this.fixPointCacheWeight = fixPointCacheWeight;
+		this.fixPoints = CacheBuilder.newBuilder().maximumWeight(fixPointCacheWeight).weigher((ID id, AddChangeSet fixpoint) -> fixpoint.size() + 1).recordStats().build();
 		if (checkConsistency) {
 			this.checkConsistency();
 		}
@@ -63,31 +147,12 @@ public class KnowledgeBase implements IFPKnowledgeBase {
 		if (this.KB.containsKey(Prototype.P_0.id)) {
 			throw new Error("A KB definition cannot contain P_0");
 		}
-		for (PrototypeDefinition proto : this.KB.values()) {
-			// Check the parent and added things. A recursive check is not
-			// necessary: They will be checked themselves in later/before in the
-			// same loop
-			ID parent = proto.parent;
-			if (!this.isDefined(parent).isPresent()) {
-				throw new Error("Parent of " + proto + " is not defined in the knowledge base.");
-			}
-			for (Entry<Property, ID> addition : proto.add.entries()) {
-				ID v = addition.getValue();
-				if (v.equals(Prototype.P_0.id)) {
-					throw new Error("Value for added property " + addition.getKey() + " refers to P0");
-				}
-
-				if (!this.isDefined(v).isPresent()) {
-					throw new Error("Value for added property " + addition.getKey() + " of prototype " + proto + " refers to undefined prototype " + addition.getValue());
-				}
-			}
-		}
+		// Check the parent and added things. A recursive check is not
+		// necessary: They will be checked themselves in later/before in the
+		// same loop
+		this.checkReferences(this.KB.values());
 		// IDs should not be defined twice, check in external KB
-		for (ID id : this.KB.keySet()) {
-			if (this.external.isDefined(id).isPresent()) {
-				throw new Error("Prototype with ID " + id + " defined twice.");
-			}
-		}
+		this.checkNotExternal(this.KB.keySet());
 
 		// Check derivation is DAG
 
@@ -98,41 +163,330 @@ public class KnowledgeBase implements IFPKnowledgeBase {
 		HashSet<ID> grounded = new HashSet<>();
 		grounded.add(Prototype.P_0.id);
 		for (Entry<ID, PrototypeDefinition> proto : this.KB.entrySet()) {
-			ID currentID = proto.getKey();
-			Set<ID> currentBranch = new HashSet<ID>();
-			PrototypeDefinition currentDef = proto.getValue();
-			while (!grounded.contains(currentID)) {
-				if (!currentBranch.add(currentID)) {
-					throw new Error("Cycle detected in inheritance tree for " + currentDef);
+			this.checkGrounded(proto.getKey(), proto.getValue(), grounded);
+		}
+	}
+
+	/**
+	 * Performs the same checks as {@link #checkConsistency()}, but each of the
+	 * checks is partitioned over the given pool. If there are several
+	 * problems, the problem reported can be any of those which the serial
+	 * check would report for the same step.
+	 * 
+	 * @param pool
+	 */
+	private void checkConsistency(ForkJoinPool pool) {
+		if (this.KB.containsKey(Prototype.P_0.id)) {
+			throw new Error("A KB definition cannot contain P_0");
+		}
+		List<Entry<ID, PrototypeDefinition>> protos = new ArrayList<>(this.KB.entrySet());
+		KnowledgeBase.forEachParallel(pool, protos, proto -> this.checkReferences(proto.getValue(), id -> this.lookup(id) != null));
+		KnowledgeBase.forEachParallel(pool, protos, proto -> this.checkNotExternal(proto.getKey()));
+		// Check derivation is DAG. Several threads might walk the same part of
+		// the DAG before either of them marks it grounded. This causes some
+		// duplicate work but does not affect the outcome.
+		Set<ID> grounded = ConcurrentHashMap.newKeySet();
+		grounded.add(Prototype.P_0.id);
+		KnowledgeBase.forEachParallel(pool, protos, proto -> this.checkGrounded(proto.getKey(), proto.getValue(), grounded));
+	}
+
+	/**
+	 * Performs the same checks as {@link #checkConsistency()} for a KB which
+	 * is created by changing the consistent base KB. Only the added
+	 * prototypes and the prototypes referring to removed ones are checked.
+	 * 
+	 * @param base
+	 *            The consistent KB this one was created from, with the same
+	 *            external KB
+	 * @param added
+	 *            The IDs of prototypes which were added or replaced
+	 * @param removed
+	 *            The IDs of prototypes of the base which were removed or
+	 *            replaced
+	 */
+	private void checkChanges(KnowledgeBase base, Set<ID> added, Set<ID> removed) {
+		if (added.contains(Prototype.P_0.id)) {
+			throw new Error("A KB definition cannot contain P_0");
+		}
+		List<PrototypeDefinition> toCheck = new ArrayList<>(added.size());
+		for (ID id : added) {
+			toCheck.add(this.KB.get(id));
+		}
+		for (ID id : removed) {
+			if (!this.KB.containsKey(id)) {
+				for (int referrer : base.referencedBy().get(id.internedHandle())) {
+					PrototypeDefinition def = this.KB.get(ID.byHandle(referrer));
+					if (def != null) {
+						toCheck.add(def);
+					}
 				}
-				currentID = currentDef.parent;
-				currentDef = this.KB.get(currentID);
 			}
-			grounded.addAll(currentBranch);
+		}
+		this.checkReferences(toCheck);
+		this.checkNotExternal(added);
+		// The base is a DAG and removing prototypes cannot create a cycle. A
+		// new cycle has to go through an added prototype.
+		HashSet<ID> grounded = new HashSet<>();
+		grounded.add(Prototype.P_0.id);
+		for (ID id : added) {
+			this.checkGrounded(id, this.KB.get(id), grounded);
 		}
 	}
 
-	private static final Optional<Prototype> OptP_0 = Optional.of(Prototype.P_0);
+	/**
+	 * For each ID handle, the handles of the prototypes in this KB which have
+	 * it as their parent or as a value. The index is created on first use.
+	 * 
+	 * @return
+	 */
+	private HandleSetMap referencedBy() {
+		HandleSetMap index = this.referencedBy;
+		if (index == null) {
+			int size = 0;
+			for (PrototypeDefinition def : this.KB.values()) {
+				size += 1 + def.add.size();
+			}
+			int[] referenced = new int[size];
+			int[] referrers = new int[size];
+			int[] n = { 0 };
+			this.KB.forEach((id, def) -> {
+				referenced[n[0]] = def.parent.handle();
+				referrers[n[0]++] = id.handle();
+				for (Entry<Property, ID> addition : def.add.entries()) {
+					referenced[n[0]] = addition.getValue().handle();
+					referrers[n[0]++] = id.handle();
+				}
+			});
+			index = HandleSetMap.of(referenced, referrers);
+			this.referencedBy = index;
+		}
+		return index;
+	}
+
+	/**
+	 * Derive the indexes of this KB from the ones of the base it was built
+	 * from, if the base has created them. Only the changed prototypes and, for
+	 * the {@link ChildrenIndex}, their ancestors are visited. Must only be
+	 * called once this KB is known to be consistent.
+	 * 
+	 * @param base
+	 *            The KB this one was built from
+	 * @param added
+	 *            The prototypes which were added or replaced
+	 * @param removed
+	 *            The IDs of prototypes of the base which were removed or
+	 *            replaced
+	 */
+	private void deriveIndexes(KnowledgeBase base, Map<ID, PrototypeDefinition> added, Set<ID> removed) {
+		HandleSetMap index = base.referencedBy;
+		ChildrenIndex childrenIndex = base.children;
+		if ((index == null) && (childrenIndex == null)) {
+			return;
+		}
+		Set<ID> detached = new HashSet<>(removed);
+		for (ID id : added.keySet()) {
+			if (base.KB.containsKey(id)) {
+				detached.add(id);
+			}
+		}
+		if (childrenIndex != null) {
+			this.children = childrenIndex.derive(base.KB, added, detached);
+		}
+		if (index == null) {
+			return;
+		}
+		for (ID id : detached) {
+			PrototypeDefinition def = base.KB.get(id);
+			if (def != null) {
+				int referrer = id.handle();
+				index = index.without(def.parent.handle(), referrer);
+				for (Entry<Property, ID> addition : def.add.entries()) {
+					index = index.without(addition.getValue().handle(), referrer);
+				}
+			}
+		}
+		for (Entry<ID, PrototypeDefinition> proto : added.entrySet()) {
+			int referrer = proto.getKey().handle();
+			PrototypeDefinition def = proto.getValue();
+			index = index.with(def.parent.handle(), referrer);
+			for (Entry<Property, ID> addition : def.add.entries()) {
+				index = index.with(addition.getValue().handle(), referrer);
+			}
+		}
+		this.referencedBy = index;
+	}
+
+	/**
+	 * Check the references of all definitions. The IDs which are not in this
+	 * KB are asked to the external KB in a single
+	 * {@link IKnowledgeBase#isDefinedAll(Collection)} call.
+	 */
+	private void checkReferences(Collection<PrototypeDefinition> protos) {
+		Set<ID> outside = new HashSet<>();
+		for (PrototypeDefinition proto : protos) {
+			this.addOutside(proto.parent, outside);
+			for (Entry<Property, ID> addition : proto.add.entries()) {
+				this.addOutside(addition.getValue(), outside);
+			}
+		}
+		Set<ID> definedOutside = outside.isEmpty() ? Collections.emptySet() : this.external.isDefinedAll(outside).keySet();
+		Predicate<ID> defined = id -> this.KB.containsKey(id) || id.equals(Prototype.P_0.id) || definedOutside.contains(id);
+		for (PrototypeDefinition proto : protos) {
+			this.checkReferences(proto, defined);
+		}
+	}
+
+	private void addOutside(ID id, Set<ID> outside) {
+		if (!this.KB.containsKey(id) && !id.equals(Prototype.P_0.id)) {
+			outside.add(id);
+		}
+	}
+
+	/**
+	 * Check that the parent and the added values of the definition are
+	 * defined.
+	 */
+	private void checkReferences(PrototypeDefinition proto, Predicate<ID> defined) {
+		ID parent = proto.parent;
+		if (!defined.test(parent)) {
+			throw new Error("Parent of " + proto + " is not defined in the knowledge base.");
+		}
+		for (Entry<Property, ID> addition : proto.add.entries()) {
+			ID v = addition.getValue();
+			if (v.equals(Prototype.P_0.id)) {
+				throw new Error("Value for added property " + addition.getKey() + " refers to P0");
+			}
+
+			if (!defined.test(v)) {
+				throw new Error("Value for added property " + addition.getKey() + " of prototype " + proto + " refers to undefined prototype " + addition.getValue());
+			}
+		}
+	}
+
+	private void checkNotExternal(ID id) {
+		if (this.external.lookup(id) != null) {
+			throw new Error("Prototype with ID " + id + " defined twice.");
+		}
+	}
+
+	private void checkNotExternal(Collection<ID> ids) {
+		if (ids.isEmpty()) {
+			return;
+		}
+		Map<ID, Prototype> defined = this.external.isDefinedAll(ids);
+		for (ID id : ids) {
+			if (defined.containsKey(id)) {
+				throw new Error("Prototype with ID " + id + " defined twice.");
+			}
+		}
+	}
+
+	/**
+	 * Walk up from the given prototype until a grounded prototype is found,
+	 * and mark the branch as grounded. P_0 and prototypes defined externally
+	 * are grounded.
+	 * 
+	 * @throws Error
+	 *             if there is a cycle in the branch.
+	 */
+	private void checkGrounded(ID id, PrototypeDefinition def, Set<ID> grounded) {
+		ID currentID = id;
+		Set<ID> currentBranch = new HashSet<ID>();
+		PrototypeDefinition currentDef = def;
+		while (!grounded.contains(currentID)) {
+			if (!currentBranch.add(currentID)) {
+				throw new Error("Cycle detected in inheritance tree for " + currentDef);
+			}
+			currentID = currentDef.parent;
+			currentDef = this.KB.get(currentID);
+			if (currentDef == null) {
+				// P_0 or defined in the external KB, which is consistent.
+				break;
+			}
+		}
+		grounded.addAll(currentBranch);
+	}
+
+	/**
+	 * Lists smaller than this are not split further by
+	 * {@link #forEachParallel(ForkJoinPool, List, Consumer)}
+	 */
+	private static final int PARALLEL_THRESHOLD = 1024;
+
+	/**
+	 * Apply the action on all elements in parallel using the given pool. If
+	 * an action throws an {@link Error}, the remaining elements are skipped and
+	 * that {@link Error} is rethrown unchanged.
+	 */
+	private static <E> void forEachParallel(ForkJoinPool pool, List<E> elements, Consumer<E> action) {
+		AtomicReference<Error> failure = new AtomicReference<>();
+		pool.invoke(new RangeAction<>(elements, 0, elements.size(), action, failure));
+		Error e = failure.get();
+		if (e != null) {
+			throw e;
+		}
+	}
+
+	private static final class RangeAction<E> extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final List<E> elements;
+		private final int from;
+		private final int to;
+		private final Consumer<E> action;
+		private final AtomicReference<Error> failure;
+
+		RangeAction(List<E> elements, int from, int to, Consumer<E> action, AtomicReference<Error> failure) {
+			this.elements = elements;
+			this.from = from;
+			this.to = to;
+			this.action = action;
+			this.failure = failure;
+		}
+
+		@Override
+		protected void compute() {
+			if ((this.to - this.from) > KnowledgeBase.PARALLEL_THRESHOLD) {
+				int middle = (this.from + this.to) >>> 1;
+				ForkJoinTask.invokeAll(new RangeAction<>(this.elements, this.from, middle, this.action, this.failure), new RangeAction<>(this.elements, middle, this.to, this.action, this.failure));
+				return;
+			}
+			for (int i = this.from; (i < this.to) && (this.failure.get() == null); i++) {
+				try {
+					this.action.accept(this.elements.get(i));
+				} catch (Error e) {
+					this.failure.compareAndSet(null, e);
+				}
+			}
+		}
+	}
 
 	@Override
-	public Optional<? extends Prototype> isDefined(ID id) {
+	public PrototypeDefinition lookup(ID id) {
 		PrototypeDefinition prot = this.KB.get(id);
 		if (prot != null) {
-			return Optional.of(new Prototype(id, prot));
+			return prot;
 		}
 		if (id.equals(Prototype.P_0.id)) {
-			return KnowledgeBase.OptP_0;
+			return PrototypeDefinition.P_0;
 		}
-		return this.external.isDefined(id);
+		return this.external.lookup(id);
 	}
 
 	/**
 	 * get the map containing the actual prototype IDsand their definitions
 	 * 
+	 * The map is a copy of {@link #KB}, made on the first call, in the same
+	 * order. Use {@link #KB} to avoid the copy.
+	 * 
 	 * @return
 	 */
 	public ImmutableMap<ID, PrototypeDefinition> prototypes() {
-		return this.KB;
+		ImmutableMap<ID, PrototypeDefinition> copy = this.immutableKB;
+		if (copy == null) {
+			copy = ImmutableMap.copyOf(this.KB);
+			this.immutableKB = copy;
+		}
+		return copy;
 	}
 
 	/**
@@ -140,10 +494,19 @@ public class KnowledgeBase implements IFPKnowledgeBase {
 	 * 
 	 * @return
 	 */
-	public ImmutableCollection<PrototypeDefinition> prototypeDefs() {
+	public Collection<PrototypeDefinition> prototypeDefs() {
 		return this.KB.values();
 	}
 
+	/**
+	 * The {@link IKnowledgeBase} containing the data defined externally.
+	 * 
+	 * @return
+	 */
+	IKnowledgeBase external() {
+		return this.external;
+	}
+
 	@Override
 	public String toString() {
 		return "KnowledgeBase [KB=" + this.KB + "]";
@@ -151,23 +514,47 @@ public class KnowledgeBase implements IFPKnowledgeBase {
 
 	@Override
 	public Prototype computeFixPoint(ID id) {
-		Optional<? extends Prototype> ooriginal = this.isDefined(id);
-		Preconditions.checkArgument(ooriginal.isPresent());
-		Prototype original = ooriginal.get();
-		Deque<Prototype> branch = new LinkedList<Prototype>();
-		Prototype current = original;
-		while (!(Prototype.P_0.id.equals(current.id))) {
-			branch.addFirst(current);
-			current = this.isDefined(current.def.parent).get();
-		}
-		MutableChangeSet fixpointAdd = new MutableChangeSet();
-		for (Prototype prototype : branch) {
-			prototype.def.remove.removeFrom(fixpointAdd);
-			prototype.def.add.addTo(fixpointAdd);
-		}
-		AddChangeSet addCS = AddChangeSet.fromMutable(fixpointAdd);
+		Preconditions.checkArgument(this.lookup(id) != null);
+		// the branch from id up to the nearest cached ancestor, as parallel
+		// lists of IDs and their definitions.
+		List<ID> branchIDs = new ArrayList<>();
+		List<PrototypeDefinition> branchDefs = new ArrayList<>();
+		ID current = id;
+		AddChangeSet addCS = AddChangeSet.empty();
+		while (!(Prototype.P_0.id.equals(current))) {
+			AddChangeSet cached = this.fixPoints.getIfPresent(current);
+			if (cached != null) {
+				addCS = cached;
+				break;
+			}
+			PrototypeDefinition currentDef = this.lookup(current);
+			branchIDs.add(current);
+			branchDefs.add(currentDef);
+			current = currentDef.parent;
+		}
+		for (int i = branchIDs.size() - 1; i >= 0; i--) {
+			PrototypeDefinition currentDef = branchDefs.get(i);
+			addCS = addCS.derive(currentDef.remove, currentDef.add);
+			// only prototypes of this KB are cached, the external KB might
+			// change.
+			ID branchID = branchIDs.get(i);
+			if (this.KB.containsKey(branchID)) {
+				this.fixPoints.put(branchID, addCS);
+			}
+		}
 		PrototypeDefinition def = PrototypeDefinition.create(Prototype.P_0, RemoveChangeSet.empty(), addCS);
-		return new Prototype(original.id, def);
+		return new Prototype(id, def);
+	}
+
+	/**
+	 * Statistics of the cache used by {@link #computeFixPoint(ID)}. On a miss,
+	 * the fixpoint is computed starting from the nearest ancestor which is in
+	 * the cache and all prototypes of this KB on the branch are added to it.
+	 * 
+	 * @return
+	 */
+	public CacheStats fixPointCacheStats() {
+		return this.fixPoints.stats();
 	}
 
 	/**
@@ -178,7 +565,7 @@ public class KnowledgeBase implements IFPKnowledgeBase {
 	 *         base in fixpoint form.
 	 */
 	public KnowledgeBase computeFixPoint() {
-		Builder b = new Builder(this.external);
+		Builder b = new Builder(this.external).setFixPointCacheWeight(this.fixPointCacheWeight);
 		// this is optimized by re-using paths in the derivation.
 		HashMap<ID, AddChangeSet> done = new HashMap<ID, AddChangeSet>();
 		// ground with P_0
@@ -193,7 +580,7 @@ public class KnowledgeBase implements IFPKnowledgeBase {
 				// base. ie. externally defined things.
 				while (!(done.containsKey(current.id))) {
 					branch.addFirst(current);
-					current = this.isDefined(current.def.parent).get();
+					current = new Prototype(current.def.parent, this.lookup(current.def.parent));
 				}
 				// invariant: we now pop the things form the stack.
 				// We know that at each stage the fixpoint of the parent has
@@ -202,12 +589,9 @@ public class KnowledgeBase implements IFPKnowledgeBase {
 				while (!branch.isEmpty()) {
 					current = branch.removeFirst();
 					// the fix point is whatever the parent fix point has, minus
-					// what gets removed, plus what gets added
-					// take what the parent had and copy.
-					MutableChangeSet fpParent = done.get(current.def.parent).mutableCopy();
-					current.def.remove.removeFrom(fpParent);
-					current.def.add.addTo(fpParent);
-					AddChangeSet addCS = AddChangeSet.fromMutable(fpParent);
+					// what gets removed, plus what gets added. The parts the
+					// parent had which do not change are shared.
+					AddChangeSet addCS = done.get(current.def.parent).derive(current.def.remove, current.def.add);
 					done.put(current.id, addCS);
 					PrototypeDefinition def = PrototypeDefinition.create(Prototype.P_0, RemoveChangeSet.empty(), addCS);
 					// FIXME we just take the same ID. This seems fine, but is
@@ -219,6 +603,300 @@ public class KnowledgeBase implements IFPKnowledgeBase {
 		return b.build(false);
 	}
 
+	/**
+	 * Compute the fixpoint of every prototype in this {@link KnowledgeBase}
+	 * using the given pool and return the result as a new (independent)
+	 * {@link KnowledgeBase}. The result is the same as for
+	 * {@link #computeFixPoint()}.
+	 * 
+	 * As soon as the fixpoint of a prototype is computed, the computation of
+	 * the fixpoints of its children is forked, such that idle threads can steal
+	 * subtrees of the inheritance DAG.
+	 * 
+	 * @param pool
+	 *            The pool used for the computation, for example
+	 *            {@link ForkJoinPool#commonPool()}
+	 * @return A new knowledge base containing all prototypes of this knowledge
+	 *         base in fixpoint form.
+	 */
+	public KnowledgeBase computeFixPoint(ForkJoinPool pool) {
+		List<Entry<ID, PrototypeDefinition>> protos = new ArrayList<>(this.KB.entrySet());
+		int size = protos.size();
+		// index of each prototype, by handle.
+		int maxHandle = -1;
+		for (ID id : this.KB.keySet()) {
+			maxHandle = Math.max(maxHandle, id.handle());
+		}
+		int[] indexByHandle = new int[maxHandle + 1];
+		Arrays.fill(indexByHandle, -1);
+		for (int i = 0; i < size; i++) {
+			indexByHandle[protos.get(i).getKey().handle()] = i;
+		}
+		// the children of each prototype in CSR form, roots derive from a
+		// prototype outside this KB.
+		int[] parentIndex = new int[size];
+		int[] childOffsets = new int[size + 1];
+		List<Integer> roots = new ArrayList<>();
+		for (int i = 0; i < size; i++) {
+			int parentHandle = protos.get(i).getValue().parent.handle();
+			int parent = parentHandle < indexByHandle.length ? indexByHandle[parentHandle] : -1;
+			parentIndex[i] = parent;
+			if (parent < 0) {
+				roots.add(i);
+			} else {
+				childOffsets[parent + 1]++;
+			}
+		}
+		for (int i = 0; i < size; i++) {
+			childOffsets[i + 1] += childOffsets[i];
+		}
+		int[] children = new int[childOffsets[size]];
+		int[] fill = Arrays.copyOf(childOffsets, size);
+		for (int i = 0; i < size; i++) {
+			if (parentIndex[i] >= 0) {
+				children[fill[parentIndex[i]]++] = i;
+			}
+		}
+
+		AddChangeSet[] results = new AddChangeSet[size];
+		pool.invoke(new FixPointTask(null, -1, null, new FixPointDAG(protos, childOffsets, children, roots, results)));
+
+		Map<ID, PrototypeDefinition> fixpoints = new HashMap<>(size * 2);
+		for (int i = 0; i < size; i++) {
+			fixpoints.put(protos.get(i).getKey(), PrototypeDefinition.create(Prototype.P_0, RemoveChangeSet.empty(), results[i]));
+		}
+		return new KnowledgeBase(PrototypeMap.copyOf(fixpoints), this.external, this.fixPointCacheWeight, false);
+	}
+
+	/**
+	 * Compute the fixpoint of every prototype in this {@link KnowledgeBase},
+	 * reusing the fixpoints computed for an earlier revision of it. Only the
+	 * fixpoints of the changed prototypes and their descendants are
+	 * recomputed, the others are shared with the previous fixpoint. The result
+	 * is the same as for {@link #computeFixPoint()}. The index of the children
+	 * is created on first use, a {@link KnowledgeBase} built on another one
+	 * derives it from the index of its base. From then on, the time needed
+	 * only depends on the number of affected prototypes, not on the size of
+	 * the {@link KnowledgeBase}.
+	 * 
+	 * @param previousFixPoint
+	 *            The result of {@link #computeFixPoint()} for the earlier
+	 *            revision
+	 * @param changed
+	 *            The IDs of the prototypes which have been added, replaced or
+	 *            removed since the earlier revision.
+	 * @return A new knowledge base containing all prototypes of this knowledge
+	 *         base in fixpoint form.
+	 * @throws IllegalArgumentException
+	 *             if the result does not have as many prototypes as this
+	 *             knowledge base, which happens when an added or removed
+	 *             prototype is missing from changed.
+	 */
+	public KnowledgeBase computeFixPoint(KnowledgeBase previousFixPoint, Set<ID> changed) {
+		ChildrenIndex children = this.childrenIndex();
+		// all prototypes which need a new fixpoint
+		Set<ID> affected = new HashSet<>();
+		Set<ID> removed = new HashSet<>();
+		Deque<ID> todo = new ArrayDeque<>();
+		for (ID id : changed) {
+			if (this.KB.containsKey(id)) {
+				todo.add(id);
+			} else {
+				removed.add(id);
+			}
+		}
+		while (!todo.isEmpty()) {
+			ID id = todo.removeFirst();
+			if (affected.add(id)) {
+				children.forEachChild(id.handle(), child -> todo.add(ID.byHandle(child)));
+			}
+		}
+
+		HashMap<ID, AddChangeSet> done = new HashMap<ID, AddChangeSet>();
+		Map<ID, PrototypeDefinition> recomputed = new HashMap<>();
+		for (ID id : affected) {
+			// walk up to an ancestor with a known fixpoint.
+			Deque<Prototype> branch = new ArrayDeque<>();
+			Prototype current = new Prototype(id, this.KB.get(id));
+			AddChangeSet fixpoint;
+			while (true) {
+				AddChangeSet known = done.get(current.id);
+				if (known != null) {
+					fixpoint = known;
+					break;
+				}
+				if (!affected.contains(current.id)) {
+					if (this.KB.containsKey(current.id)) {
+						PrototypeDefinition previous = previousFixPoint.KB.get(current.id);
+						Preconditions.checkArgument(previous != null, "The changed IDs must include all added and removed prototypes");
+						fixpoint = previous.add;
+					} else {
+						fixpoint = this.computeFixPoint(current.id).def.add;
+					}
+					break;
+				}
+				branch.addFirst(current);
+				current = new Prototype(current.def.parent, this.lookup(current.def.parent));
+			}
+			for (Prototype prototype : branch) {
+				fixpoint = fixpoint.derive(prototype.def.remove, prototype.def.add);
+				done.put(prototype.id, fixpoint);
+			}
+			recomputed.put(id, PrototypeDefinition.create(Prototype.P_0, RemoveChangeSet.empty(), done.get(id)));
+		}
+		// the unaffected fixpoints are shared with the previous one.
+		PrototypeMap fixpoints = PrototypeMap.copyOf(previousFixPoint.KB).with(recomputed, removed);
+		Preconditions.checkArgument(fixpoints.size() == this.KB.size(), "The changed IDs must include all added and removed prototypes");
+		KnowledgeBase result = new KnowledgeBase(fixpoints, this.external, this.fixPointCacheWeight, false);
+		result.deriveIndexes(previousFixPoint, recomputed, removed);
+		return result;
+	}
+
+	private ChildrenIndex childrenIndex() {
+		ChildrenIndex index = this.children;
+		if (index == null) {
+			index = ChildrenIndex.of(this.KB);
+			this.children = index;
+		}
+		return index;
+	}
+
+	/**
+	 * The prototypes in this KB which have the given ID as their parent. The
+	 * ID itself can be defined in this KB or elsewhere. An index of the
+	 * children is created on first use.
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public List<ID> children(ID id) {
+		int[] handles = this.childrenIndex().children(id.internedHandle());
+		ImmutableList.Builder<ID> children = ImmutableList.builder();
+		for (int handle : handles) {
+			children.add(ID.byHandle(handle));
+		}
+		return children.build();
+	}
+
+	/**
+	 * All prototypes in this KB which derive directly or indirectly from the
+	 * given ID, in depth first order. The stream is lazy, only the part of the
+	 * subtree which is consumed is visited.
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public Stream<ID> descendants(ID id) {
+		ChildrenIndex index = this.childrenIndex();
+		PrimitiveIterator.OfInt handles = new PrimitiveIterator.OfInt() {
+			private int[] stack = index.children(id.internedHandle());
+			private int top = this.stack.length;
+
+			@Override
+			public boolean hasNext() {
+				return this.top > 0;
+			}
+
+			@Override
+			public int nextInt() {
+				if (this.top == 0) {
+					throw new NoSuchElementException();
+				}
+				int next = this.stack[--this.top];
+				index.forEachChild(next, child -> {
+					if (this.top == this.stack.length) {
+						this.stack = Arrays.copyOf(this.stack, Math.max(8, this.top * 2));
+					}
+					this.stack[this.top++] = child;
+				});
+				return next;
+			}
+		};
+		Spliterator.OfInt spliterator = Spliterators.spliterator(handles, index.descendantCount(id.internedHandle()), Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.IMMUTABLE);
+		return StreamSupport.intStream(spliterator, false).mapToObj(ID::byHandle);
+	}
+
+	/**
+	 * The number of prototypes in this KB which derive directly or indirectly
+	 * from the given ID. The ID itself is not counted.
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public int subtreeSize(ID id) {
+		return this.childrenIndex().descendantCount(id.internedHandle());
+	}
+
+	/**
+	 * The inheritance DAG of the prototypes in this KB, shared by all
+	 * {@link FixPointTask}s of one computation.
+	 */
+	private static final class FixPointDAG {
+		final List<Entry<ID, PrototypeDefinition>> protos;
+		final int[] childOffsets;
+		final int[] children;
+		final List<Integer> roots;
+		final AddChangeSet[] results;
+
+		FixPointDAG(List<Entry<ID, PrototypeDefinition>> protos, int[] childOffsets, int[] children, List<Integer> roots, AddChangeSet[] results) {
+			this.protos = protos;
+			this.childOffsets = childOffsets;
+			this.children = children;
+			this.roots = roots;
+			this.results = results;
+		}
+	}
+
+	/**
+	 * Computes the fixpoint of one prototype and then forks itself for each of
+	 * its children. The task without a prototype (index -1) forks the roots.
+	 */
+	private final class FixPointTask extends CountedCompleter<Void> {
+		private static final long serialVersionUID = 1L;
+		private final int index;
+		private final AddChangeSet parentFixPoint;
+		private final FixPointDAG dag;
+
+		FixPointTask(FixPointTask completer, int index, AddChangeSet parentFixPoint, FixPointDAG dag) {
+			super(completer);
+			this.index = index;
+			this.parentFixPoint = parentFixPoint;
+			this.dag = dag;
+		}
+
+		private void fork(int child, AddChangeSet fixpoint) {
+			this.addToPendingCount(1);
+			new FixPointTask(this, child, fixpoint, this.dag).fork();
+		}
+
+		@Override
+		public void compute() {
+			if (this.index < 0) {
+				// many roots typically share the same external parent, its
+				// fixpoint is computed only once.
+				Map<ID, AddChangeSet> parentFixPoints = new HashMap<>();
+				parentFixPoints.put(Prototype.P_0.id, AddChangeSet.empty());
+				for (int root : this.dag.roots) {
+					ID parent = this.dag.protos.get(root).getValue().parent;
+					AddChangeSet parentFP = parentFixPoints.get(parent);
+					if (parentFP == null) {
+						parentFP = KnowledgeBase.this.computeFixPoint(parent).def.add;
+						parentFixPoints.put(parent, parentFP);
+					}
+					this.fork(root, parentFP);
+				}
+			} else {
+				PrototypeDefinition def = this.dag.protos.get(this.index).getValue();
+				AddChangeSet fixpoint = this.parentFixPoint.derive(def.remove, def.add);
+				this.dag.results[this.index] = fixpoint;
+				for (int i = this.dag.childOffsets[this.index]; i < this.dag.childOffsets[this.index + 1]; i++) {
+					this.fork(this.dag.children[i], fixpoint);
+				}
+			}
+			this.tryComplete();
+		}
+	}
+
 	/**
 	 * Create a new empty knowledge base with the given {@link IKnowledgeBase}.
 	 * This is, for instance, useful for if you want to compute fixpoints in the
@@ -228,7 +906,7 @@ public class KnowledgeBase implements IFPKnowledgeBase {
 	 * @return
 	 */
 	public static KnowledgeBase empty(IKnowledgeBase external) {
-		return new KnowledgeBase(ImmutableMap.<ID, PrototypeDefinition> of(), external);
+		return new KnowledgeBase(PrototypeMap.EMPTY, external);
 	}
 
 	// private static final KnowledgeBase EMPTY = new
@@ -245,12 +923,22 @@ public class KnowledgeBase implements IFPKnowledgeBase {
 	 */
 	public static class Builder {
 
-		// private KnowledgeBase base;
-		// private List<Prototype> adds = new ArrayList<Prototype>();
-		// private List<ID> removals = new ArrayList<ID>();
-
-		private final Map<ID, PrototypeDefinition> prototypez;
+		/**
+		 * The builder is an overlay on the base. The base is consistent, so
+		 * only the changes need to be checked when building.
+		 */
+		private final KnowledgeBase base;
+		/**
+		 * Prototypes added, which might replace one from the base.
+		 */
+		private final Map<ID, PrototypeDefinition> added = new HashMap<>();
+		/**
+		 * IDs of prototypes of the base which have been removed, they might
+		 * have been added again.
+		 */
+		private final Set<ID> removed = new HashSet<>();
 		private final IKnowledgeBase external;
+		private long fixPointCacheWeight;
 
 		/**
 		 * Create a builder for a {@link KnowledgeBase} based on the given
@@ -271,8 +959,25 @@ public class KnowledgeBase implements IFPKnowledgeBase {
 		 * @param base
 		 */
 		public Builder(KnowledgeBase base) {
-			this.prototypez = new HashMap<>(base.KB);
+			this.base = base;
 			this.external = base.external;
+			this.fixPointCacheWeight = base.fixPointCacheWeight;
+		}
+
+		/**
+		 * Set the maximum total weight of the fixpoints cached by
+		 * {@link KnowledgeBase#computeFixPoint(ID)} in the built
+		 * {@link KnowledgeBase}. The default is the weight of the base, or
+		 * {@link KnowledgeBase#DEFAULT_FIXPOINT_CACHE_WEIGHT}. 0 disables the
+		 * cache.
+		 * 
+		 * @param weight
+		 * @return the builder.
+		 */
+		public Builder setFixPointCacheWeight(long weight) {
+			Preconditions.checkArgument(weight >= 0, "The cache weight must not be negative");
+			this.fixPointCacheWeight = weight;
+			return this;
 		}
 
 		/**
@@ -284,10 +989,10 @@ public class KnowledgeBase implements IFPKnowledgeBase {
 		 *             in case the given prototype is already defined.
 		 */
 		public Builder add(Prototype p) {
-			if (this.prototypez.containsKey(p.id) || this.external.isDefined(p.id).isPresent()) {
+			if (this.buildKnowledgeBaseContains(p.id) || (this.external.lookup(p.id) != null)) {
 				throw new Error("A prototype with ID " + p.id + " already exists.");
 			}
-			this.prototypez.put(p.id, p.def);
+			this.added.put(p.id, p.def);
 			return this;
 		}
 
@@ -316,10 +1021,13 @@ public class KnowledgeBase implements IFPKnowledgeBase {
 		 *             external {@link IKnowledgeBase}
 		 */
 		public Builder remove(ID p) {
-			if (this.external.isDefined(p).isPresent()) {
+			if (this.external.lookup(p) != null) {
 				throw new Error("Cannot remove prototype with ID " + p + " because it is defined externally.");
 			}
-			this.prototypez.remove(p);
+			this.added.remove(p);
+			if (this.base.KB.containsKey(p)) {
+				this.removed.add(p);
+			}
 			return this;
 		}
 
@@ -331,7 +1039,7 @@ public class KnowledgeBase implements IFPKnowledgeBase {
 		 * @return
 		 */
 		public boolean buildKnowledgeBaseContains(ID p) {
-			return this.prototypez.containsKey(p);
+			return this.added.containsKey(p) || (this.base.KB.containsKey(p) && !this.removed.contains(p));
 		}
 
 		/**
@@ -345,7 +1053,37 @@ public class KnowledgeBase implements IFPKnowledgeBase {
 		 *             in case the constructed knowledge base is not consistent.
 		 */
 		public KnowledgeBase build() {
-			return this.build(true);
+			if (this.base.KB.isEmpty()) {
+				return this.build(true);
+			}
+			KnowledgeBase kb = this.build(false);
+			if (kb != this.base) {
+				kb.checkChanges(this.base, this.added.keySet(), this.removed);
+				kb.deriveIndexes(this.base, this.added, this.removed);
+			}
+			return kb;
+		}
+
+		/**
+		 * Construct the {@link KnowledgeBase} like {@link #build()}, but check
+		 * the consistency in parallel using the given pool. The same problems
+		 * are detected as with {@link #build()}. If the knowledge base has
+		 * several problems, the one reported might differ.
+		 * 
+		 * @param pool
+		 *            The pool used for the consistency check, for example
+		 *            {@link ForkJoinPool#commonPool()}
+		 * @return The built {@link KnowledgeBase}
+		 * @throws Error
+		 *             in case the constructed knowledge base is not consistent.
+		 */
+		public KnowledgeBase build(ForkJoinPool pool) {
+			KnowledgeBase kb = this.build(false);
+			if (kb != this.base) {
+				kb.checkConsistency(pool);
+				kb.deriveIndexes(this.base, this.added, this.removed);
+			}
+			return kb;
 		}
 
 		/**
@@ -366,7 +1104,89 @@ public class KnowledgeBase implements IFPKnowledgeBase {
 		 *            should consistency be checked
 		 */
 		private KnowledgeBase build(boolean checkConsistency) {
-			return new KnowledgeBase(ImmutableMap.copyOf(this.prototypez), this.external, checkConsistency);
+			if (this.added.isEmpty() && this.removed.isEmpty() && (this.fixPointCacheWeight == this.base.fixPointCacheWeight)) {
+				return this.base;
+			}
+			// only the changes are applied, the rest is shared with the base.
+			PrototypeMap prototypes = PrototypeMap.copyOf(this.base.KB).with(this.added, this.removed);
+			return new KnowledgeBase(prototypes, this.external, this.fixPointCacheWeight, checkConsistency);
+		}
+
+		/**
+		 * Construct a {@link ColumnarKnowledgeBase} with the content of this
+		 * builder. The consistency is checked as in {@link #build()}. The
+		 * constructed {@link ColumnarKnowledgeBase} is independent of the
+		 * builder.
+		 * 
+		 * The columns are filled straight from the builder. The check runs on
+		 * a view of the builder, so no {@link KnowledgeBase} is built next to
+		 * the columns.
+		 * 
+		 * @return The built {@link ColumnarKnowledgeBase}
+		 * @throws Error
+		 *             in case the constructed knowledge base is not consistent.
+		 */
+		public ColumnarKnowledgeBase buildColumnar() {
+			KnowledgeBase view = new KnowledgeBase(new BuilderView(), this.external, 0, false);
+			if (this.base.KB.isEmpty()) {
+				view.checkConsistency();
+			} else {
+				view.checkChanges(this.base, this.added.keySet(), this.removed);
+			}
+			return ColumnarKnowledgeBase.of(view.KB, this.external);
+		}
+
+		/**
+		 * The prototypes of the base without the removed ones, plus the added
+		 * ones. The view reflects later changes to the builder.
+		 */
+		private final class BuilderView extends AbstractMap<ID, PrototypeDefinition> {
+
+			private boolean fromBase(ID id) {
+				return !Builder.this.removed.contains(id) && !Builder.this.added.containsKey(id);
+			}
+
+			@Override
+			public PrototypeDefinition get(Object key) {
+				PrototypeDefinition def = Builder.this.added.get(key);
+				if ((def != null) || Builder.this.removed.contains(key)) {
+					return def;
+				}
+				return Builder.this.base.KB.get(key);
+			}
+
+			@Override
+			public boolean containsKey(Object key) {
+				return this.get(key) != null;
+			}
+
+			@Override
+			public Set<Entry<ID, PrototypeDefinition>> entrySet() {
+				return new AbstractSet<Entry<ID, PrototypeDefinition>>() {
+
+					@Override
+					public Iterator<Entry<ID, PrototypeDefinition>> iterator() {
+						Iterator<Entry<ID, PrototypeDefinition>> fromBase = Iterators.filter(Builder.this.base.KB.entrySet().iterator(), proto -> BuilderView.this.fromBase(proto.getKey()));
+						return Iterators.unmodifiableIterator(Iterators.concat(fromBase, Builder.this.added.entrySet().iterator()));
+					}
+
+					@Override
+					public int size() {
+						int replaced = 0;
+						for (ID id : Builder.this.removed) {
+							if (Builder.this.base.KB.containsKey(id) && !Builder.this.added.containsKey(id)) {
+								replaced++;
+							}
+						}
+						for (ID id : Builder.this.added.keySet()) {
+							if (Builder.this.base.KB.containsKey(id)) {
+								replaced++;
+							}
+						}
+						return (Builder.this.base.KB.size() - replaced) + Builder.this.added.size();
+					}
+				};
+			}
 		}
 	}
 
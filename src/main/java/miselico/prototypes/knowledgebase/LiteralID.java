@@ -0,0 +1,206 @@
+package miselico.prototypes.knowledgebase;
+
+/**
+ * The {@link ID} of an integer or string literal, as created by
+ * {@link PredefinedKB#get(long)} and {@link PredefinedKB#get(String)}. Instead
+ * of the IRI, it keeps the long or the raw string. The IRI is only formatted
+ * when {@link #toString()} is called, and the ID is only added to the global
+ * dictionary when {@link #handle()} is called. Literals which are only looked
+ * up or passed around are not interned and can be garbage collected.
+ *
+ * Storage is not keyed by value: a literal used as a value in a knowledge base
+ * is interned like any other stored {@link ID}, as the IRI it stands for, and
+ * is never released. A knowledge base with many distinct literals keeps all of
+ * their IRIs in the dictionary for the lifetime of the JVM, also after the
+ * knowledge base itself is gone.
+ *
+ * The IRI is the same as before literals got their own type, i.e.
+ * {@code value:integer#} followed by the decimal value, or
+ * {@code value:string#} followed by the value encoded with
+ * {@link java.net.URLEncoder} in UTF-8. The hash code is the hash code of that
+ * IRI, computed without building it. A literal ID is equal to the ID created
+ * with {@link ID#of(String)} for the same IRI, so serialized literals read back
+ * as equal IDs.
+ *
+ * @author michael
+ *
+ */
+final class LiteralID extends ID {
+
+	static final String INTEGER_BASE = "value:integer#";
+	static final String STRING_BASE = "value:string#";
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	/**
+	 * The raw string for string literals, null for integer literals.
+	 */
+	private final String text;
+	/**
+	 * The value of integer literals.
+	 */
+	private final long number;
+
+	/**
+	 * The IRI, once formatted.
+	 */
+	private volatile String iri;
+
+	private LiteralID(long number) {
+		super(LiteralID.integerHash(number));
+		this.text = null;
+		this.number = number;
+	}
+
+	private LiteralID(String text) {
+		super(LiteralID.encode(text, null));
+		this.text = text;
+		this.number = 0;
+	}
+
+	static LiteralID ofLong(long number) {
+		return new LiteralID(number);
+	}
+
+	static LiteralID ofString(String text) {
+		return new LiteralID(text);
+	}
+
+	boolean isInteger() {
+		return this.text == null;
+	}
+
+	/**
+	 * The value of an integer literal
+	 */
+	long longValue() {
+		return this.number;
+	}
+
+	/**
+	 * The value of a string literal, null for integer literals.
+	 */
+	String stringValue() {
+		return this.text;
+	}
+
+	/**
+	 * The hash code of {@code INTEGER_BASE + Long.toString(number)}.
+	 */
+	private static int integerHash(long number) {
+		int h = LiteralID.INTEGER_BASE.hashCode();
+		// work with the non-positive magnitude, such that Long.MIN_VALUE works
+		long negative = number;
+		if (number < 0) {
+			h = (31 * h) + '-';
+		} else {
+			negative = -number;
+		}
+		long power = 1;
+		while ((negative / power) <= -10) {
+			power *= 10;
+		}
+		for (; power != 0; power /= 10) {
+			h = (31 * h) + (char) ('0' - ((negative / power) % 10));
+		}
+		return h;
+	}
+
+	/**
+	 * Encode the text like {@link java.net.URLEncoder} in UTF-8, appending the
+	 * IRI to out unless it is null.
+	 *
+	 * @return the hash code of {@code STRING_BASE} followed by the encoded
+	 *         text.
+	 */
+	private static int encode(String text, StringBuilder out) {
+		int h = LiteralID.STRING_BASE.hashCode();
+		if (out != null) {
+			out.append(LiteralID.STRING_BASE);
+		}
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9')) || (c == '.') || (c == '-') || (c == '*') || (c == '_')) {
+				h = LiteralID.append(h, c, out);
+				continue;
+			}
+			if (c == ' ') {
+				h = LiteralID.append(h, '+', out);
+				continue;
+			}
+			int codePoint = c;
+			if (Character.isHighSurrogate(c) && (i + 1 < text.length()) && Character.isLowSurrogate(text.charAt(i + 1))) {
+				codePoint = Character.toCodePoint(c, text.charAt(++i));
+			} else if (Character.isSurrogate(c)) {
+				// unpaired surrogates are encoded as '?'
+				codePoint = '?';
+			}
+			// the UTF-8 bytes, each as %XX
+			if (codePoint < 0x80) {
+				h = LiteralID.appendByte(h, codePoint, out);
+			} else if (codePoint < 0x800) {
+				h = LiteralID.appendByte(h, 0xC0 | (codePoint >> 6), out);
+				h = LiteralID.appendByte(h, 0x80 | (codePoint & 0x3F), out);
+			} else if (codePoint < 0x10000) {
+				h = LiteralID.appendByte(h, 0xE0 | (codePoint >> 12), out);
+				h = LiteralID.appendByte(h, 0x80 | ((codePoint >> 6) & 0x3F), out);
+				h = LiteralID.appendByte(h, 0x80 | (codePoint & 0x3F), out);
+			} else {
+				h = LiteralID.appendByte(h, 0xF0 | (codePoint >> 18), out);
+				h = LiteralID.appendByte(h, 0x80 | ((codePoint >> 12) & 0x3F), out);
+				h = LiteralID.appendByte(h, 0x80 | ((codePoint >> 6) & 0x3F), out);
+				h = LiteralID.appendByte(h, 0x80 | (codePoint & 0x3F), out);
+			}
+		}
+		return h;
+	}
+
+	private static int appendByte(int h, int b, StringBuilder out) {
+		h = LiteralID.append(h, '%', out);
+		h = LiteralID.append(h, LiteralID.HEX[b >> 4], out);
+		return LiteralID.append(h, LiteralID.HEX[b & 0xF], out);
+	}
+
+	private static int append(int h, char c, StringBuilder out) {
+		if (out != null) {
+			out.append(c);
+		}
+		return (31 * h) + c;
+	}
+
+	@Override
+	public String toString() {
+		String formatted = this.iri;
+		if (formatted == null) {
+			if (this.isInteger()) {
+				formatted = LiteralID.INTEGER_BASE + this.number;
+			} else {
+				StringBuilder b = new StringBuilder(LiteralID.STRING_BASE.length() + this.text.length());
+				LiteralID.encode(this.text, b);
+				formatted = b.toString();
+			}
+			this.iri = formatted;
+		}
+		return formatted;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof ID) || (this.hashCode() != obj.hashCode())) {
+			return false;
+		}
+		if (obj instanceof LiteralID) {
+			LiteralID other = (LiteralID) obj;
+			if (this.isInteger()) {
+				return other.isInteger() && (this.number == other.number);
+			}
+			// unpaired surrogates and '?' have the same IRI
+			return (other.text != null) && (this.text.equals(other.text) || this.toString().equals(other.toString()));
+		}
+		// an ID created from the IRI
+		return this.toString().equals(obj.toString());
+	}
+}
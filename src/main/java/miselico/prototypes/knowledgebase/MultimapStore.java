@@ -0,0 +1,89 @@
+package miselico.prototypes.knowledgebase;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map.Entry;
+import java.util.function.BiConsumer;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+
+/**
+ * A {@link ChangeSetStore} which keeps the {@link ID}s themselves instead of
+ * their handles, used for definitions read from a
+ * {@link SnapshotKnowledgeBase}. Creating and reading the store does not
+ * intern the values, so a definition which is only looked up does not add its
+ * values to the global dictionary. Only the operations which work on handles,
+ * {@link #forEachHandles(HandleVisitor)}, {@link #addTo(MutableChangeSet)} and
+ * {@link #removeFrom(MutableChangeSet)}, intern them.
+ *
+ * @author michael
+ *
+ */
+final class MultimapStore extends ChangeSetStore {
+
+	private final ImmutableSetMultimap<Property, ID> pairs;
+
+	MultimapStore(ImmutableSetMultimap<Property, ID> pairs) {
+		this.pairs = pairs;
+	}
+
+	@Override
+	ImmutableSet<ID> get(Property p) {
+		return this.pairs.get(p);
+	}
+
+	@Override
+	ImmutableSet<Property> properties() {
+		return this.pairs.keySet();
+	}
+
+	@Override
+	int size() {
+		return this.pairs.size();
+	}
+
+	@Override
+	void forEach(BiConsumer<? super Property, ? super ID> action) {
+		for (Entry<Property, ID> pair : this.pairs.entries()) {
+			action.accept(pair.getKey(), pair.getValue());
+		}
+	}
+
+	@Override
+	void forEachHandles(HandleVisitor visitor) {
+		for (Entry<Property, Collection<ID>> property : this.pairs.asMap().entrySet()) {
+			int[] values = new int[property.getValue().size()];
+			int i = 0;
+			for (ID value : property.getValue()) {
+				values[i++] = value.handle();
+			}
+			Arrays.sort(values);
+			visitor.visit(property.getKey().handle(), values);
+		}
+	}
+
+	@Override
+	void addTo(MutableChangeSet mcs) {
+		for (Entry<Property, ID> pair : this.pairs.entries()) {
+			mcs.add(pair.getKey().handle(), pair.getValue().handle());
+		}
+	}
+
+	@Override
+	void removeFrom(MutableChangeSet mcs) {
+		for (Entry<Property, ID> pair : this.pairs.entries()) {
+			mcs.remove(pair.getKey().handle(), pair.getValue().handle());
+		}
+	}
+
+	@Override
+	ImmutableSetMultimap<Property, ID> asMultimap() {
+		return this.pairs;
+	}
+
+	@Override
+	public int hashCode() {
+		return this.pairs.hashCode();
+	}
+}
@@ -1,48 +1,222 @@
 package miselico.prototypes.knowledgebase;
 
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
+import java.util.Arrays;
 
 /**
  * Normal changesets are immutable. When there is a need for a mutable
  * changeset, this one can be used. This does however not implement the
  * {@link ChangeSet} interface because it would violate the immutability
  * contract.
- * 
+ *
  * This class works together with {@link AddChangeSet#addTo(MutableChangeSet)},
  * {@link RemoveChangeSet#removeFrom(MutableChangeSet)},
  * {@link AddChangeSet#mutableCopy()}, and
  * {@link AddChangeSet#fromMutable(MutableChangeSet)}
- * 
+ *
+ * The pairs are kept as a sorted array of longs, each with the property handle
+ * in the upper and the value handle in the lower 32 bits. Adding or removing
+ * the pairs of a definition is a merge of two sorted arrays. The arrays are
+ * reused, so once an instance has grown, applying changes does not allocate.
+ * Use {@link #acquire()} and {@link #release()} to reuse an instance per
+ * thread.
+ *
  * @author michael
  */
 class MutableChangeSet {
 
+	private static final ThreadLocal<MutableChangeSet> pool = ThreadLocal.withInitial(MutableChangeSet::new);
+
+	/**
+	 * The sorted pairs of the changeset in the first size positions
+	 */
+	private long[] pairs = new long[16];
+	private int size = 0;
 	/**
-	 * The changes of the changeset
+	 * Buffer for merging, swapped with pairs.
 	 */
-	final Multimap<Property, ID> changes;
+	private long[] scratch = new long[16];
+	private boolean inUse = false;
 
 	/**
 	 * Create an empty {@link MutableChangeSet}
 	 */
 	MutableChangeSet() {
-		this.changes = HashMultimap.create();
 	}
 
 	/**
-	 * create a {@link MutableChangeSet} which contains a copy of the given
-	 * source
-	 * 
-	 * @param source
-	 *            the initial changes to be added to this set. The set will be
-	 *            copied.
+	 * Get an empty {@link MutableChangeSet} for temporary use by the current
+	 * thread. Must be given back using {@link #release()}. If the instance of
+	 * this thread is in use already, a new one is returned.
+	 */
+	static MutableChangeSet acquire() {
+		MutableChangeSet pooled = MutableChangeSet.pool.get();
+		if (pooled.inUse) {
+			return new MutableChangeSet();
+		}
+		pooled.inUse = true;
+		pooled.size = 0;
+		return pooled;
+	}
+
+	/**
+	 * Give an instance obtained from {@link #acquire()} back. The instance
+	 * must not be used afterwards.
+	 */
+	void release() {
+		this.inUse = false;
+	}
+
+	private static long pair(int property, int value) {
+		return ((long) property << 32) | value;
+	}
+
+	private static int property(long pair) {
+		return (int) (pair >>> 32);
+	}
+
+	private void ensureScratch(int capacity) {
+		if (this.scratch.length < capacity) {
+			this.scratch = new long[Math.max(capacity, this.scratch.length * 2)];
+		}
+	}
+
+	private void swap(int newSize) {
+		long[] old = this.pairs;
+		this.pairs = this.scratch;
+		this.scratch = old;
+		this.size = newSize;
+	}
+
+	/**
+	 * The position of the first pair with a key at least the given one.
+	 */
+	private int lowerBound(long key) {
+		int low = 0;
+		int high = this.size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (this.pairs[middle] < key) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	void add(int property, int value) {
+		long key = MutableChangeSet.pair(property, value);
+		int i = this.lowerBound(key);
+		if ((i < this.size) && (this.pairs[i] == key)) {
+			return;
+		}
+		if (this.size == this.pairs.length) {
+			this.pairs = Arrays.copyOf(this.pairs, this.size * 2);
+		}
+		System.arraycopy(this.pairs, i, this.pairs, i + 1, this.size - i);
+		this.pairs[i] = key;
+		this.size++;
+	}
+
+	void remove(int property, int value) {
+		long key = MutableChangeSet.pair(property, value);
+		int i = this.lowerBound(key);
+		if ((i < this.size) && (this.pairs[i] == key)) {
+			System.arraycopy(this.pairs, i + 1, this.pairs, i, this.size - i - 1);
+			this.size--;
+		}
+	}
+
+	void removeAll(int property) {
+		int from = this.lowerBound(MutableChangeSet.pair(property, 0));
+		int to = from;
+		while ((to < this.size) && (MutableChangeSet.property(this.pairs[to]) == property)) {
+			to++;
+		}
+		if (to > from) {
+			System.arraycopy(this.pairs, to, this.pairs, from, this.size - to);
+			this.size -= to - from;
+		}
+	}
+
+	/**
+	 * Add the pairs of the parallel arrays, which are sorted by property and
+	 * then value.
 	 */
-	MutableChangeSet(Multimap<Property, ID> source) {
-		this.changes = HashMultimap.create(source);
+	void union(int[] properties, int[] values) {
+		int n = properties.length;
+		this.ensureScratch(this.size + n);
+		long[] result = this.scratch;
+		int i = 0, j = 0, k = 0;
+		while ((i < this.size) && (j < n)) {
+			long a = this.pairs[i];
+			long b = MutableChangeSet.pair(properties[j], values[j]);
+			if (a < b) {
+				result[k++] = a;
+				i++;
+			} else if (a > b) {
+				result[k++] = b;
+				j++;
+			} else {
+				result[k++] = a;
+				i++;
+				j++;
+			}
+		}
+		while (i < this.size) {
+			result[k++] = this.pairs[i++];
+		}
+		while (j < n) {
+			result[k++] = MutableChangeSet.pair(properties[j], values[j]);
+			j++;
+		}
+		this.swap(k);
 	}
 
-	// public MutableChangeSet copy() {
-	// return new MutableChangeSet(this.changes);
-	// }
+	/**
+	 * Remove the pairs of the parallel arrays, which are sorted by property
+	 * and then value. Done in place.
+	 */
+	void difference(int[] properties, int[] values) {
+		int n = properties.length;
+		int i = 0, j = 0, k = 0;
+		while (i < this.size) {
+			long a = this.pairs[i];
+			if (j == n) {
+				this.pairs[k++] = a;
+				i++;
+				continue;
+			}
+			long b = MutableChangeSet.pair(properties[j], values[j]);
+			if (a < b) {
+				this.pairs[k++] = a;
+				i++;
+			} else if (a > b) {
+				j++;
+			} else {
+				i++;
+				j++;
+			}
+		}
+		this.size = k;
+	}
+
+	/**
+	 * Create the immutable store with the current content.
+	 */
+	ChangeSetStore freeze() {
+		return SortedArrayStore.ofSortedKeys(this.pairs, this.size);
+	}
+
+	/**
+	 * The number of pairs
+	 */
+	int size() {
+		return this.size;
+	}
+
+	@Override
+	public String toString() {
+		return this.freeze().toString();
+	}
 }
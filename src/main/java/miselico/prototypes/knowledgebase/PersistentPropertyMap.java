@@ -0,0 +1,236 @@
+package miselico.prototypes.knowledgebase;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+
+/**
+ * A persistent {@link ChangeSetStore}, used for fixpoints. Deriving the
+ * fixpoint of a child from the fixpoint of its parent using
+ * {@link #derive(RemoveChangeSet, AddChangeSet)} only copies the paths to the
+ * properties the child changes, everything else is shared with the parent.
+ *
+ * The properties are kept in an {@link IntTrie} keyed by the property handle.
+ * The values of each property are a sorted array of ID handles, which is
+ * shared as a whole and copied when the property changes.
+ *
+ * @author michael
+ *
+ */
+final class PersistentPropertyMap extends ChangeSetStore {
+
+	static final PersistentPropertyMap EMPTY = new PersistentPropertyMap(IntTrie.<int[]> empty(), 0);
+
+	private final IntTrie<int[]> root;
+	private final int size;
+	/**
+	 * Cached hash code, 0 if not yet computed.
+	 */
+	private int hash;
+
+	private PersistentPropertyMap(IntTrie<int[]> root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	/**
+	 * Get the given store as a {@link PersistentPropertyMap}, copying it if it
+	 * has another representation.
+	 */
+	static PersistentPropertyMap copyOf(ChangeSetStore store) {
+		if (store instanceof PersistentPropertyMap) {
+			return (PersistentPropertyMap) store;
+		}
+		Editor e = new Editor(IntTrie.<int[]> empty(), store.size());
+		store.forEachHandles((property, values) -> e.root = e.root.put(property, values));
+		return e.build();
+	}
+
+	/**
+	 * Create the map which results from first applying the removals and then
+	 * the additions to this map. This map is not modified and shares all
+	 * unchanged properties with the result.
+	 */
+	PersistentPropertyMap derive(RemoveChangeSet remove, AddChangeSet add) {
+		if (remove.isEmpty() && add.isEmpty()) {
+			return this;
+		}
+		Editor e = new Editor(this.root, this.size);
+		for (Property property : remove.getRemoveAll()) {
+			int[] old = e.root.get(property.handle());
+			if (old != null) {
+				e.root = e.root.remove(property.handle());
+				e.size -= old.length;
+			}
+		}
+		remove.store.forEachHandles((property, values) -> {
+			int[] old = e.root.get(property);
+			if (old != null) {
+				int[] remaining = PersistentPropertyMap.difference(old, values);
+				if (remaining.length == 0) {
+					e.root = e.root.remove(property);
+				} else if (remaining != old) {
+					e.root = e.root.put(property, remaining);
+				}
+				e.size -= old.length - remaining.length;
+			}
+		});
+		add.store.forEachHandles((property, values) -> {
+			int[] old = e.root.get(property);
+			int[] union = old == null ? values : PersistentPropertyMap.union(old, values);
+			if (union != old) {
+				e.root = e.root.put(property, union);
+				e.size += union.length - (old == null ? 0 : old.length);
+			}
+		});
+		return e.build();
+	}
+
+	/**
+	 * The trie and size of a map under construction.
+	 */
+	private static final class Editor {
+		IntTrie<int[]> root;
+		int size;
+
+		Editor(IntTrie<int[]> root, int size) {
+			this.root = root;
+			this.size = size;
+		}
+
+		PersistentPropertyMap build() {
+			return new PersistentPropertyMap(this.root, this.size);
+		}
+	}
+
+	/**
+	 * The sorted union of a and b, or a itself if b is contained in a.
+	 */
+	private static int[] union(int[] a, int[] b) {
+		int[] result = new int[a.length + b.length];
+		int i = 0, j = 0, n = 0;
+		while ((i < a.length) && (j < b.length)) {
+			if (a[i] < b[j]) {
+				result[n++] = a[i++];
+			} else if (a[i] > b[j]) {
+				result[n++] = b[j++];
+			} else {
+				result[n++] = a[i++];
+				j++;
+			}
+		}
+		while (i < a.length) {
+			result[n++] = a[i++];
+		}
+		while (j < b.length) {
+			result[n++] = b[j++];
+		}
+		return n == a.length ? a : Arrays.copyOf(result, n);
+	}
+
+	/**
+	 * The sorted elements of a which are not in b, or a itself if there are no
+	 * such elements.
+	 */
+	private static int[] difference(int[] a, int[] b) {
+		int[] result = new int[a.length];
+		int i = 0, j = 0, n = 0;
+		while (i < a.length) {
+			if ((j == b.length) || (a[i] < b[j])) {
+				result[n++] = a[i++];
+			} else if (a[i] > b[j]) {
+				j++;
+			} else {
+				i++;
+				j++;
+			}
+		}
+		return n == a.length ? a : Arrays.copyOf(result, n);
+	}
+
+	private static ImmutableSet<ID> toIDs(int[] values) {
+		ImmutableSet.Builder<ID> ids = ImmutableSet.builder();
+		for (int value : values) {
+			ids.add(ID.byHandle(value));
+		}
+		return ids.build();
+	}
+
+	@Override
+	ImmutableSet<ID> get(Property p) {
+		int[] values = this.root.get(p.handle());
+		return values == null ? ImmutableSet.of() : PersistentPropertyMap.toIDs(values);
+	}
+
+	@Override
+	ImmutableSet<Property> properties() {
+		ImmutableSet.Builder<Property> properties = ImmutableSet.builder();
+		this.root.forEach((property, values) -> properties.add(Property.byHandle(property)));
+		return properties.build();
+	}
+
+	@Override
+	int size() {
+		return this.size;
+	}
+
+	@Override
+	void forEach(BiConsumer<? super Property, ? super ID> action) {
+		this.root.forEach((property, values) -> {
+			Property p = Property.byHandle(property);
+			for (int value : values) {
+				action.accept(p, ID.byHandle(value));
+			}
+		});
+	}
+
+	@Override
+	void forEachHandles(HandleVisitor visitor) {
+		this.root.forEach(visitor::visit);
+	}
+
+	@Override
+	void addTo(MutableChangeSet mcs) {
+		SortedArrayStore.of(this).addTo(mcs);
+	}
+
+	@Override
+	void removeFrom(MutableChangeSet mcs) {
+		SortedArrayStore.of(this).removeFrom(mcs);
+	}
+
+	@Override
+	ImmutableSetMultimap<Property, ID> asMultimap() {
+		ImmutableSetMultimap.Builder<Property, ID> multimap = ImmutableSetMultimap.builder();
+		this.forEach(multimap::put);
+		return multimap.build();
+	}
+
+	@Override
+	boolean sameContent(ChangeSetStore other) {
+		if ((other instanceof PersistentPropertyMap) && (((PersistentPropertyMap) other).root == this.root)) {
+			return true;
+		}
+		return super.sameContent(other);
+	}
+
+	@Override
+	public int hashCode() {
+		int h = this.hash;
+		if (h == 0) {
+			int[] sum = { 0 };
+			this.root.forEach((property, values) -> {
+				int valuesHash = 0;
+				for (int value : values) {
+					valuesHash += ID.byHandle(value).hashCode();
+				}
+				sum[0] += Property.byHandle(property).hashCode() ^ valuesHash;
+			});
+			h = sum[0];
+			this.hash = h;
+		}
+		return h;
+	}
+}
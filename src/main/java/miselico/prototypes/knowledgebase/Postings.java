@@ -0,0 +1,175 @@
+package miselico.prototypes.knowledgebase;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable set of prototype {@link ID}s, the result of a query on a
+ * {@link PropertyIndex}. The set is stored as a sorted array of ID handles,
+ * such that the set operations are linear merges.
+ *
+ * @author michael
+ *
+ */
+public final class Postings {
+
+	private static final Postings EMPTY = new Postings(new int[0]);
+
+	private final int[] handles;
+
+	/**
+	 * @param handles
+	 *            sorted and without duplicates, will not be copied
+	 */
+	Postings(int[] handles) {
+		this.handles = handles;
+	}
+
+	/**
+	 * An empty set
+	 *
+	 * @return
+	 */
+	public static Postings empty() {
+		return Postings.EMPTY;
+	}
+
+	/**
+	 * The IDs in both this and the other set.
+	 *
+	 * @param other
+	 * @return
+	 */
+	public Postings and(Postings other) {
+		int[] a = this.handles;
+		int[] b = other.handles;
+		int[] result = new int[Math.min(a.length, b.length)];
+		int i = 0, j = 0, n = 0;
+		while ((i < a.length) && (j < b.length)) {
+			if (a[i] < b[j]) {
+				i++;
+			} else if (a[i] > b[j]) {
+				j++;
+			} else {
+				result[n++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		return new Postings(Arrays.copyOf(result, n));
+	}
+
+	/**
+	 * The IDs in this or the other set.
+	 *
+	 * @param other
+	 * @return
+	 */
+	public Postings or(Postings other) {
+		int[] a = this.handles;
+		int[] b = other.handles;
+		int[] result = new int[a.length + b.length];
+		int i = 0, j = 0, n = 0;
+		while ((i < a.length) && (j < b.length)) {
+			if (a[i] < b[j]) {
+				result[n++] = a[i++];
+			} else if (a[i] > b[j]) {
+				result[n++] = b[j++];
+			} else {
+				result[n++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		while (i < a.length) {
+			result[n++] = a[i++];
+		}
+		while (j < b.length) {
+			result[n++] = b[j++];
+		}
+		return new Postings(Arrays.copyOf(result, n));
+	}
+
+	/**
+	 * The IDs in this set, but not in the other one. Use
+	 * {@link PropertyIndex#all()} to negate a set.
+	 *
+	 * @param other
+	 * @return
+	 */
+	public Postings andNot(Postings other) {
+		int[] a = this.handles;
+		int[] b = other.handles;
+		int[] result = new int[a.length];
+		int i = 0, j = 0, n = 0;
+		while (i < a.length) {
+			if ((j == b.length) || (a[i] < b[j])) {
+				result[n++] = a[i++];
+			} else if (a[i] > b[j]) {
+				j++;
+			} else {
+				i++;
+				j++;
+			}
+		}
+		return new Postings(Arrays.copyOf(result, n));
+	}
+
+	public boolean contains(ID id) {
+		return Arrays.binarySearch(this.handles, id.internedHandle()) >= 0;
+	}
+
+	public int size() {
+		return this.handles.length;
+	}
+
+	public boolean isEmpty() {
+		return this.handles.length == 0;
+	}
+
+	/**
+	 * The IDs in this set, in handle order.
+	 *
+	 * @return
+	 */
+	public List<ID> ids() {
+		return new AbstractList<ID>() {
+
+			@Override
+			public ID get(int index) {
+				return ID.byHandle(Postings.this.handles[index]);
+			}
+
+			@Override
+			public int size() {
+				return Postings.this.handles.length;
+			}
+		};
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(this.handles);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (obj == null) {
+			return false;
+		}
+		if (this.getClass() != obj.getClass()) {
+			return false;
+		}
+		Postings other = (Postings) obj;
+		return Arrays.equals(this.handles, other.handles);
+	}
+
+	@Override
+	public String toString() {
+		return this.ids().toString();
+	}
+}
@@ -4,13 +4,9 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
-import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.google.common.base.Splitter;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import com.google.common.primitives.Longs;
 
 /**
@@ -19,7 +15,11 @@ import com.google.common.primitives.Longs;
  * prototype.
  * 
  * This class can be extended to contain other literals as well. To do this, one
- * will also want to extend the {@link PredefinedKBPart} class.
+ * will also want to extend the {@link PredefinedKBPart} class and pass the new
+ * parts to {@link #PredefinedKB(PredefinedKBPart...)}. The parts are
+ * registered by their base string, and a lookup dispatches to the right part
+ * in a single walk over the prefix of the IRI, so adding parts does not make
+ * lookups slower.
  * 
  * @author michael
  *
@@ -39,26 +39,93 @@ public class PredefinedKB implements IKnowledgeBase {
 	 * should use the singleton directly.
 	 */
 	protected PredefinedKB() {
+		this(new PredefinedKBPart<?>[0]);
+	}
+
+	/**
+	 * Protected constructor for derived types which define literals beyond
+	 * the integers and strings.
+	 * 
+	 * @param extraParts
+	 *            the parts for the additional literal types.
+	 * @throws IllegalArgumentException
+	 *             if two parts have the same base string.
+	 */
+	protected PredefinedKB(PredefinedKBPart<?>... extraParts) {
+		PrefixTrie.Builder<PredefinedKBPart<?>> b = PrefixTrie.builder();
+		b.put(integers.kb.baseString, integers.kb);
+		b.put(strings.kb.baseString, strings.kb);
+		for (PredefinedKBPart<?> part : extraParts) {
+			b.put(part.baseString, part);
+		}
+		this.parts = b.build();
+	}
+
+	/**
+	 * The parts of this KB, by their base string.
+	 */
+	private final PrefixTrie<PredefinedKBPart<?>> parts;
+
+	/**
+	 * The number of IDs looked up in this KB which started with the base
+	 * string of a part, but were not a valid fragment.
+	 */
+	private final AtomicLong malformed = new AtomicLong();
+
+	@Override
+	public PrototypeDefinition lookup(ID id) {
+		if (id instanceof LiteralID) {
+			return PredefinedKB.def;
+		}
+		if (Prototype.P_0.id.equals(id)) {
+			return PrototypeDefinition.P_0;
+		}
+		PredefinedKBPart<?> part = this.parts.longestPrefixOf(id.toString());
+		if (part == null) {
+			return null;
+		}
+		PrototypeDefinition def = part.lookup(id);
+		if (def == null) {
+			this.malformed.incrementAndGet();
+		}
+		return def;
 	}
 
 	@Override
 	public Optional<Prototype> isDefined(ID id) {
+		if (id instanceof LiteralID) {
+			return Optional.of(new Prototype(id, PredefinedKB.def));
+		}
 		if (Prototype.P_0.id.equals(id)) {
-			return Optional.of(Prototype.P_0);
+			return Prototype.OptP_0;
 		}
-		Optional<Prototype> asInt = integers.kb.isDefined(id);
-		if (asInt.isPresent()) {
-			return asInt;
+		PredefinedKBPart<?> part = this.parts.longestPrefixOf(id.toString());
+		if (part == null) {
+			return Optional.empty();
 		}
-		Optional<Prototype> asString = strings.kb.isDefined(id);
-		if (asString.isPresent()) {
-			return asString;
+		Optional<Prototype> defined = part.isDefined(id);
+		if (!defined.isPresent()) {
+			this.malformed.incrementAndGet();
 		}
-		return Optional.empty();
+		return defined;
 	}
 
 	/**
-	 * Get the {@link Prototype} corresponding to the given string value.
+	 * The number of IDs looked up in this KB which started with the base
+	 * string of one of its parts, but could not be converted to a value of
+	 * that part. These are likely errors in the data. The parts are shared
+	 * between KBs, but the count is kept for each KB.
+	 * 
+	 * @return
+	 */
+	public long malformedCount() {
+		return this.malformed.get();
+	}
+
+	/**
+	 * Get the {@link Prototype} corresponding to the given string value. The
+	 * ID of the prototype keeps the string, its IRI is only formatted when
+	 * needed.
 	 * 
 	 * @param value
 	 * @return
@@ -68,7 +135,8 @@ public class PredefinedKB implements IKnowledgeBase {
 	}
 
 	/**
-	 * Get the {@link Prototype} corresponding to the given long value.
+	 * Get the {@link Prototype} corresponding to the given long value. The ID
+	 * of the prototype keeps the long, its IRI is only formatted when needed.
 	 * 
 	 * @param i
 	 * @return
@@ -93,7 +161,12 @@ public class PredefinedKB implements IKnowledgeBase {
 
 			@Override
 			protected String getBaseString() {
-				return "value:integer#";
+				return LiteralID.INTEGER_BASE;
+			}
+
+			@Override
+			protected ID idFor(Long val) {
+				return LiteralID.ofLong(val.longValue());
 			}
 
 			@Override
@@ -107,8 +180,40 @@ public class PredefinedKB implements IKnowledgeBase {
 				return Optional.ofNullable(str);
 			}
 
+			/**
+			 * Accepts exactly what {@link Longs#tryParse(String)} accepts: an
+			 * optional minus sign followed by decimal digits, within the range
+			 * of a long.
+			 */
+			@Override
+			protected boolean isIRIFragment(String iri, int start) {
+				int i = start;
+				boolean negative = (i < iri.length()) && (iri.charAt(i) == '-');
+				if (negative) {
+					i++;
+				}
+				if (i == iri.length()) {
+					return false;
+				}
+				// accumulate negatively, the range of negative longs is larger
+				long value = 0;
+				for (; i < iri.length(); i++) {
+					int digit = iri.charAt(i) - '0';
+					if ((digit < 0) || (digit > 9) || (value < (Long.MIN_VALUE + digit) / 10)) {
+						return false;
+					}
+					value = (value * 10) - digit;
+				}
+				return negative || (value != Long.MIN_VALUE);
+			}
+
 		};
 
+		@Override
+		public PrototypeDefinition lookup(ID id) {
+			return integers.kb.lookup(id);
+		}
+
 		@Override
 		public Optional<Prototype> isDefined(ID id) {
 			return integers.kb.isDefined(id);
@@ -122,6 +227,9 @@ public class PredefinedKB implements IKnowledgeBase {
 		 * @return
 		 */
 		public Optional<Long> convertBack(ID id) {
+			if ((id instanceof LiteralID) && ((LiteralID) id).isInteger()) {
+				return Optional.of(((LiteralID) id).longValue());
+			}
 			return integers.kb.convertBack(id);
 		}
 
@@ -144,7 +252,12 @@ public class PredefinedKB implements IKnowledgeBase {
 
 			@Override
 			protected String getBaseString() {
-				return "value:string#";
+				return LiteralID.STRING_BASE;
+			}
+
+			@Override
+			protected ID idFor(String val) {
+				return LiteralID.ofString(val);
 			}
 
 			@Override
@@ -163,10 +276,39 @@ public class PredefinedKB implements IKnowledgeBase {
 					return Optional.of(val);
 				} catch (UnsupportedEncodingException e) {
 					throw new Error("Built-in charset utf-8 must be supported.");
+				} catch (IllegalArgumentException e) {
+					// an incomplete escape sequence
+					return Optional.empty();
+				}
+			}
+
+			/**
+			 * Accepts the characters {@link URLEncoder} leaves as they are,
+			 * '+' and escapes of the form '%' followed by two hexadecimal
+			 * digits.
+			 */
+			@Override
+			protected boolean isIRIFragment(String iri, int start) {
+				for (int i = start; i < iri.length(); i++) {
+					char c = iri.charAt(i);
+					if (c == '%') {
+						if ((i + 2 >= iri.length()) || (Character.digit(iri.charAt(i + 1), 16) < 0) || (Character.digit(iri.charAt(i + 2), 16) < 0)) {
+							return false;
+						}
+						i += 2;
+					} else if (!(((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9')) || (c == '.') || (c == '-') || (c == '*') || (c == '_') || (c == '+'))) {
+						return false;
+					}
 				}
+				return true;
 			}
 		};
 
+		@Override
+		public PrototypeDefinition lookup(ID id) {
+			return strings.kb.lookup(id);
+		}
+
 		@Override
 		public Optional<Prototype> isDefined(ID id) {
 			return strings.kb.isDefined(id);
@@ -180,6 +322,9 @@ public class PredefinedKB implements IKnowledgeBase {
 		 * @return
 		 */
 		public Optional<String> convertBack(ID id) {
+			if ((id instanceof LiteralID) && !((LiteralID) id).isInteger()) {
+				return Optional.of(((LiteralID) id).stringValue());
+			}
 			return strings.kb.convertBack(id);
 		}
 
@@ -234,27 +379,63 @@ public class PredefinedKB implements IKnowledgeBase {
 		 */
 		protected abstract Optional<E> fromIRIFragment(String fragment);
 
-		private final LoadingCache<E, Prototype> cache = CacheBuilder.newBuilder().build(new CacheLoader<E, Prototype>() {
+		/**
+		 * Check whether the part of the iri from start on is a fragment for
+		 * which {@link #fromIRIFragment(String)} returns a value. This is
+		 * used on every lookup, so parts should override it with a check
+		 * which does not allocate. The default converts the fragment.
+		 * 
+		 * @param iri
+		 *            an iri starting with the base string
+		 * @param start
+		 *            the position where the fragment starts
+		 * @return
+		 */
+		protected boolean isIRIFragment(String iri, int start) {
+			return this.fromIRIFragment(iri.substring(start)).isPresent();
+		}
 
-			@Override
-			public Prototype load(E value) throws Exception {
-				String fragment = PredefinedKBPart.this.toIRIFragment(value);
-				ID id = ID.of(PredefinedKBPart.this.baseString + fragment);
-				return new Prototype(id, PredefinedKB.def);
-			}
-		});
+		/**
+		 * Create the ID for the given value. The default is the ID of the base
+		 * string followed by the fragment. Parts can override this with a
+		 * more compact representation, which must be equal to that ID.
+		 * 
+		 * @param value
+		 * @return
+		 */
+		protected ID idFor(E value) {
+			return ID.of(this.baseString + this.toIRIFragment(value));
+		}
 
 		/**
-		 * Get a prototype for the given value.
+		 * Get a prototype for the given value. Prototypes are not cached, all
+		 * values share the same definition.
 		 * 
 		 * @param value
 		 * @return
 		 */
 		public Prototype define(E value) {
-			return this.cache.getUnchecked(value);
+			return new Prototype(this.idFor(value), PredefinedKB.def);
 		}
 
-		private final Splitter s = Splitter.on(this.baseString).omitEmptyStrings();
+		/**
+		 * Get the definition of the prototype with the given ID. All values
+		 * share the same definition, so the value itself is not needed.
+		 * 
+		 * @param id
+		 * @return the definition, or null if the ID is not of this part.
+		 * @see {@link IKnowledgeBase#lookup(ID)}
+		 */
+		public PrototypeDefinition lookup(ID id) {
+			String val = id.toString();
+			if (!val.startsWith(this.baseString)) {
+				return null;
+			}
+			if (!this.isIRIFragment(val, this.baseString.length())) {
+				return null;
+			}
+			return PredefinedKB.def;
+		}
 
 		/**
 		 * Get the Optional prototype for the given ID.
@@ -264,11 +445,10 @@ public class PredefinedKB implements IKnowledgeBase {
 		 * @see {@link IKnowledgeBase#isDefined(ID)}
 		 */
 		public Optional<Prototype> isDefined(ID id) {
-			Optional<E> parsedVal = this.convertBack(id);
-			if (!parsedVal.isPresent()) {
+			if (this.lookup(id) == null) {
 				return Optional.empty();
 			}
-			return Optional.of(this.define(parsedVal.get()));
+			return Optional.of(new Prototype(id, PredefinedKB.def));
 		}
 
 		/**
@@ -283,16 +463,10 @@ public class PredefinedKB implements IKnowledgeBase {
 			if (!val.startsWith(this.baseString)) {
 				return Optional.empty();
 			}
-			List<String> parts = this.s.splitToList(val);
-			if (!(parts.size() == 1)) {
-				System.err.println("prefix " + this.baseString + " used, but incorect URI to be of this type, likely an error" + id);
+			if (!this.isIRIFragment(val, this.baseString.length())) {
 				return Optional.empty();
 			}
-			Optional<E> parsedVal = this.fromIRIFragment(parts.get(0));
-			if (!parsedVal.isPresent()) {
-				System.err.println("prefix " + this.baseString + " used, but incorect URI to be of this type, likely an error : " + id);
-			}
-			return parsedVal;
+			return this.fromIRIFragment(val.substring(this.baseString.length()));
 		}
 
 	}
@@ -0,0 +1,144 @@
+package miselico.prototypes.knowledgebase;
+
+import java.util.Arrays;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * An immutable map from string prefixes to values, answering which registered
+ * prefix is the longest prefix of a given string. The lookup walks the string
+ * once, one character per level, and does not allocate. The cost only depends
+ * on the length of the matched prefix, not on the number of prefixes
+ * registered.
+ *
+ * Instances are created using a {@link Builder}.
+ *
+ * @author michael
+ *
+ * @param <V>
+ *            the type of the values
+ */
+final class PrefixTrie<V> {
+
+	private static final class Node<V> {
+		/**
+		 * The characters of the outgoing edges, sorted.
+		 */
+		final char[] labels;
+		final Node<V>[] children;
+		/**
+		 * The value of the prefix ending in this node, or null if none.
+		 */
+		final V value;
+
+		Node(char[] labels, Node<V>[] children, V value) {
+			this.labels = labels;
+			this.children = children;
+			this.value = value;
+		}
+
+		Node<V> child(char c) {
+			int i = Arrays.binarySearch(this.labels, c);
+			return i >= 0 ? this.children[i] : null;
+		}
+	}
+
+	private final Node<V> root;
+
+	private PrefixTrie(Node<V> root) {
+		this.root = root;
+	}
+
+	/**
+	 * Get the value of the longest registered prefix of s.
+	 *
+	 * @param s
+	 * @return the value, or null if no registered prefix is a prefix of s.
+	 */
+	V longestPrefixOf(CharSequence s) {
+		Node<V> current = this.root;
+		V found = current.value;
+		for (int i = 0; i < s.length(); i++) {
+			current = current.child(s.charAt(i));
+			if (current == null) {
+				break;
+			}
+			if (current.value != null) {
+				found = current.value;
+			}
+		}
+		return found;
+	}
+
+	static <V> Builder<V> builder() {
+		return new Builder<>();
+	}
+
+	/**
+	 * A builder for {@link PrefixTrie}s
+	 *
+	 * @author michael
+	 *
+	 * @param <V>
+	 */
+	static final class Builder<V> {
+		private final TreeMap<String, V> prefixes = new TreeMap<>();
+
+		private Builder() {
+		}
+
+		/**
+		 * Register the prefix with the given value.
+		 *
+		 * @throws IllegalArgumentException
+		 *             if the prefix is registered already.
+		 */
+		Builder<V> put(String prefix, V value) {
+			Preconditions.checkNotNull(value);
+			Preconditions.checkArgument(!this.prefixes.containsKey(prefix), "Prefix %s registered twice", prefix);
+			this.prefixes.put(prefix, value);
+			return this;
+		}
+
+		PrefixTrie<V> build() {
+			// the prefixes are sorted, so each subtree is a contiguous range.
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			Entry<String, V>[] sorted = this.prefixes.entrySet().toArray(new Entry[this.prefixes.size()]);
+			return new PrefixTrie<>(Builder.node(sorted, 0, sorted.length, 0));
+		}
+
+		/**
+		 * Create the node for the entries from (inclusive) to (exclusive),
+		 * which all share the first depth characters.
+		 */
+		private static <V> Node<V> node(Entry<String, V>[] sorted, int from, int to, int depth) {
+			V value = null;
+			if ((from < to) && (sorted[from].getKey().length() == depth)) {
+				value = sorted[from].getValue();
+				from++;
+			}
+			int edges = 0;
+			for (int i = from; i < to; i++) {
+				if ((i == from) || (sorted[i].getKey().charAt(depth) != sorted[i - 1].getKey().charAt(depth))) {
+					edges++;
+				}
+			}
+			char[] labels = new char[edges];
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			Node<V>[] children = new Node[edges];
+			int edge = 0;
+			int start = from;
+			for (int i = from + 1; i <= to; i++) {
+				if ((i == to) || (sorted[i].getKey().charAt(depth) != sorted[start].getKey().charAt(depth))) {
+					labels[edge] = sorted[start].getKey().charAt(depth);
+					children[edge] = Builder.node(sorted, start, i, depth + 1);
+					edge++;
+					start = i;
+				}
+			}
+			return new Node<>(labels, children, value);
+		}
+	}
+}
@@ -11,12 +11,22 @@ import com.google.common.base.Preconditions;
 /**
  * Representation of a property. Immutable.
  * 
+ * Properties are interned in a global dictionary when they are created and
+ * carry a dense integer handle (see {@link #handle()}). Unlike {@link ID}s,
+ * which are only interned once they are stored, properties are few and come
+ * from the data itself. Properties have their own handle space, independent
+ * of the one for IDs.
+ * 
  * @author michael
  *
  */
 public class Property {
 	// kept as a string, since this is way faster to compare as a URI object.
 	private final String value;
+	private final int handle;
+	private final int hash;
+
+	private static final HandleDictionary<Property> dictionary = new HandleDictionary<>(Property::new);
 
 	/**
 	 * Create a property for the given string.
@@ -29,11 +39,20 @@ public class Property {
 	 *             if the IRI is not absolute
 	 */
 	public static Property of(String value) {
+		// properties seen before do not need to be validated again.
+		Property known = Property.dictionary.get(value);
+		if (known != null) {
+			return known;
+		}
 
 		// creating a URI type is about three times faster as a IRI type, so we
 		// try that first
 		// This might be implementation dependent.
 
+		// the common case of a plain ASCII IRI is checked without parsing
+		if (SimpleIRI.isValid(value)) {
+			return Property.dictionary.intern(value);
+		}
 		String uriString;
 		try {
 			URI uri = new URI(value);
@@ -41,7 +60,35 @@ public class Property {
 		} catch (URISyntaxException e) {
 			uriString = new IRI(value).toString();
 		}
-		return new Property(uriString);
+		return Property.dictionary.intern(uriString);
+	}
+
+	/**
+	 * Get the property for a value which is known to be a valid absolute IRI in
+	 * canonical form, without validating it. Used when loading data which was
+	 * validated when it was written, like a {@link SnapshotKnowledgeBase}.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	static Property trusted(String value) {
+		Property known = Property.dictionary.get(value);
+		if (known != null) {
+			return known;
+		}
+		return Property.dictionary.intern(value);
+	}
+
+	/**
+	 * Get the property with the given handle.
+	 * 
+	 * @param handle
+	 * @return The canonical property
+	 * @throws IllegalArgumentException
+	 *             if no property has the given handle
+	 */
+	static Property byHandle(int handle) {
+		return Property.dictionary.get(handle);
 	}
 
 	/**
@@ -54,9 +101,7 @@ public class Property {
 	 *             if the IRI is not absolute
 	 */
 	public Property(IRI iri) {
-		Preconditions.checkNotNull(iri);
-		Preconditions.checkArgument(iri.isAbsolute(), "Only absolute URIs are valid properties");
-		this.value = iri.toString();
+		this(Property.canonicalFor(iri.isAbsolute(), iri.toString()));
 	}
 
 	/**
@@ -69,24 +114,60 @@ public class Property {
 	 *             if the IRI is not absolute
 	 */
 	public Property(URI uri) {
-		Preconditions.checkNotNull(uri);
-		Preconditions.checkArgument(uri.isAbsolute(), "Only absolute IRIs are valid properties");
-		this.value = uri.toString();
+		this(Property.canonicalFor(uri.isAbsolute(), uri.toString()));
+	}
+
+	private static Property canonicalFor(boolean absolute, String uriString) {
+		Preconditions.checkArgument(absolute, "Only absolute IRIs are valid properties");
+		return Property.dictionary.intern(uriString);
+	}
+
+	/**
+	 * Copies the canonical property.
+	 * 
+	 * @param canonical
+	 */
+	private Property(Property canonical) {
+		this.value = canonical.value;
+		this.handle = canonical.handle;
+		this.hash = canonical.hash;
 	}
 
 	/**
 	 * Constructs an Property from a String. This is private because the String
-	 * value is not checked.
+	 * value is not checked. Only used by the dictionary.
 	 * 
-	 * @param uri
+	 * @param uriString
+	 * @param handle
+	 *            The handle assigned by the dictionary
 	 * @throws NullPointerException
 	 *             if uri is null
-	 * @throws IllegalArgumentException
-	 *             if the uri is not absolute
 	 */
-	private Property(String uriString) {
+	private Property(String uriString, int handle) {
 		Preconditions.checkNotNull(uriString);
 		this.value = uriString;
+		this.handle = handle;
+		this.hash = uriString.hashCode();
+	}
+
+	/**
+	 * The dense integer handle of this property. Two properties are equal if
+	 * and only if their handles are equal.
+	 * 
+	 * @return
+	 */
+	public int handle() {
+		return this.handle;
+	}
+
+	/**
+	 * Get the canonical instance for this property. This is the instance
+	 * returned by {@link Property#of(String)}.
+	 * 
+	 * @return
+	 */
+	public Property canonical() {
+		return Property.dictionary.get(this.handle);
 	}
 
 	/**
@@ -100,7 +181,7 @@ public class Property {
 
 	@Override
 	public int hashCode() {
-		return this.value.hashCode();
+		return this.hash;
 	}
 
 	@Override
@@ -115,7 +196,7 @@ public class Property {
 			return false;
 		}
 		Property other = (Property) obj;
-		return this.value.equals(other.value);
+		return this.handle == other.handle;
 	}
 
 	/**
@@ -0,0 +1,165 @@
+package miselico.prototypes.knowledgebase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * An inverted index over the fixpoints of the prototypes in a
+ * {@link KnowledgeBase}. For each property, it keeps the prototypes having a
+ * value for it, and for each (property, value) pair the prototypes having that
+ * value for the property. Because the fixpoints are indexed, both declared and
+ * inherited values are found.
+ *
+ * The results are {@link Postings}, which can be combined using
+ * {@link Postings#and(Postings)}, {@link Postings#or(Postings)} and
+ * {@link Postings#andNot(Postings)}.
+ *
+ * The index is immutable and built using {@link PropertyIndex#of(KnowledgeBase)}.
+ * Only the prototypes internal to the {@link KnowledgeBase} are indexed.
+ *
+ * The keys are kept in sorted primitive arrays, next to an array with the
+ * {@link Postings} of each key, and are found using binary search.
+ *
+ * @author michael
+ *
+ */
+public final class PropertyIndex {
+
+	private final Postings all;
+	/**
+	 * The sorted property handles and the postings of each.
+	 */
+	private final int[] properties;
+	private final Postings[] byProperty;
+	/**
+	 * The sorted keys of the (property, value) pairs and the postings of each.
+	 */
+	private final long[] pairs;
+	private final Postings[] byValue;
+
+	private PropertyIndex(Postings all, int[] properties, Postings[] byProperty, long[] pairs, Postings[] byValue) {
+		this.all = all;
+		this.properties = properties;
+		this.byProperty = byProperty;
+		this.pairs = pairs;
+		this.byValue = byValue;
+	}
+
+	private static long key(int property, int value) {
+		return ((long) property << 32) | (value & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Create the index for the given {@link KnowledgeBase}. This computes the
+	 * fixpoints of all its prototypes.
+	 *
+	 * @param kb
+	 * @return
+	 */
+	public static PropertyIndex of(KnowledgeBase kb) {
+		KnowledgeBase fixpoints = kb.computeFixPoint();
+		int[] all = new int[fixpoints.size()];
+		int n = 0;
+		Map<Integer, IntList> byProperty = new HashMap<>();
+		Map<Long, IntList> byValue = new HashMap<>();
+		for (Entry<ID, PrototypeDefinition> proto : fixpoints.KB.entrySet()) {
+			int handle = proto.getKey().handle();
+			all[n++] = handle;
+			proto.getValue().add.store.forEachHandles((property, values) -> {
+				byProperty.computeIfAbsent(property, p -> new IntList()).add(handle);
+				for (int value : values) {
+					byValue.computeIfAbsent(PropertyIndex.key(property, value), k -> new IntList()).add(handle);
+				}
+			});
+		}
+		Arrays.sort(all);
+
+		int[] properties = new int[byProperty.size()];
+		n = 0;
+		for (int property : byProperty.keySet()) {
+			properties[n++] = property;
+		}
+		Arrays.sort(properties);
+		Postings[] propertyPostings = new Postings[properties.length];
+		for (int i = 0; i < properties.length; i++) {
+			propertyPostings[i] = byProperty.get(properties[i]).toPostings();
+		}
+
+		long[] pairs = new long[byValue.size()];
+		n = 0;
+		for (long pair : byValue.keySet()) {
+			pairs[n++] = pair;
+		}
+		Arrays.sort(pairs);
+		Postings[] valuePostings = new Postings[pairs.length];
+		for (int i = 0; i < pairs.length; i++) {
+			valuePostings[i] = byValue.get(pairs[i]).toPostings();
+		}
+		return new PropertyIndex(new Postings(all), properties, propertyPostings, pairs, valuePostings);
+	}
+
+	/**
+	 * All prototypes in the index. Use this to negate a query, e.g.
+	 * {@code index.all().andNot(index.withProperty(p))}
+	 *
+	 * @return
+	 */
+	public Postings all() {
+		return this.all;
+	}
+
+	/**
+	 * The prototypes which have any value for the given property.
+	 *
+	 * @param p
+	 * @return
+	 */
+	public Postings withProperty(Property p) {
+		int i = Arrays.binarySearch(this.properties, p.handle());
+		return i < 0 ? Postings.empty() : this.byProperty[i];
+	}
+
+	/**
+	 * The prototypes which have the given value for the given property.
+	 *
+	 * @param p
+	 * @param value
+	 * @return
+	 */
+	public Postings withValue(Property p, ID value) {
+		int handle = value.internedHandle();
+		if (handle < 0) {
+			return Postings.empty();
+		}
+		int i = Arrays.binarySearch(this.pairs, PropertyIndex.key(p.handle(), handle));
+		return i < 0 ? Postings.empty() : this.byValue[i];
+	}
+
+	@Override
+	public String toString() {
+		return "PropertyIndex [prototypes=" + this.all.size() + ", properties=" + this.properties.length + ", pairs=" + this.pairs.length + "]";
+	}
+
+	/**
+	 * A growing list of handles, used while building the index.
+	 */
+	private static final class IntList {
+		private int[] elements = new int[4];
+		private int size = 0;
+
+		void add(int element) {
+			if (this.size == this.elements.length) {
+				this.elements = Arrays.copyOf(this.elements, this.size * 2);
+			}
+			this.elements[this.size++] = element;
+		}
+
+		Postings toPostings() {
+			int[] handles = Arrays.copyOf(this.elements, this.size);
+			Arrays.sort(handles);
+			return new Postings(handles);
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package miselico.prototypes.knowledgebase;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+import com.google.common.collect.Maps;
+
+/**
+ * The immutable map from the IDs of the prototypes in a {@link KnowledgeBase}
+ * to their definitions. The definitions are kept in an {@link IntTrie} keyed by
+ * the ID handle, so a {@link KnowledgeBase} built on another one shares all
+ * unchanged prototypes with it and creating it only costs time proportional
+ * to the number of changes.
+ *
+ * The iteration order is determined by the handles, not by the order in which
+ * the prototypes were added.
+ *
+ * @author michael
+ *
+ */
+final class PrototypeMap extends AbstractMap<ID, PrototypeDefinition> {
+
+	static final PrototypeMap EMPTY = new PrototypeMap(IntTrie.<PrototypeDefinition> empty(), 0);
+
+	private final IntTrie<PrototypeDefinition> definitions;
+	private final int size;
+
+	private PrototypeMap(IntTrie<PrototypeDefinition> definitions, int size) {
+		this.definitions = definitions;
+		this.size = size;
+	}
+
+	/**
+	 * Get the given map as a {@link PrototypeMap}, copying it if it has
+	 * another representation.
+	 */
+	static PrototypeMap copyOf(Map<ID, PrototypeDefinition> map) {
+		if (map instanceof PrototypeMap) {
+			return (PrototypeMap) map;
+		}
+		return PrototypeMap.EMPTY.with(map, Collections.emptySet());
+	}
+
+	/**
+	 * Create the map which results from first removing the removed IDs and
+	 * then putting the added prototypes. This map is not modified and shares
+	 * all unchanged prototypes with the result.
+	 */
+	PrototypeMap with(Map<ID, PrototypeDefinition> added, Collection<ID> removed) {
+		IntTrie<PrototypeDefinition> definitions = this.definitions;
+		int size = this.size;
+		for (ID id : removed) {
+			int handle = id.internedHandle();
+			if ((handle >= 0) && (definitions.get(handle) != null)) {
+				definitions = definitions.remove(handle);
+				size--;
+			}
+		}
+		for (Entry<ID, PrototypeDefinition> proto : added.entrySet()) {
+			int handle = proto.getKey().handle();
+			if (definitions.get(handle) == null) {
+				size++;
+			}
+			definitions = definitions.put(handle, proto.getValue());
+		}
+		return new PrototypeMap(definitions, size);
+	}
+
+	@Override
+	public PrototypeDefinition get(Object key) {
+		if (!(key instanceof ID)) {
+			return null;
+		}
+		int handle = ((ID) key).internedHandle();
+		return handle < 0 ? null : this.definitions.get(handle);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return this.get(key) != null;
+	}
+
+	@Override
+	public int size() {
+		return this.size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	@Override
+	public void forEach(BiConsumer<? super ID, ? super PrototypeDefinition> action) {
+		this.definitions.forEach((handle, def) -> action.accept(ID.byHandle(handle), def));
+	}
+
+	@Override
+	public Set<Entry<ID, PrototypeDefinition>> entrySet() {
+		return new AbstractSet<Entry<ID, PrototypeDefinition>>() {
+
+			@Override
+			public Iterator<Entry<ID, PrototypeDefinition>> iterator() {
+				return PrototypeMap.this.definitions.iterator((handle, def) -> Maps.immutableEntry(ID.byHandle(handle), def));
+			}
+
+			@Override
+			public int size() {
+				return PrototypeMap.this.size;
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				if (!(o instanceof Entry)) {
+					return false;
+				}
+				Entry<?, ?> entry = (Entry<?, ?>) o;
+				PrototypeDefinition def = PrototypeMap.this.get(entry.getKey());
+				return (def != null) && def.equals(entry.getValue());
+			}
+		};
+	}
+}
@@ -34,9 +34,12 @@ public final class Prototypes {
 		 * Create a builder for a prototype with the given base ID
 		 * 
 		 * @param basePTID
+		 * @throws NullPointerException
+		 *             if basePTID is null
 		 */
 		public Builder(ID basePTID) {
-			this.basePTID = basePTID;
+			// only canonical instances end up in the knowledge base
+			this.basePTID = basePTID.canonical();
 		}
 
 		/**
@@ -144,7 +147,7 @@ public final class Prototypes {
 		public Prototype build(ID ownID) {
 			PrototypeDefinition def = PrototypeDefinition.create(this.basePTID, this.remove.build(), this.add.build());
 
-			return new Prototype(ownID, def);
+			return new Prototype(ownID.canonical(), def);
 		}
 
 	}
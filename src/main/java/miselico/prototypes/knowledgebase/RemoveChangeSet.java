@@ -1,5 +1,6 @@
 package miselico.prototypes.knowledgebase;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Map.Entry;
@@ -8,7 +9,6 @@ import java.util.Set;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.SetMultimap;
 
 /**
@@ -21,19 +21,40 @@ import com.google.common.collect.SetMultimap;
  */
 public final class RemoveChangeSet extends ChangeSet {
 
-	private final ImmutableSet<Property> removeAll;
+	/**
+	 * The sorted handles of the properties for which all values are removed.
+	 */
+	private final int[] removeAll;
 
-	private RemoveChangeSet(ImmutableSetMultimap<Property, ID> changes, ImmutableSet<Property> removeAll) {
+	private RemoveChangeSet(ChangeSetStore changes, int[] removeAll) {
 		super(changes);
 		Preconditions.checkNotNull(removeAll);
 		this.removeAll = removeAll;
 	}
 
+	/**
+	 * Create a {@link RemoveChangeSet} with the given store and the sorted
+	 * handles of the properties for which all values are removed. Neither is
+	 * copied.
+	 * 
+	 * @param changes
+	 * @param removeAll
+	 * @return
+	 */
+	static RemoveChangeSet of(ChangeSetStore changes, int[] removeAll) {
+		return (changes.isEmpty() && (removeAll.length == 0)) ? RemoveChangeSet.EMPTY : new RemoveChangeSet(changes, removeAll);
+	}
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
 		int result = super.hashCode();
-		result = (prime * result) + ((this.removeAll == null) ? 0 : this.removeAll.hashCode());
+		// the hash of the set of properties
+		int removeAllHash = 0;
+		for (int property : this.removeAll) {
+			removeAllHash += Property.byHandle(property).hashCode();
+		}
+		result = (prime * result) + removeAllHash;
 		return result;
 	}
 
@@ -49,14 +70,7 @@ public final class RemoveChangeSet extends ChangeSet {
 			return false;
 		}
 		RemoveChangeSet other = (RemoveChangeSet) obj;
-		if (this.removeAll == null) {
-			if (other.removeAll != null) {
-				return false;
-			}
-		} else if (!this.removeAll.equals(other.removeAll)) {
-			return false;
-		}
-		return true;
+		return Arrays.equals(this.removeAll, other.removeAll);
 	}
 
 	/**
@@ -78,13 +92,13 @@ public final class RemoveChangeSet extends ChangeSet {
 		b.append('{');
 		// http://stackoverflow.com/a/3395345
 		String prefix = "";
-		for (Property property : this.removeAll) {
+		for (Property property : this.getRemoveAll()) {
 			b.append(prefix);
 			prefix = ",";
 			b.append(property.toString());
 			b.append("=*");
 		}
-		if (!this.removeAll.isEmpty() && !super.isEmpty()) {
+		if ((this.removeAll.length != 0) && !super.isEmpty()) {
 			b.append(",");
 		}
 		prefix = "";
@@ -107,17 +121,15 @@ public final class RemoveChangeSet extends ChangeSet {
 	 * @param mcs
 	 */
 	public void removeFrom(MutableChangeSet mcs) {
-		for (Property property : this.removeAll) {
-			mcs.changes.removeAll(property);
-		}
-		for (Entry<Property, ID> property : super.changes.entries()) {
-			mcs.changes.remove(property.getKey(), property.getValue());
+		for (int property : this.removeAll) {
+			mcs.removeAll(property);
 		}
+		this.store.removeFrom(mcs);
 	}
 
 	@Override
 	public ImmutableSet<Property> affectsProperties() {
-		return ImmutableSet.<Property> builder().addAll(super.affectsProperties()).addAll(this.removeAll).build();
+		return ImmutableSet.<Property> builder().addAll(super.affectsProperties()).addAll(this.getRemoveAll()).build();
 	}
 
 	/**
@@ -127,7 +139,11 @@ public final class RemoveChangeSet extends ChangeSet {
 	 * @return
 	 */
 	public ImmutableSet<Property> getRemoveAll() {
-		return this.removeAll;
+		ImmutableSet.Builder<Property> properties = ImmutableSet.builder();
+		for (int property : this.removeAll) {
+			properties.add(Property.byHandle(property));
+		}
+		return properties.build();
 	}
 
 	/**
@@ -155,7 +171,7 @@ public final class RemoveChangeSet extends ChangeSet {
 		 */
 		public Builder andRemove(Property p, ID id) {
 			if (!this.rmAll.contains(p)) {
-				this.rm.put(p, id);
+				this.rm.put(p.canonical(), id.canonical());
 			}
 			return this;
 		}
@@ -168,7 +184,7 @@ public final class RemoveChangeSet extends ChangeSet {
 		 */
 		public Builder andRemoveAll(Property p) {
 			this.rm.removeAll(p);
-			this.rmAll.add(p);
+			this.rmAll.add(p.canonical());
 			return this;
 		}
 
@@ -180,7 +196,13 @@ public final class RemoveChangeSet extends ChangeSet {
 		 *         the builder.
 		 */
 		public RemoveChangeSet build() {
-			return new RemoveChangeSet(ImmutableSetMultimap.copyOf(this.rm), ImmutableSet.copyOf(this.rmAll));
+			int[] removeAll = new int[this.rmAll.size()];
+			int i = 0;
+			for (Property property : this.rmAll) {
+				removeAll[i++] = property.handle();
+			}
+			Arrays.sort(removeAll);
+			return new RemoveChangeSet(SortedArrayStore.of(this.rm), removeAll);
 		}
 	}
 
@@ -193,14 +215,14 @@ public final class RemoveChangeSet extends ChangeSet {
 		return RemoveChangeSet.EMPTY;
 	}
 
-	private static RemoveChangeSet EMPTY = new RemoveChangeSet(ImmutableSetMultimap.<Property, ID> of(), ImmutableSet.<Property> of());
+	private static RemoveChangeSet EMPTY = new RemoveChangeSet(SortedArrayStore.EMPTY, new int[0]);
 
 	@Override
 	public boolean isEmpty() {
 		if (this == RemoveChangeSet.EMPTY) {
 			return true;
 		}
-		return this.removeAll.isEmpty() && super.isEmpty();
+		return (this.removeAll.length == 0) && super.isEmpty();
 	}
 
 }
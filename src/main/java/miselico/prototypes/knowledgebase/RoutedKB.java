@@ -0,0 +1,322 @@
+package miselico.prototypes.knowledgebase;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * An {@link IKnowledgeBase} federating knowledge bases which each own an IRI
+ * namespace, like {@code http://example.org/} or {@code value:string#}. Each
+ * {@link ID} is sent to the base whose namespace is the longest prefix of its
+ * IRI, found in a single walk over the IRI. The base owning a namespace is
+ * authoritative: if it does not define the ID, no other base is asked. IDs
+ * outside all namespaces are asked to the fallback bases, in order, like in a
+ * {@link ChainedKB}.
+ *
+ * The routes are kept in an immutable {@link RouteTable}, which can be
+ * replaced at runtime using {@link #swapRoutes(RouteTable)}. Lookups use
+ * either the old or the new table, never a mix. The number of hits and misses
+ * is kept per namespace and survives swaps.
+ *
+ * Fixpoints are computed by walking up the parents, each of which is routed
+ * separately, so prototypes can derive from prototypes in other namespaces.
+ * The walk stops at the first prototype owned by a base which is an
+ * {@link IFPKnowledgeBase}. That base computes the fixpoint of the rest of the
+ * branch itself, using its own fixpoint cache, so a remote base is asked once
+ * instead of once per ancestor. Such a base is also authoritative for the
+ * ancestors of its prototypes.
+ *
+ * @author michael
+ *
+ */
+public final class RoutedKB implements IFPKnowledgeBase {
+
+	private final AtomicReference<RouteTable> routes;
+	private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+	private final Counter fallbackCounter = new Counter();
+
+	/**
+	 * Create a {@link RoutedKB} with the given routes.
+	 *
+	 * @param routes
+	 */
+	public RoutedKB(RouteTable routes) {
+		this.routes = new AtomicReference<>(Preconditions.checkNotNull(routes));
+	}
+
+	/**
+	 * The current routes.
+	 *
+	 * @return
+	 */
+	public RouteTable routes() {
+		return this.routes.get();
+	}
+
+	/**
+	 * Atomically replace the routes.
+	 *
+	 * @param newRoutes
+	 * @return the routes which were replaced
+	 */
+	public RouteTable swapRoutes(RouteTable newRoutes) {
+		return this.routes.getAndSet(Preconditions.checkNotNull(newRoutes));
+	}
+
+	@Override
+	public PrototypeDefinition lookup(ID id) {
+		return this.lookup(this.routes.get(), id);
+	}
+
+	private PrototypeDefinition lookup(RouteTable table, ID id) {
+		if (Prototype.P_0.id.equals(id)) {
+			return PrototypeDefinition.P_0;
+		}
+		Route route = table.routes.longestPrefixOf(id.toString());
+		if (route != null) {
+			PrototypeDefinition def = route.base.lookup(id);
+			this.counter(route.namespace).count(def != null);
+			return def;
+		}
+		for (IKnowledgeBase fallback : table.fallbacks) {
+			PrototypeDefinition def = fallback.lookup(id);
+			if (def != null) {
+				this.fallbackCounter.count(true);
+				return def;
+			}
+		}
+		this.fallbackCounter.count(false);
+		return null;
+	}
+
+	private Counter counter(String namespace) {
+		Counter counter = this.counters.get(namespace);
+		if (counter == null) {
+			counter = this.counters.computeIfAbsent(namespace, k -> new Counter());
+		}
+		return counter;
+	}
+
+	@Override
+	public Prototype computeFixPoint(ID id) {
+		RouteTable table = this.routes.get();
+		Deque<PrototypeDefinition> branch = new ArrayDeque<>();
+		AddChangeSet addCS = AddChangeSet.empty();
+		ID currentID = id;
+		while (!Prototype.P_0.id.equals(currentID)) {
+			Route route = table.routes.longestPrefixOf(currentID.toString());
+			if ((route != null) && (route.base instanceof IFPKnowledgeBase)) {
+				addCS = this.delegateFixPoint(route, currentID, currentID == id);
+				break;
+			}
+			PrototypeDefinition current = this.lookup(table, currentID);
+			if (current == null) {
+				Preconditions.checkArgument(currentID != id);
+				throw new Error("Parent " + currentID + " is not defined in any of the routed knowledge bases.");
+			}
+			branch.addFirst(current);
+			currentID = current.parent;
+		}
+		for (PrototypeDefinition def : branch) {
+			addCS = addCS.derive(def.remove, def.add);
+		}
+		PrototypeDefinition def = PrototypeDefinition.create(Prototype.P_0, RemoveChangeSet.empty(), addCS);
+		return new Prototype(id, def);
+	}
+
+	/**
+	 * Let the base of the route compute the fixpoint of the prototype.
+	 *
+	 * @param requested
+	 *            whether the prototype is the one whose fixpoint was asked,
+	 *            rather than one of its ancestors
+	 */
+	private AddChangeSet delegateFixPoint(Route route, ID id, boolean requested) {
+		Prototype fixpoint;
+		try {
+			fixpoint = ((IFPKnowledgeBase) route.base).computeFixPoint(id);
+		} catch (IllegalArgumentException e) {
+			this.counter(route.namespace).count(false);
+			if (requested) {
+				throw e;
+			}
+			throw new Error("Parent " + id + " is not defined in any of the routed knowledge bases.", e);
+		}
+		this.counter(route.namespace).count(true);
+		return fixpoint.def.add;
+	}
+
+	/**
+	 * The number of hits and misses for each namespace which has been asked
+	 * so far.
+	 *
+	 * @return
+	 */
+	public ImmutableMap<String, RouteStats> routeStats() {
+		ImmutableMap.Builder<String, RouteStats> stats = ImmutableMap.builder();
+		for (Map.Entry<String, Counter> counter : this.counters.entrySet()) {
+			stats.put(counter.getKey(), counter.getValue().stats());
+		}
+		return stats.build();
+	}
+
+	/**
+	 * The number of hits and misses for IDs outside all namespaces.
+	 *
+	 * @return
+	 */
+	public RouteStats fallbackStats() {
+		return this.fallbackCounter.stats();
+	}
+
+	private static final class Counter {
+		private final LongAdder hits = new LongAdder();
+		private final LongAdder misses = new LongAdder();
+
+		void count(boolean hit) {
+			if (hit) {
+				this.hits.increment();
+			} else {
+				this.misses.increment();
+			}
+		}
+
+		RouteStats stats() {
+			return new RouteStats(this.hits.sum(), this.misses.sum());
+		}
+	}
+
+	/**
+	 * The number of lookups on a route which found, respectively did not
+	 * find, a prototype.
+	 *
+	 * @author michael
+	 *
+	 */
+	public static final class RouteStats {
+		public final long hits;
+		public final long misses;
+
+		private RouteStats(long hits, long misses) {
+			this.hits = hits;
+			this.misses = misses;
+		}
+
+		@Override
+		public String toString() {
+			return "RouteStats [hits=" + this.hits + ", misses=" + this.misses + "]";
+		}
+	}
+
+	private static final class Route {
+		final String namespace;
+		final IKnowledgeBase base;
+
+		Route(String namespace, IKnowledgeBase base) {
+			this.namespace = namespace;
+			this.base = base;
+		}
+	}
+
+	/**
+	 * An immutable table of routes, mapping namespaces to the bases owning
+	 * them, and the fallback bases for IDs outside all namespaces.
+	 *
+	 * @author michael
+	 *
+	 */
+	public static final class RouteTable {
+		private final PrefixTrie<Route> routes;
+		private final ImmutableMap<String, IKnowledgeBase> bases;
+		private final ImmutableList<IKnowledgeBase> fallbacks;
+
+		private RouteTable(ImmutableMap<String, IKnowledgeBase> bases, ImmutableList<IKnowledgeBase> fallbacks) {
+			PrefixTrie.Builder<Route> b = PrefixTrie.builder();
+			for (Map.Entry<String, IKnowledgeBase> route : bases.entrySet()) {
+				b.put(route.getKey(), new Route(route.getKey(), route.getValue()));
+			}
+			this.routes = b.build();
+			this.bases = bases;
+			this.fallbacks = fallbacks;
+		}
+
+		/**
+		 * The namespaces and the bases owning them.
+		 *
+		 * @return
+		 */
+		public ImmutableMap<String, IKnowledgeBase> namespaces() {
+			return this.bases;
+		}
+
+		/**
+		 * The bases asked for IDs outside all namespaces, in order.
+		 *
+		 * @return
+		 */
+		public ImmutableList<IKnowledgeBase> fallbacks() {
+			return this.fallbacks;
+		}
+
+		public static Builder builder() {
+			return new Builder();
+		}
+
+		/**
+		 * A builder for {@link RouteTable}s.
+		 *
+		 * @author michael
+		 *
+		 */
+		public static final class Builder {
+			private final ImmutableMap.Builder<String, IKnowledgeBase> bases = ImmutableMap.builder();
+			private final ImmutableList.Builder<IKnowledgeBase> fallbacks = ImmutableList.builder();
+
+			private Builder() {
+			}
+
+			/**
+			 * Route all IDs whose IRI starts with the namespace to the given
+			 * base, unless a longer namespace matches as well.
+			 *
+			 * @param namespace
+			 * @param base
+			 * @return the builder
+			 */
+			public Builder route(String namespace, IKnowledgeBase base) {
+				Preconditions.checkArgument(!namespace.isEmpty(), "The empty namespace would match everything, use a fallback instead.");
+				this.bases.put(namespace, Preconditions.checkNotNull(base));
+				return this;
+			}
+
+			/**
+			 * Add a base to the end of the fallback chain.
+			 *
+			 * @param base
+			 * @return the builder
+			 */
+			public Builder fallback(IKnowledgeBase base) {
+				this.fallbacks.add(Preconditions.checkNotNull(base));
+				return this;
+			}
+
+			/**
+			 * Build the table
+			 *
+			 * @return
+			 * @throws IllegalArgumentException
+			 *             if a namespace was routed twice
+			 */
+			public RouteTable build() {
+				return new RouteTable(this.bases.build(), this.fallbacks.build());
+			}
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package miselico.prototypes.knowledgebase;
+
+/**
+ * A fast validator for the common case of an absolute IRI consisting of ASCII
+ * characters only, like {@code http://www.example.com/path?query#fragment}.
+ * The check does not allocate anything.
+ *
+ * The validator is conservative: each string it accepts is also accepted by
+ * {@link java.net.URI}, which returns such string unchanged. For anything
+ * unusual (non-ASCII characters, IPv6 literals, empty authorities, ...)
+ * {@link #isValid(String)} returns false and the full parse should be used.
+ *
+ * @author michael
+ *
+ */
+public final class SimpleIRI {
+
+	private SimpleIRI() {
+		// utility class
+	}
+
+	/**
+	 * Bit i is set for ASCII character i if it may occur in the authority, the
+	 * path, or the query.
+	 */
+	private static final long[] ALLOWED = new long[2];
+
+	static {
+		String allowed = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789" + "-._~" + "!$&'()*+,;=" + ":@/?";
+		for (int i = 0; i < allowed.length(); i++) {
+			char c = allowed.charAt(i);
+			SimpleIRI.ALLOWED[c >>> 6] |= 1L << (c & 63);
+		}
+	}
+
+	private static boolean allowed(char c) {
+		return (c < 128) && ((SimpleIRI.ALLOWED[c >>> 6] & (1L << (c & 63))) != 0);
+	}
+
+	private static boolean isAlpha(char c) {
+		return ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z'));
+	}
+
+	private static boolean isHex(char c) {
+		return ((c >= '0') && (c <= '9')) || ((c >= 'a') && (c <= 'f')) || ((c >= 'A') && (c <= 'F'));
+	}
+
+	/**
+	 * Is the given string a simple absolute IRI? A false result does not mean
+	 * the string is invalid, only that it needs a full parse.
+	 *
+	 * @param value
+	 * @return
+	 */
+	public static boolean isValid(String value) {
+		int length = value.length();
+		// scheme
+		if ((length == 0) || !SimpleIRI.isAlpha(value.charAt(0))) {
+			return false;
+		}
+		int i = 1;
+		while (i < length) {
+			char c = value.charAt(i);
+			if (c == ':') {
+				break;
+			}
+			if (!(SimpleIRI.isAlpha(c) || ((c >= '0') && (c <= '9')) || (c == '+') || (c == '-') || (c == '.'))) {
+				return false;
+			}
+			i++;
+		}
+		i++;
+		if ((i >= length) || (value.charAt(i) == '#')) {
+			// no colon or nothing after the scheme
+			return false;
+		}
+		// the authority must not be empty
+		if (value.startsWith("//", i)) {
+			i += 2;
+			if ((i == length) || (value.charAt(i) == '/') || (value.charAt(i) == '?') || (value.charAt(i) == '#')) {
+				return false;
+			}
+		}
+		boolean fragment = false;
+		for (; i < length; i++) {
+			char c = value.charAt(i);
+			if (c == '%') {
+				if ((i + 2 >= length) || !SimpleIRI.isHex(value.charAt(i + 1)) || !SimpleIRI.isHex(value.charAt(i + 2))) {
+					return false;
+				}
+				i += 2;
+			} else if (c == '#') {
+				if (fragment) {
+					return false;
+				}
+				fragment = true;
+			} else if (!SimpleIRI.allowed(c)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,569 @@
+package miselico.prototypes.knowledgebase;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.SetMultimap;
+
+/**
+ * A read-only {@link IFPKnowledgeBase} backed by a memory mapped snapshot
+ * file. The prototypes are read directly from the mapping when they are
+ * requested; opening a snapshot only reads the header and the (small) property
+ * dictionary. Several JVMs opening the same snapshot share the pages in the
+ * operating system's page cache, and the snapshot can be larger than the heap.
+ *
+ * A snapshot is written from a {@link KnowledgeBase} using
+ * {@link SnapshotKnowledgeBase#write(KnowledgeBase, Path)} and opened using
+ * {@link SnapshotKnowledgeBase#open(Path, IKnowledgeBase)}. The external
+ * {@link IKnowledgeBase} is not part of the snapshot and must be provided when
+ * opening it.
+ *
+ * The file format (all numbers big-endian) consists of a fixed size header
+ * followed by these sections:
+ * <ol>
+ * <li>The ID dictionary: int offsets followed by the UTF-8 bytes of the IRIs.
+ * The prototypes defined in the KB come first, such that the prototype in row
+ * i has ID i. The remaining IDs are the ones only referred to.</li>
+ * <li>The property dictionary, in the same format.</li>
+ * <li>The parent column, one ID per row.</li>
+ * <li>The add set: CSR offsets per row, and property and value columns.</li>
+ * <li>The remove set: CSR offsets per row, and property and value columns.
+ * Value -1 means removeAll.</li>
+ * <li>An open addressing hash table of (IRI hash, row + 1) pairs used to find
+ * the row of an ID.</li>
+ * </ol>
+ * The header contains a magic number, a format version, the sizes of the
+ * sections and a CRC32 checksum of everything after the header.
+ *
+ * Each section is mapped separately and must be smaller than 2GB.
+ *
+ * The IDs read from the snapshot are not interned (see {@link ID}), they are
+ * found by comparing their IRIs with the bytes in the mapping. Walking a
+ * snapshot therefore does not copy its IRIs into the global dictionary; only
+ * the properties, which are few, are interned when the snapshot is opened.
+ *
+ * @author michael
+ *
+ */
+public final class SnapshotKnowledgeBase implements IFPKnowledgeBase {
+
+	private static final int MAGIC = 0x504B4253; // "PKBS"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+
+	private static final int REMOVE_ALL = -1;
+
+	private final int rowCount;
+	private final IntBuffer idOffsets;
+	private final ByteBuffer idBytes;
+	private final Property[] properties;
+	private final IntBuffer parents;
+	private final IntBuffer addOffsets;
+	private final IntBuffer addProperties;
+	private final IntBuffer addValues;
+	private final IntBuffer removeOffsets;
+	private final IntBuffer removeProperties;
+	private final IntBuffer removeValues;
+	private final IntBuffer table;
+	private final int tableMask;
+
+	private final IKnowledgeBase external;
+
+	private SnapshotKnowledgeBase(FileChannel channel, IKnowledgeBase external) throws IOException {
+		this.external = external;
+		ByteBuffer header = channel.map(MapMode.READ_ONLY, 0, SnapshotKnowledgeBase.HEADER_SIZE);
+		if (header.getInt(0) != SnapshotKnowledgeBase.MAGIC) {
+			throw new IOException("The file is not a prototype knowledge base snapshot.");
+		}
+		if (header.getInt(4) != SnapshotKnowledgeBase.VERSION) {
+			throw new IOException("Unsupported snapshot version " + header.getInt(4));
+		}
+		int idCount = header.getInt(8);
+		this.rowCount = header.getInt(12);
+		int propertyCount = header.getInt(16);
+		int addCount = header.getInt(20);
+		int removeCount = header.getInt(24);
+		int tableSize = header.getInt(28);
+		if ((idCount < this.rowCount) || (this.rowCount < 0) || (propertyCount < 0) || (addCount < 0) || (removeCount < 0) || (tableSize <= this.rowCount) || (Integer.bitCount(tableSize) != 1)) {
+			throw new IOException("The snapshot header is corrupt.");
+		}
+		this.tableMask = tableSize - 1;
+
+		Mapper m = new Mapper(channel, SnapshotKnowledgeBase.HEADER_SIZE);
+		this.idOffsets = m.ints(idCount + 1);
+		this.idBytes = m.bytes(this.idOffsets.get(idCount));
+		IntBuffer propertyOffsets = m.ints(propertyCount + 1);
+		ByteBuffer propertyBytes = m.bytes(propertyOffsets.get(propertyCount));
+		this.parents = m.ints(this.rowCount);
+		this.addOffsets = m.ints(this.rowCount + 1);
+		this.addProperties = m.ints(addCount);
+		this.addValues = m.ints(addCount);
+		this.removeOffsets = m.ints(this.rowCount + 1);
+		this.removeProperties = m.ints(removeCount);
+		this.removeValues = m.ints(removeCount);
+		this.table = m.ints(tableSize * 2);
+		if (m.position != channel.size()) {
+			throw new IOException("The snapshot is truncated or has trailing data.");
+		}
+		// There are only few properties, these are resolved immediately.
+		this.properties = new Property[propertyCount];
+		for (int i = 0; i < propertyCount; i++) {
+			this.properties[i] = Property.trusted(SnapshotKnowledgeBase.string(propertyBytes, propertyOffsets.get(i), propertyOffsets.get(i + 1)));
+		}
+	}
+
+	/**
+	 * Maps consecutive sections of the file.
+	 */
+	private static final class Mapper {
+		private final FileChannel channel;
+		private long position;
+
+		Mapper(FileChannel channel, long start) {
+			this.channel = channel;
+			this.position = start;
+		}
+
+		IntBuffer ints(int count) throws IOException {
+			if ((count < 0) || (count > (Integer.MAX_VALUE / 4))) {
+				throw new IOException("The snapshot is corrupt, a section is too large.");
+			}
+			return this.bytes(count * 4).asIntBuffer();
+		}
+
+		ByteBuffer bytes(int count) throws IOException {
+			if (count < 0) {
+				throw new IOException("The snapshot is corrupt, a section has a negative size.");
+			}
+			if ((this.position + count) > this.channel.size()) {
+				throw new IOException("The snapshot is truncated.");
+			}
+			ByteBuffer section = this.channel.map(MapMode.READ_ONLY, this.position, count);
+			this.position += SnapshotKnowledgeBase.padded(count);
+			return section;
+		}
+	}
+
+	private static int padded(int byteCount) {
+		return (byteCount + 3) & ~3;
+	}
+
+	/**
+	 * Open the snapshot in the given file and verify its checksum. This reads
+	 * the whole file once, use {@link #open(Path, IKnowledgeBase, boolean)} to
+	 * skip the verification for a file which is known to be intact.
+	 *
+	 * @param file
+	 * @param external
+	 *            The {@link IKnowledgeBase} containing data defined
+	 *            externally. This must be the same as (or equivalent to) the
+	 *            external KB of the knowledge base the snapshot was written
+	 *            from.
+	 * @return The knowledge base
+	 * @throws IOException
+	 *             if the file cannot be read, is not a snapshot or the
+	 *             checksum does not match.
+	 */
+	public static SnapshotKnowledgeBase open(Path file, IKnowledgeBase external) throws IOException {
+		return SnapshotKnowledgeBase.open(file, external, true);
+	}
+
+	/**
+	 * Open the snapshot in the given file. If verifyChecksum is true, the
+	 * whole file is read once to verify its checksum. If it is false, only the
+	 * header and the bounds of the sections are checked. The IRIs in the
+	 * snapshot were validated before they were written and are not validated
+	 * again.
+	 *
+	 * @param file
+	 * @param external
+	 * @param verifyChecksum
+	 * @return The knowledge base
+	 * @throws IOException
+	 *             if the file cannot be read, is not a snapshot or the
+	 *             checksum does not match.
+	 */
+	public static SnapshotKnowledgeBase open(Path file, IKnowledgeBase external, boolean verifyChecksum) throws IOException {
+		Preconditions.checkNotNull(external);
+		// The mappings stay valid after the channel is closed.
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			SnapshotKnowledgeBase kb = new SnapshotKnowledgeBase(channel, external);
+			if (verifyChecksum) {
+				SnapshotKnowledgeBase.verify(channel);
+			}
+			return kb;
+		}
+	}
+
+	private static void verify(FileChannel channel) throws IOException {
+		long expected = channel.map(MapMode.READ_ONLY, 0, SnapshotKnowledgeBase.HEADER_SIZE).getLong(32);
+		CRC32 crc = new CRC32();
+		long position = SnapshotKnowledgeBase.HEADER_SIZE;
+		long size = channel.size();
+		while (position < size) {
+			long length = Math.min(Integer.MAX_VALUE, size - position);
+			crc.update(channel.map(MapMode.READ_ONLY, position, length));
+			position += length;
+		}
+		if (crc.getValue() != expected) {
+			throw new IOException("The checksum of the snapshot does not match.");
+		}
+	}
+
+	/**
+	 * Write a snapshot of the given knowledge base to the file. If the file
+	 * exists it will be overwritten.
+	 *
+	 * @param kb
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void write(KnowledgeBase kb, Path file) throws IOException {
+		Map<ID, PrototypeDefinition> protos = kb.KB;
+		// assign local numbers, the rows first.
+		Map<ID, Integer> idNumbers = new HashMap<>();
+		List<ID> idList = new ArrayList<>();
+		Map<Property, Integer> propertyNumbers = new HashMap<>();
+		List<Property> propertyList = new ArrayList<>();
+		for (ID id : protos.keySet()) {
+			SnapshotKnowledgeBase.number(id, idNumbers, idList);
+		}
+		int addCount = 0;
+		int removeCount = 0;
+		for (PrototypeDefinition def : protos.values()) {
+			SnapshotKnowledgeBase.number(def.parent, idNumbers, idList);
+			for (Entry<Property, ID> add : def.add.entries()) {
+				SnapshotKnowledgeBase.number(add.getKey(), propertyNumbers, propertyList);
+				SnapshotKnowledgeBase.number(add.getValue(), idNumbers, idList);
+				addCount++;
+			}
+			for (Property removeAll : def.remove.getRemoveAll()) {
+				SnapshotKnowledgeBase.number(removeAll, propertyNumbers, propertyList);
+				removeCount++;
+			}
+			for (Entry<Property, ID> remove : def.remove.entries()) {
+				SnapshotKnowledgeBase.number(remove.getKey(), propertyNumbers, propertyList);
+				SnapshotKnowledgeBase.number(remove.getValue(), idNumbers, idList);
+				removeCount++;
+			}
+		}
+		int rowCount = protos.size();
+		int tableSize = Integer.highestOneBit(Math.max(1, rowCount) * 2 - 1) << 1;
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			channel.position(SnapshotKnowledgeBase.HEADER_SIZE);
+			CRC32 crc = new CRC32();
+			// not closed, closing would close the channel before the header is
+			// written.
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(Channels.newOutputStream(channel), crc), 1 << 16));
+			SnapshotKnowledgeBase.writeStrings(idList, out);
+			SnapshotKnowledgeBase.writeStrings(propertyList, out);
+			// parents
+			for (PrototypeDefinition def : protos.values()) {
+				out.writeInt(idNumbers.get(def.parent));
+			}
+			// add set
+			int offset = 0;
+			out.writeInt(offset);
+			for (PrototypeDefinition def : protos.values()) {
+				offset += def.add.size();
+				out.writeInt(offset);
+			}
+			for (PrototypeDefinition def : protos.values()) {
+				for (Entry<Property, ID> add : def.add.entries()) {
+					out.writeInt(propertyNumbers.get(add.getKey()));
+				}
+			}
+			for (PrototypeDefinition def : protos.values()) {
+				for (Entry<Property, ID> add : def.add.entries()) {
+					out.writeInt(idNumbers.get(add.getValue()));
+				}
+			}
+			// remove set
+			offset = 0;
+			out.writeInt(offset);
+			for (PrototypeDefinition def : protos.values()) {
+				offset += def.remove.getRemoveAll().size() + def.remove.size();
+				out.writeInt(offset);
+			}
+			for (PrototypeDefinition def : protos.values()) {
+				for (Property removeAll : def.remove.getRemoveAll()) {
+					out.writeInt(propertyNumbers.get(removeAll));
+				}
+				for (Entry<Property, ID> remove : def.remove.entries()) {
+					out.writeInt(propertyNumbers.get(remove.getKey()));
+				}
+			}
+			for (PrototypeDefinition def : protos.values()) {
+				for (int i = 0; i < def.remove.getRemoveAll().size(); i++) {
+					out.writeInt(SnapshotKnowledgeBase.REMOVE_ALL);
+				}
+				for (Entry<Property, ID> remove : def.remove.entries()) {
+					out.writeInt(idNumbers.get(remove.getValue()));
+				}
+			}
+			// lookup table
+			int[] table = new int[tableSize * 2];
+			for (int row = 0; row < rowCount; row++) {
+				int hash = idList.get(row).hashCode();
+				int slot = SnapshotKnowledgeBase.slot(hash, tableSize - 1);
+				while (table[slot * 2 + 1] != 0) {
+					slot = (slot + 1) & (tableSize - 1);
+				}
+				table[slot * 2] = hash;
+				table[slot * 2 + 1] = row + 1;
+			}
+			for (int value : table) {
+				out.writeInt(value);
+			}
+			out.flush();
+
+			ByteBuffer header = ByteBuffer.allocate(SnapshotKnowledgeBase.HEADER_SIZE);
+			header.putInt(0, SnapshotKnowledgeBase.MAGIC);
+			header.putInt(4, SnapshotKnowledgeBase.VERSION);
+			header.putInt(8, idList.size());
+			header.putInt(12, rowCount);
+			header.putInt(16, propertyList.size());
+			header.putInt(20, addCount);
+			header.putInt(24, removeCount);
+			header.putInt(28, tableSize);
+			header.putLong(32, crc.getValue());
+			channel.write(header, 0);
+		}
+	}
+
+	private static <E> void number(E e, Map<E, Integer> numbers, List<E> list) {
+		if (!numbers.containsKey(e)) {
+			numbers.put(e, list.size());
+			list.add(e);
+		}
+	}
+
+	private static void writeStrings(List<?> values, DataOutputStream data) throws IOException {
+		List<byte[]> encoded = new ArrayList<>(values.size());
+		int offset = 0;
+		data.writeInt(offset);
+		for (Object value : values) {
+			byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+			encoded.add(bytes);
+			offset += bytes.length;
+			data.writeInt(offset);
+		}
+		for (byte[] bytes : encoded) {
+			data.write(bytes);
+		}
+		for (int i = offset; i < SnapshotKnowledgeBase.padded(offset); i++) {
+			data.write(0);
+		}
+	}
+
+	private static int slot(int hash, int mask) {
+		return ((hash * 0x9E3779B9) >>> 7) & mask;
+	}
+
+	private static String string(ByteBuffer bytes, int start, int end) {
+		byte[] b = new byte[end - start];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = bytes.get(start + i);
+		}
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The ID with the given number. This is not interned, unless the same IRI
+	 * was interned already.
+	 */
+	private ID id(int number) {
+		return ID.trusted(SnapshotKnowledgeBase.string(this.idBytes, this.idOffsets.get(number), this.idOffsets.get(number + 1)));
+	}
+
+	/**
+	 * Does the IRI stored for the given ID number equal the given string?
+	 */
+	private boolean idEquals(int number, String iri) {
+		int start = this.idOffsets.get(number);
+		int length = this.idOffsets.get(number + 1) - start;
+		if (length == iri.length()) {
+			boolean ascii = true;
+			for (int i = 0; i < length; i++) {
+				char c = iri.charAt(i);
+				if (c >= 0x80) {
+					ascii = false;
+					break;
+				}
+				if (this.idBytes.get(start + i) != c) {
+					return false;
+				}
+			}
+			if (ascii) {
+				return true;
+			}
+		} else if (length < iri.length()) {
+			// UTF-8 is never shorter than the number of chars
+			return false;
+		}
+		return SnapshotKnowledgeBase.string(this.idBytes, start, start + length).equals(iri);
+	}
+
+	/**
+	 * Find the row for the given ID.
+	 *
+	 * @param id
+	 * @return the row, or -1 if there is no such row
+	 */
+	private int row(ID id) {
+		int hash = id.hashCode();
+		String iri = id.toString();
+		int slot = SnapshotKnowledgeBase.slot(hash, this.tableMask);
+		while (true) {
+			int rowPlusOne = this.table.get(slot * 2 + 1);
+			if (rowPlusOne == 0) {
+				return -1;
+			}
+			if ((this.table.get(slot * 2) == hash) && this.idEquals(rowPlusOne - 1, iri)) {
+				return rowPlusOne - 1;
+			}
+			slot = (slot + 1) & this.tableMask;
+		}
+	}
+
+	/**
+	 * The definition in the given row. The changesets keep the IDs
+	 * themselves, see {@link MultimapStore}, such that reading a definition
+	 * does not intern its values.
+	 */
+	private PrototypeDefinition definition(int row) {
+		ImmutableSetMultimap.Builder<Property, ID> add = ImmutableSetMultimap.builder();
+		for (int i = this.addOffsets.get(row); i < this.addOffsets.get(row + 1); i++) {
+			add.put(this.properties[this.addProperties.get(i)], this.id(this.addValues.get(i)));
+		}
+		RemoveChangeSet remove = RemoveChangeSet.empty();
+		int removeStart = this.removeOffsets.get(row);
+		int removeEnd = this.removeOffsets.get(row + 1);
+		if (removeStart != removeEnd) {
+			ImmutableSetMultimap.Builder<Property, ID> removeValues = ImmutableSetMultimap.builder();
+			int[] removeAll = new int[removeEnd - removeStart];
+			int removeAllCount = 0;
+			for (int i = removeStart; i < removeEnd; i++) {
+				Property property = this.properties[this.removeProperties.get(i)];
+				int value = this.removeValues.get(i);
+				if (value == SnapshotKnowledgeBase.REMOVE_ALL) {
+					removeAll[removeAllCount++] = property.handle();
+				} else {
+					removeValues.put(property, this.id(value));
+				}
+			}
+			removeAll = Arrays.copyOf(removeAll, removeAllCount);
+			Arrays.sort(removeAll);
+			remove = RemoveChangeSet.of(new MultimapStore(removeValues.build()), removeAll);
+		}
+		return PrototypeDefinition.create(this.id(this.parents.get(row)), remove, AddChangeSet.of(new MultimapStore(add.build())));
+	}
+
+	@Override
+	public PrototypeDefinition lookup(ID id) {
+		int row = this.row(id);
+		if (row >= 0) {
+			return this.definition(row);
+		}
+		if (id.equals(Prototype.P_0.id)) {
+			return PrototypeDefinition.P_0;
+		}
+		return this.external.lookup(id);
+	}
+
+	@Override
+	public Prototype computeFixPoint(ID id) {
+		Deque<PrototypeDefinition> branch = new ArrayDeque<>();
+		int row = this.row(id);
+		if (row < 0) {
+			Preconditions.checkArgument(this.lookup(id) != null);
+		}
+		ID current = id;
+		while (!(Prototype.P_0.id.equals(current))) {
+			PrototypeDefinition def;
+			if (row >= 0) {
+				// the parent is looked up by number, no need for the hash table
+				int parent = this.parents.get(row);
+				def = this.definition(row);
+				row = parent < this.rowCount ? parent : -1;
+			} else {
+				def = this.lookup(current);
+			}
+			branch.addFirst(def);
+			current = def.parent;
+		}
+		// computed on the IDs themselves, a MutableChangeSet would intern them.
+		SetMultimap<Property, ID> fixpoint = LinkedHashMultimap.create();
+		for (PrototypeDefinition def : branch) {
+			for (Property property : def.remove.getRemoveAll()) {
+				fixpoint.removeAll(property);
+			}
+			def.remove.store.forEach(fixpoint::remove);
+			def.add.store.forEach(fixpoint::put);
+		}
+		AddChangeSet addCS = AddChangeSet.of(new MultimapStore(ImmutableSetMultimap.copyOf(fixpoint)));
+		PrototypeDefinition def = PrototypeDefinition.create(Prototype.P_0, RemoveChangeSet.empty(), addCS);
+		return new Prototype(id, def);
+	}
+
+	/**
+	 * Amount of prototypes internal to this KB
+	 *
+	 * @return
+	 */
+	public int size() {
+		return this.rowCount;
+	}
+
+	/**
+	 * All IDs of the prototypes internal to this KB. The IDs are read from the
+	 * snapshot while iterating.
+	 *
+	 * @return
+	 */
+	public Collection<ID> ids() {
+		return new AbstractList<ID>() {
+
+			@Override
+			public ID get(int index) {
+				Preconditions.checkElementIndex(index, SnapshotKnowledgeBase.this.rowCount);
+				return SnapshotKnowledgeBase.this.id(index);
+			}
+
+			@Override
+			public int size() {
+				return SnapshotKnowledgeBase.this.rowCount;
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return "SnapshotKnowledgeBase [size=" + this.size() + "]";
+	}
+}
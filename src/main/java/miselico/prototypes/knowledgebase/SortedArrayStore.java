@@ -0,0 +1,223 @@
+package miselico.prototypes.knowledgebase;
+
+import java.util.Arrays;
+import java.util.Map.Entry;
+import java.util.function.BiConsumer;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+
+/**
+ * A compact {@link ChangeSetStore}, used for the definitions of prototypes.
+ * The pairs are stored as two parallel arrays of property and value handles,
+ * sorted by property and then by value. Most definitions only have a handful
+ * of pairs, for which this takes a fraction of the memory of a multimap.
+ * Comparing two stores is a linear scan.
+ *
+ * The collections returned by {@link #get(Property)}, {@link #entries()} and
+ * {@link #entrySet()} are created on each call.
+ *
+ * @author michael
+ *
+ */
+final class SortedArrayStore extends ChangeSetStore {
+
+	static final SortedArrayStore EMPTY = new SortedArrayStore(new int[0], new int[0]);
+
+	private final int[] properties;
+	private final int[] values;
+	/**
+	 * Cached hash code, 0 if not yet computed.
+	 */
+	private int hash;
+
+	private SortedArrayStore(int[] properties, int[] values) {
+		this.properties = properties;
+		this.values = values;
+	}
+
+	/**
+	 * Create a store with the distinct pairs of the multimap.
+	 */
+	static SortedArrayStore of(Multimap<Property, ID> pairs) {
+		if (pairs.isEmpty()) {
+			return SortedArrayStore.EMPTY;
+		}
+		long[] keys = new long[pairs.size()];
+		int n = 0;
+		for (Entry<Property, ID> pair : pairs.entries()) {
+			keys[n++] = ((long) pair.getKey().handle() << 32) | pair.getValue().handle();
+		}
+		return SortedArrayStore.ofKeys(keys, n);
+	}
+
+	/**
+	 * Create a store with the pairs of the given store.
+	 */
+	static SortedArrayStore of(ChangeSetStore store) {
+		if (store instanceof SortedArrayStore) {
+			return (SortedArrayStore) store;
+		}
+		long[] keys = new long[store.size()];
+		int[] n = { 0 };
+		store.forEachHandles((property, values) -> {
+			for (int value : values) {
+				keys[n[0]++] = ((long) property << 32) | value;
+			}
+		});
+		return SortedArrayStore.ofKeys(keys, n[0]);
+	}
+
+	/**
+	 * Create a store from the first n keys, each encoding the property handle
+	 * in the upper and the value handle in the lower 32 bits. The array is
+	 * sorted in place.
+	 */
+	static SortedArrayStore ofKeys(long[] keys, int n) {
+		Arrays.sort(keys, 0, n);
+		return SortedArrayStore.ofSortedKeys(keys, n);
+	}
+
+	/**
+	 * Like {@link #ofKeys(long[], int)}, for keys which are sorted already.
+	 */
+	static SortedArrayStore ofSortedKeys(long[] keys, int n) {
+		int[] properties = new int[n];
+		int[] values = new int[n];
+		int distinct = 0;
+		for (int i = 0; i < n; i++) {
+			if ((i == 0) || (keys[i] != keys[i - 1])) {
+				properties[distinct] = (int) (keys[i] >>> 32);
+				values[distinct] = (int) keys[i];
+				distinct++;
+			}
+		}
+		if (distinct == 0) {
+			return SortedArrayStore.EMPTY;
+		}
+		if (distinct < n) {
+			properties = Arrays.copyOf(properties, distinct);
+			values = Arrays.copyOf(values, distinct);
+		}
+		return new SortedArrayStore(properties, values);
+	}
+
+	/**
+	 * The first position of the property, or the position where it would be.
+	 */
+	private int start(int property) {
+		int low = 0;
+		int high = this.properties.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (this.properties[middle] < property) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	@Override
+	ImmutableSet<ID> get(Property p) {
+		int property = p.handle();
+		int i = this.start(property);
+		if ((i == this.properties.length) || (this.properties[i] != property)) {
+			return ImmutableSet.of();
+		}
+		ImmutableSet.Builder<ID> ids = ImmutableSet.builder();
+		for (; (i < this.properties.length) && (this.properties[i] == property); i++) {
+			ids.add(ID.byHandle(this.values[i]));
+		}
+		return ids.build();
+	}
+
+	@Override
+	ImmutableSet<Property> properties() {
+		ImmutableSet.Builder<Property> properties = ImmutableSet.builder();
+		for (int i = 0; i < this.properties.length; i++) {
+			if ((i == 0) || (this.properties[i] != this.properties[i - 1])) {
+				properties.add(Property.byHandle(this.properties[i]));
+			}
+		}
+		return properties.build();
+	}
+
+	@Override
+	int size() {
+		return this.values.length;
+	}
+
+	@Override
+	void forEach(BiConsumer<? super Property, ? super ID> action) {
+		for (int i = 0; i < this.properties.length; i++) {
+			action.accept(Property.byHandle(this.properties[i]), ID.byHandle(this.values[i]));
+		}
+	}
+
+	@Override
+	void forEachHandles(HandleVisitor visitor) {
+		int start = 0;
+		for (int i = 1; i <= this.properties.length; i++) {
+			if ((i == this.properties.length) || (this.properties[i] != this.properties[start])) {
+				visitor.visit(this.properties[start], Arrays.copyOfRange(this.values, start, i));
+				start = i;
+			}
+		}
+	}
+
+	@Override
+	void addTo(MutableChangeSet mcs) {
+		mcs.union(this.properties, this.values);
+	}
+
+	@Override
+	void removeFrom(MutableChangeSet mcs) {
+		mcs.difference(this.properties, this.values);
+	}
+
+	@Override
+	ImmutableSetMultimap<Property, ID> asMultimap() {
+		ImmutableSetMultimap.Builder<Property, ID> multimap = ImmutableSetMultimap.builder();
+		this.forEach(multimap::put);
+		return multimap.build();
+	}
+
+	@Override
+	ImmutableSet<Entry<Property, ID>> entries() {
+		ImmutableSet.Builder<Entry<Property, ID>> entries = ImmutableSet.builder();
+		for (int i = 0; i < this.properties.length; i++) {
+			entries.add(Maps.immutableEntry(Property.byHandle(this.properties[i]), ID.byHandle(this.values[i])));
+		}
+		return entries.build();
+	}
+
+	@Override
+	boolean sameContent(ChangeSetStore other) {
+		if (other instanceof SortedArrayStore) {
+			SortedArrayStore o = (SortedArrayStore) other;
+			return Arrays.equals(this.properties, o.properties) && Arrays.equals(this.values, o.values);
+		}
+		return super.sameContent(other);
+	}
+
+	@Override
+	public int hashCode() {
+		int h = this.hash;
+		if ((h == 0) && (this.properties.length > 0)) {
+			int valuesHash = 0;
+			for (int i = 0; i < this.properties.length; i++) {
+				valuesHash += ID.byHandle(this.values[i]).hashCode();
+				if ((i + 1 == this.properties.length) || (this.properties[i + 1] != this.properties[i])) {
+					h += Property.byHandle(this.properties[i]).hashCode() ^ valuesHash;
+					valuesHash = 0;
+				}
+			}
+			this.hash = h;
+		}
+		return h;
+	}
+}
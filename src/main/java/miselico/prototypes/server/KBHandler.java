@@ -20,6 +20,7 @@ import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
+import com.google.common.base.Preconditions;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMultimap;
@@ -29,6 +30,7 @@ import miselico.prototypes.knowledgebase.ID;
 import miselico.prototypes.knowledgebase.IFPKnowledgeBase;
 import miselico.prototypes.knowledgebase.IKnowledgeBase;
 import miselico.prototypes.knowledgebase.Prototype;
+import miselico.prototypes.knowledgebase.PrototypeDefinition;
 import miselico.prototypes.serializers.Serializer;
 import miselico.prototypes.serializers.json.JSONSerializer;
 
@@ -37,7 +39,17 @@ import miselico.prototypes.serializers.json.JSONSerializer;
  * sets the Cache-Control HTTP header on the response if the supplied function
  * provides a value greater than 0 for the given ID. Further, this handler
  * manages a cache of ETags to prototypes and will not send the representation
- * if it the ETag matches and the respective Prototype has not changed.
+ * if it the ETag matches and the respective Prototype has not changed. The
+ * Cache-Control header of a fixpoint is based on the smallest value for the
+ * prototypes in its branch. A 404 response can be cached for the time set
+ * with {@link #setNegativeTimeout(long)}, if that is 0 the 404 response is
+ * marked uncacheable.
+ * 
+ * Several prototypes can be requested at once by repeating the p parameter. By
+ * default, the request fails with 404 if any of them is not defined. With the
+ * parameter partial=true, the prototypes which are not defined are left out of
+ * the response instead, and the {@value #NOT_FOUND_MAX_AGE_HEADER} header
+ * tells how long it can be cached that they are not defined.
  * 
  * @author michael
  *
@@ -99,6 +111,57 @@ public class KBHandler extends AbstractHandler {
 		this.ser = ser;
 	}
 
+	/**
+	 * Set how long, in seconds, clients can cache that a prototype is not
+	 * defined. The default is {@value #DEFAULT_NEGATIVE_TIMEOUT}, 0 makes the
+	 * 404 responses uncacheable.
+	 * 
+	 * @param negativeTimeout
+	 */
+	public void setNegativeTimeout(long negativeTimeout) {
+		Preconditions.checkArgument(negativeTimeout >= 0);
+		this.negativeTimeout = negativeTimeout;
+	}
+
+	public static final long DEFAULT_NEGATIVE_TIMEOUT = 60;
+
+	/**
+	 * The header of a partial response giving, in seconds, how long it can be
+	 * cached that the prototypes left out are not defined.
+	 */
+	public static final String NOT_FOUND_MAX_AGE_HEADER = "X-Not-Found-Max-Age";
+	private volatile long negativeTimeout = KBHandler.DEFAULT_NEGATIVE_TIMEOUT;
+
+	private void notFound(Request baseRequest, HttpServletResponse response) {
+		long timeout = this.negativeTimeout;
+		if (timeout > 0) {
+			response.setHeader("Cache-Control", "public, max-age=" + timeout);
+		} else {
+			response.setHeader("Cache-Control", "no-cache, max-age=0");
+		}
+		response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+		// handled, otherwise Jetty replaces the response with its error page
+		baseRequest.setHandled(true);
+	}
+
+	/**
+	 * A fixpoint changes when any prototype in its branch changes, so it can
+	 * be cached as long as all of them.
+	 */
+	private long fixpointTimeout(ID id) {
+		long minTimeout = Long.MAX_VALUE;
+		ID current = id;
+		while (!current.equals(Prototype.P_0.id)) {
+			minTimeout = Math.min(minTimeout, this.timeoutF.apply(current));
+			PrototypeDefinition def = this.kb.lookup(current);
+			if (def == null) {
+				break;
+			}
+			current = def.parent;
+		}
+		return minTimeout;
+	}
+
 	/**
 	 * Cache used to map the ETags provided to clients to Prototypes as they
 	 * were when the ETag was given out.
@@ -129,14 +192,22 @@ public class KBHandler extends AbstractHandler {
 			IDs.add(id);
 		}
 
+		// with partial=true, prototypes which are not defined are left out
+		// instead of failing the whole request
+		boolean partial = "true".equals(request.getParameter("partial"));
 		List<Prototype> prototypes = new ArrayList<>();
+		boolean leftOut = false;
 		if ((this.fpcomp == null) || (request.getParameter("fp") == null) || !request.getParameter("fp").equals("true")) {
 			// no fixpoints
 			long minTimeout = Long.MAX_VALUE;
 			for (ID id : IDs) {
 				Optional<? extends Prototype> optPrototype = this.kb.isDefined(id);
 				if (!optPrototype.isPresent()) {
-					response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+					if (partial) {
+						leftOut = true;
+						continue;
+					}
+					this.notFound(baseRequest, response);
 					return;
 				}
 
@@ -152,20 +223,36 @@ public class KBHandler extends AbstractHandler {
 			}
 		} else {
 			// get fixpoints.
+			long minTimeout = Long.MAX_VALUE;
 			for (ID id : IDs) {
-				Optional<? extends Prototype> optPrototype = this.kb.isDefined(id);
-				if (!optPrototype.isPresent()) {
-					response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+				if (this.kb.lookup(id) == null) {
+					if (partial) {
+						leftOut = true;
+						continue;
+					}
+					this.notFound(baseRequest, response);
 					return;
 				}
 				prototypes.add(this.fpcomp.apply(id));
+				long timeout = this.fixpointTimeout(id);
+				if (minTimeout > timeout) {
+					minTimeout = timeout;
+				}
+			}
+			// set cache time out
+			if (minTimeout > 0) {
+				response.setHeader("Cache-Control", "public, max-age=" + minTimeout);
 			}
 		}
+		if (leftOut) {
+			response.setHeader(KBHandler.NOT_FOUND_MAX_AGE_HEADER, Long.toString(this.negativeTimeout));
+		}
 		// serialize the prototypes to the stream.
 		try (OutputStreamWriter out = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8)) {
-			if (prototypes.size() == 1) {
+			if ((IDs.size() == 1) && (prototypes.size() == 1)) {
 				// If there is only one prototype requested, the ETag and Link
-				// header are used.
+				// header are used. A request for several prototypes always
+				// gets a list, even if only one of them was found.
 				Prototype prototype = prototypes.get(0);
 				// set see also https://tools.ietf.org/html/rfc5988
 				Collection<URI> seeAlso = this.seeAlsoMap.get(prototype.id);
@@ -6,6 +6,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.List;
 
 import org.eclipse.jetty.server.Handler;
@@ -23,6 +24,7 @@ import miselico.prototypes.knowledgebase.KnowledgeBase;
 import miselico.prototypes.knowledgebase.KnowledgeBase.Builder;
 import miselico.prototypes.knowledgebase.PredefinedKB;
 import miselico.prototypes.knowledgebase.Prototype;
+import miselico.prototypes.knowledgebase.SnapshotKnowledgeBase;
 import miselico.prototypes.serializers.simple.SimpleDeserializer;
 import miselico.prototypes.serializers.simple.SimpleSerializer;
 
@@ -32,7 +34,9 @@ import miselico.prototypes.serializers.simple.SimpleSerializer;
  * 
  * When run, specify a file with serialized prototypes ( Using
  * {@link SimpleSerializer}) . If no file is specified, a small example
- * knowledge base is loaded.
+ * knowledge base is loaded. A file ending in {@value #SNAPSHOT_EXTENSION} is
+ * opened as a {@link SnapshotKnowledgeBase} instead, which avoids parsing and
+ * checking the knowledge base at startup.
  * 
  * 
  * @author michael
@@ -44,30 +48,49 @@ public final class StartServer {
 		// utility class
 	}
 
+	/**
+	 * The file extension of {@link SnapshotKnowledgeBase} snapshots.
+	 */
+	public static final String SNAPSHOT_EXTENSION = ".pkbs";
+
 	/**
 	 * One possible way of serving prototypes. In concrete deployment the
 	 * administrator can setup a specific Jetty configuration as desired.
 	 * 
 	 * When run, specify a file with serialized prototypes. If no file is
-	 * specified, a small example knowledge base is loaded.
+	 * specified, a small example knowledge base is loaded. A file ending in
+	 * {@value #SNAPSHOT_EXTENSION} is opened as a snapshot.
+	 * 
+	 * If a second file name is given, a snapshot of the loaded knowledge base is
+	 * written to it, which can be used to start the server faster next time.
 	 * 
 	 * @param args
-	 *            The first argument can be a filename of serialized prototypes.
+	 *            The first argument can be a filename of serialized prototypes
+	 *            or a snapshot. The second argument can be a filename to write
+	 *            a snapshot to.
 	 * @throws Exception
 	 */
 	public static void main(String[] args) throws Exception {
-		InputStream input;
-		if (args.length < 1) {
-			input = StartServer.class.getResourceAsStream("exampleKB.proto");
-		} else {
-			String filename = args[0];
-			input = new FileInputStream(new File(filename));
-		}
 		IKnowledgeBase base;
-		try (InputStreamReader reader = new InputStreamReader(input, StandardCharsets.UTF_8)) {
-			List<Prototype> protos = new SimpleDeserializer().deserialize(reader);
-			Builder builder = new KnowledgeBase.Builder(PredefinedKB.kb);
-			base = builder.addAll(protos).build();
+		if ((args.length > 0) && args[0].endsWith(StartServer.SNAPSHOT_EXTENSION)) {
+			base = SnapshotKnowledgeBase.open(Paths.get(args[0]), PredefinedKB.kb);
+		} else {
+			InputStream input;
+			if (args.length < 1) {
+				input = StartServer.class.getResourceAsStream("exampleKB.proto");
+			} else {
+				String filename = args[0];
+				input = new FileInputStream(new File(filename));
+			}
+			try (InputStreamReader reader = new InputStreamReader(input, StandardCharsets.UTF_8)) {
+				List<Prototype> protos = new SimpleDeserializer().deserialize(reader);
+				Builder builder = new KnowledgeBase.Builder(PredefinedKB.kb);
+				KnowledgeBase kb = builder.addAll(protos).build();
+				if (args.length > 1) {
+					SnapshotKnowledgeBase.write(kb, Paths.get(args[1]));
+				}
+				base = kb;
+			}
 		}
 		Multimap<ID, URI> seeAlsoMap = HashMultimap.create();
 
@@ -0,0 +1,293 @@
+package miselico.prototypes.client;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import miselico.prototypes.experiments.MyKnowledgeBase;
+import miselico.prototypes.knowledgebase.ID;
+import miselico.prototypes.knowledgebase.KnowledgeBase;
+import miselico.prototypes.knowledgebase.Prototype;
+import miselico.prototypes.server.KBHandler;
+
+public class RemoteKBTest {
+
+	private KnowledgeBase kb;
+	private Server server;
+	private RemoteKB remote;
+	private KBHandler handler;
+
+	/**
+	 * Requests are held until this is opened
+	 */
+	private volatile CountDownLatch gate = new CountDownLatch(0);
+	private volatile long maxAge = 300;
+	/**
+	 * The number of requests received by the server
+	 */
+	private final AtomicInteger received = new AtomicInteger();
+
+	@Before
+	public void setup() throws Exception {
+		this.kb = MyKnowledgeBase.getSomebase();
+		this.server = new Server(0);
+		HandlerWrapper gated = new HandlerWrapper() {
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+				try {
+					RemoteKBTest.this.gate.await();
+				} catch (InterruptedException e) {
+					throw new ServletException(e);
+				}
+				RemoteKBTest.this.received.incrementAndGet();
+				super.handle(target, baseRequest, request, response);
+			}
+		};
+		this.handler = new KBHandler(this.kb, x -> this.maxAge);
+		gated.setHandler(this.handler);
+		this.server.setHandler(gated);
+		this.server.start();
+		int port = ((ServerConnector) this.server.getConnectors()[0]).getLocalPort();
+		this.remote = new RemoteKB(new URI("http://localhost:" + port + "/"));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.remote.close();
+		this.server.stop();
+	}
+
+	@Test
+	public void testAsync() {
+		List<ID> ids = new ArrayList<>(this.kb.prototypes().keySet());
+		for (ID id : ids) {
+			Prototype expected = this.kb.isDefined(id).get();
+			Prototype actual = this.remote.isDefinedAsync(id).join().get();
+			Assert.assertEquals(expected.id, actual.id);
+			Assert.assertEquals(expected.def, actual.def);
+			Assert.assertEquals(this.kb.computeFixPoint(id).def, this.remote.computeFixPointAsync(id).join().def);
+		}
+		List<Prototype> fixpoints = this.remote.computeFixPointAllAsync(ids).join();
+		for (int i = 0; i < ids.size(); i++) {
+			Assert.assertEquals(this.kb.computeFixPoint(ids.get(i)).def, fixpoints.get(i).def);
+		}
+		ID missing = ID.of("http://example.com/remote#missing");
+		Assert.assertEquals(Optional.empty(), this.remote.isDefinedAsync(missing).join());
+		try {
+			this.remote.computeFixPointAsync(missing).join();
+			Assert.fail();
+		} catch (CompletionException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testBatch() {
+		List<ID> ids = new ArrayList<>(this.kb.prototypes().keySet());
+		ID missing = ID.of("http://example.com/remote#missing");
+		List<ID> withMissing = new ArrayList<>(ids);
+		withMissing.add(missing);
+		// force several requests, some with a single ID
+		for (int[] limits : new int[][] { { 4000, 500 }, { 4000, 2 }, { 120, 500 } }) {
+			this.remote.setBatchLimits(limits[0], limits[1]);
+			Map<ID, Prototype> found = this.remote.isDefinedAll(withMissing);
+			Assert.assertEquals(ids.size(), found.size());
+			for (ID id : ids) {
+				Assert.assertEquals(this.kb.isDefined(id).get().def, found.get(id).def);
+			}
+			Assert.assertFalse(this.remote.isDefinedAllAsync(withMissing).join().get(ids.size()).isPresent());
+			Map<ID, Prototype> fixpoints = this.remote.computeFixPointAll(ids);
+			for (ID id : ids) {
+				Assert.assertEquals(this.kb.computeFixPoint(id).def, fixpoints.get(id).def);
+			}
+		}
+		try {
+			this.remote.computeFixPointAll(withMissing);
+			Assert.fail();
+		} catch (Error e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testCoalescing() {
+		ID id = this.kb.prototypes().keySet().iterator().next();
+		this.remote.setParsedCacheWeight(0);
+		this.gate = new CountDownLatch(1);
+		List<CompletableFuture<Prototype>> fixpoints = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			fixpoints.add(this.remote.computeFixPointAsync(id));
+		}
+		// a different key
+		CompletableFuture<Optional<Prototype>> plain = this.remote.isDefinedAsync(id);
+		this.gate.countDown();
+		for (CompletableFuture<Prototype> fixpoint : fixpoints) {
+			Assert.assertEquals(this.kb.computeFixPoint(id).def, fixpoint.join().def);
+		}
+		Assert.assertEquals(this.kb.isDefined(id).get().def, plain.join().get().def);
+		RemoteKB.CoalescingStats stats = this.remote.coalescingStats();
+		Assert.assertEquals(2, stats.sent);
+		Assert.assertEquals(9, stats.coalesced);
+		Assert.assertEquals(0, stats.bypassed);
+
+		// nothing in flight anymore, so this is sent
+		this.remote.computeFixPoint(id);
+		Assert.assertEquals(3, this.remote.coalescingStats().sent);
+
+		this.remote.setMaxInFlight(0);
+		this.remote.computeFixPointAsync(id).join();
+		Assert.assertEquals(1, this.remote.coalescingStats().bypassed);
+	}
+
+	@Test
+	public void testParsedCache() {
+		ID id = ID.of("http://example.ie/#Galway");
+		Prototype first = this.remote.isDefined(id).get();
+		Assert.assertSame(first, this.remote.isDefined(id).get());
+		Assert.assertSame(first, this.remote.isDefinedAsync(id).join().get());
+		Prototype fixpoint = this.remote.computeFixPointAsync(id).join();
+		Assert.assertSame(fixpoint, this.remote.computeFixPoint(id));
+		Assert.assertEquals(2, this.remote.coalescingStats().sent);
+		Assert.assertEquals(3, this.remote.parsedCacheStats().hits);
+		Assert.assertEquals(2, this.remote.parsedCacheStats().size);
+
+		// without max-age, prototypes are revalidated on each use
+		this.maxAge = 0;
+		ID other = ID.of("http://example.de/#Antwerp");
+		Prototype otherFirst = this.remote.computeFixPointAsync(other).join();
+		Assert.assertSame(otherFirst, this.remote.computeFixPointAsync(other).join());
+		Assert.assertSame(otherFirst, this.remote.computeFixPoint(other));
+		Assert.assertEquals(2, this.remote.parsedCacheStats().revalidated);
+		Assert.assertEquals(3, this.remote.parsedCacheStats().hits);
+	}
+
+	@Test
+	public void testNegativeCache() {
+		ID missing = ID.of("http://example.com/remote#negative");
+		Assert.assertFalse(this.remote.isDefined(missing).isPresent());
+		Assert.assertFalse(this.remote.isDefined(missing).isPresent());
+		Assert.assertFalse(this.remote.isDefinedAsync(missing).join().isPresent());
+		Assert.assertEquals(1, this.remote.coalescingStats().sent);
+		Assert.assertEquals(2, this.remote.parsedCacheStats().negativeHits);
+
+		// misses learned from a partial batch response
+		ID otherMissing = ID.of("http://example.com/remote#otherNegative");
+		ID defined = ID.of("http://example.ie/#Galway");
+		Assert.assertEquals(1, this.remote.isDefinedAll(ImmutableList.of(otherMissing, defined)).size());
+		Assert.assertNull(this.remote.lookup(otherMissing));
+		Assert.assertEquals(3, this.remote.parsedCacheStats().negativeHits);
+
+		this.remote.setNegativeCache(1000, 0, TimeUnit.SECONDS);
+		Assert.assertNull(this.remote.lookup(missing));
+		Assert.assertNull(this.remote.lookup(missing));
+		Assert.assertEquals(3, this.remote.coalescingStats().sent);
+	}
+
+	@Test
+	public void testUncacheableMisses() {
+		this.handler.setNegativeTimeout(0);
+		ID missing = ID.of("http://example.com/remote#uncacheable");
+		Assert.assertFalse(this.remote.isDefined(missing).isPresent());
+		Assert.assertFalse(this.remote.isDefined(missing).isPresent());
+		Assert.assertEquals(2, this.remote.coalescingStats().sent);
+
+		ID otherMissing = ID.of("http://example.com/remote#otherUncacheable");
+		ID defined = ID.of("http://example.ie/#Galway");
+		Assert.assertEquals(1, this.remote.isDefinedAll(ImmutableList.of(otherMissing, defined)).size());
+		Assert.assertEquals(0, this.remote.parsedCacheStats().negativeHits);
+		Assert.assertEquals(0, this.remote.parsedCacheStats().negativeSize);
+	}
+
+	@Test
+	public void testClientFixpoints() {
+		this.remote.setFixpointMode(RemoteKB.FixpointMode.CLIENT);
+		List<ID> ids = new ArrayList<>(this.kb.prototypes().keySet());
+		Map<ID, Prototype> fixpoints = this.remote.computeFixPointAll(ids);
+		for (ID id : ids) {
+			Assert.assertEquals(this.kb.computeFixPoint(id).def, fixpoints.get(id).def);
+			Assert.assertEquals(this.kb.computeFixPoint(id).def, this.remote.computeFixPoint(id).def);
+			Assert.assertEquals(this.kb.computeFixPoint(id).def, this.remote.computeFixPointAsync(id).join().def);
+		}
+		RemoteKB.FixpointStats stats = this.remote.fixpointStats();
+		Assert.assertEquals(0, stats.server);
+		// each definition is fetched once, all in one batch request,
+		// afterwards everything is cached
+		Assert.assertEquals(ids.size(), stats.ancestorFetches);
+		Assert.assertEquals(1, this.received.get());
+
+		ID missing = ID.of("http://example.com/remote#clientMissing");
+		try {
+			this.remote.computeFixPoint(missing);
+			Assert.fail();
+		} catch (Error e) {
+			// expected
+		}
+		try {
+			this.remote.computeFixPointAsync(missing).join();
+			Assert.fail();
+		} catch (CompletionException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testClientFixpointMemo() {
+		this.remote.setFixpointMode(RemoteKB.FixpointMode.CLIENT);
+		ID antwerp = ID.of("http://example.de/#Antwerp");
+		// without max-age, the definitions and so the fixpoints are stale at
+		// once and are not kept
+		this.maxAge = 0;
+		Assert.assertEquals(this.kb.computeFixPoint(antwerp).def, this.remote.computeFixPoint(antwerp).def);
+		Assert.assertEquals(0, this.remote.fixpointStats().memoized);
+
+		this.maxAge = 300;
+		this.remote.setParsedCacheWeight(0);
+		Assert.assertEquals(this.kb.computeFixPoint(antwerp).def, this.remote.computeFixPoint(antwerp).def);
+		Assert.assertEquals(0, this.remote.fixpointStats().memoized);
+
+		this.remote.setParsedCacheWeight(RemoteKB.DEFAULT_PARSED_CACHE_WEIGHT);
+		Assert.assertEquals(this.kb.computeFixPoint(antwerp).def, this.remote.computeFixPoint(antwerp).def);
+		Assert.assertEquals(3, this.remote.fixpointStats().memoized);
+	}
+
+	@Test
+	public void testAdaptiveFixpoints() {
+		this.remote.setFixpointMode(RemoteKB.FixpointMode.ADAPTIVE);
+		ID antwerp = ID.of("http://example.de/#Antwerp");
+		ID galway = ID.of("http://example.ie/#Galway");
+		// the first one probes the client side, fetching the whole branch
+		Assert.assertEquals(this.kb.computeFixPoint(antwerp).def, this.remote.computeFixPoint(antwerp).def);
+		Assert.assertEquals(1, this.remote.fixpointStats().client);
+		Assert.assertEquals(3, this.remote.fixpointStats().ancestorFetches);
+		// the hit rate is low and the definition is not cached
+		Assert.assertEquals(this.kb.computeFixPoint(galway).def, this.remote.computeFixPoint(galway).def);
+		Assert.assertEquals(1, this.remote.fixpointStats().server);
+		// the branch is cached
+		Assert.assertEquals(this.kb.computeFixPoint(antwerp).def, this.remote.computeFixPointAsync(antwerp).join().def);
+		Assert.assertEquals(2, this.remote.fixpointStats().client);
+		Assert.assertEquals(1, this.remote.fixpointStats().server);
+	}
+}
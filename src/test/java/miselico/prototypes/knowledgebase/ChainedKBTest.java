@@ -0,0 +1,109 @@
+package miselico.prototypes.knowledgebase;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import miselico.prototypes.experiments.Datasets;
+
+public class ChainedKBTest {
+
+	@Test
+	public void testChainList() {
+		// used to fail with an ArrayStoreException
+		IKnowledgeBase chained = ChainedKB.chain(ImmutableList.of(EmptyKnowledgeBase.instance, PredefinedKB.kb));
+		Prototype five = PredefinedKB.get(5);
+		Assert.assertEquals(five, chained.isDefined(five.id).get());
+	}
+
+	@Test
+	public void testFiltered() {
+		KnowledgeBase first = Datasets.incremental(2000).build();
+		KnowledgeBase second = new KnowledgeBase.Builder(ChainedKB.chain(first, PredefinedKB.kb)).add(Prototypes.builder(Prototype.P_0).build(ID.of("http://example.com/chained#second"))).build();
+		ChainedKB chained = ChainedKB.builder().addFiltered(first, 0.01).addFiltered(second, 0.01).add(PredefinedKB.kb).build();
+
+		for (ID id : first.prototypes().keySet()) {
+			Assert.assertSame(first.prototypes().get(id), chained.lookup(id));
+		}
+		ID inFirst = first.prototypes().keySet().iterator().next();
+		Assert.assertEquals(first.isDefined(inFirst).get(), chained.isDefined(inFirst).get());
+		ID inSecond = ID.of("http://example.com/chained#second");
+		Assert.assertSame(second.prototypes().get(inSecond), chained.lookup(inSecond));
+		Assert.assertSame(PrototypeDefinition.P_0, chained.lookup(Prototype.P_0.id));
+		Assert.assertEquals(PredefinedKB.get(7), chained.isDefined(PredefinedKB.get(7).id).get());
+
+		int misses = 10000;
+		for (int i = 0; i < misses; i++) {
+			Assert.assertNull(chained.lookup(ID.of("http://example.com/chained#missing" + i)));
+		}
+		ChainedKB.FilterStats stats = chained.filterStats(0).get();
+		Assert.assertTrue(stats.skipped > 0);
+		Assert.assertTrue(stats.observedFpp() < 0.05);
+		Assert.assertTrue(stats.expectedFpp < 0.05);
+		Assert.assertFalse(chained.filterStats(2).isPresent());
+	}
+
+	@Test
+	public void testFilteredExternal() {
+		// X is only defined in the external KB of the filtered base, which is
+		// the only base of the chain.
+		ID x = ID.of("http://example.com/chained#external");
+		ID child = ID.of("http://example.com/chained#childOfExternal");
+		KnowledgeBase external = new KnowledgeBase.Builder(PredefinedKB.kb).add(Prototypes.builder(Prototype.P_0).build(x)).build();
+		KnowledgeBase base = new KnowledgeBase.Builder(external).add(Prototypes.builder(x).build(child)).build();
+		Assert.assertNotNull(base.lookup(x));
+		ChainedKB chained = ChainedKB.builder().addFiltered(base, 0.01).build();
+		Assert.assertSame(base.lookup(x), chained.lookup(x));
+		Assert.assertEquals(base.isDefined(x), chained.isDefined(x));
+		Assert.assertSame(base.lookup(child), chained.lookup(child));
+		Assert.assertEquals(PredefinedKB.get(7), chained.isDefined(PredefinedKB.get(7).id).get());
+		// the child can be resolved through the chain
+		KnowledgeBase derived = new KnowledgeBase.Builder(chained).add(Prototypes.builder(child).build(ID.of("http://example.com/chained#grandchild"))).build();
+		Assert.assertNotNull(derived.computeFixPoint(ID.of("http://example.com/chained#grandchild")));
+	}
+
+	@Test
+	public void testRefresh() {
+		Set<ID> ids = new HashSet<>();
+		KnowledgeBase.Builder b = new KnowledgeBase.Builder(PredefinedKB.kb);
+		KnowledgeBase[] current = { b.build() };
+		IKnowledgeBase changing = id -> current[0].lookup(id);
+		ChainedKB chained = ChainedKB.builder().addFiltered(changing, () -> ids, 0.001).build();
+
+		ID a = ID.of("http://example.com/chained#refreshA");
+		current[0] = b.add(Prototypes.builder(Prototype.P_0).build(a)).build();
+		ids.add(a);
+		// the filter does not know a yet
+		Assert.assertNull(chained.lookup(a));
+		chained.refreshFilters();
+		Assert.assertNotNull(chained.lookup(a));
+	}
+
+	@Test
+	public void testCacheMisses() {
+		int[] asked = { 0 };
+		IKnowledgeBase counting = id -> {
+			asked[0]++;
+			return null;
+		};
+		ChainedKB chained = ChainedKB.builder().add(counting).add(PredefinedKB.kb).cacheMisses(100, 1, TimeUnit.HOURS).build();
+		ID missing = ID.of("http://example.com/chained#cachedMiss");
+		Assert.assertNull(chained.lookup(missing));
+		Assert.assertFalse(chained.isDefined(missing).isPresent());
+		Assert.assertNull(chained.lookup(missing));
+		Assert.assertEquals(1, asked[0]);
+		Assert.assertEquals(2, chained.missCacheStats().get().hitCount());
+		// found prototypes are not cached
+		Assert.assertEquals(PredefinedKB.get(3), chained.isDefined(PredefinedKB.get(3).id).get());
+		Assert.assertEquals(2, asked[0]);
+		chained.refreshFilters();
+		Assert.assertNull(chained.lookup(missing));
+		Assert.assertEquals(3, asked[0]);
+		Assert.assertFalse(ChainedKB.builder().build().missCacheStats().isPresent());
+	}
+}
@@ -0,0 +1,105 @@
+package miselico.prototypes.knowledgebase;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.SetMultimap;
+
+public class ChangeSetTest {
+
+	private static Property property(int i) {
+		return Property.of("http://example.com/changeset#p" + i);
+	}
+
+	private static ID value(int i) {
+		return ID.of("http://example.com/changeset#v" + i);
+	}
+
+	@Test
+	public void testSameAsMultimap() {
+		Random r = new Random(1234);
+		for (int round = 0; round < 500; round++) {
+			ImmutableSetMultimap.Builder<Property, ID> expected = ImmutableSetMultimap.builder();
+			AddChangeSet.Builder forward = AddChangeSet.builder();
+			int n = r.nextInt(8);
+			int[] properties = new int[n];
+			int[] values = new int[n];
+			for (int i = 0; i < n; i++) {
+				properties[i] = r.nextInt(5);
+				values[i] = r.nextInt(5);
+				expected.put(ChangeSetTest.property(properties[i]), ChangeSetTest.value(values[i]));
+				forward.andAdd(ChangeSetTest.property(properties[i]), ChangeSetTest.value(values[i]));
+			}
+			// the same pairs, added in reverse
+			AddChangeSet.Builder backward = AddChangeSet.builder();
+			for (int i = n - 1; i >= 0; i--) {
+				backward.andAdd(ChangeSetTest.property(properties[i]), ChangeSetTest.value(values[i]));
+			}
+			ImmutableSetMultimap<Property, ID> multimap = expected.build();
+			AddChangeSet add = forward.build();
+			Assert.assertEquals(add, backward.build());
+			Assert.assertEquals(multimap.hashCode(), add.hashCode());
+			Assert.assertEquals(multimap.entries(), add.entries());
+			Assert.assertEquals(multimap.keySet(), add.affectsProperties());
+			Assert.assertEquals(multimap.size(), add.size());
+			for (int p = 0; p < 5; p++) {
+				Assert.assertEquals(multimap.get(ChangeSetTest.property(p)), add.apply(ChangeSetTest.property(p)));
+			}
+		}
+	}
+
+	@Test
+	public void testRemoveAll() {
+		RemoveChangeSet a = RemoveChangeSet.builder().andRemove(ChangeSetTest.property(1), ChangeSetTest.value(1)).andRemoveAll(ChangeSetTest.property(2)).andRemoveAll(ChangeSetTest.property(3)).build();
+		RemoveChangeSet b = RemoveChangeSet.builder().andRemoveAll(ChangeSetTest.property(3)).andRemoveAll(ChangeSetTest.property(2)).andRemove(ChangeSetTest.property(1), ChangeSetTest.value(1)).build();
+		Assert.assertEquals(a, b);
+		Assert.assertEquals(a.hashCode(), b.hashCode());
+		Assert.assertEquals(ImmutableSet.of(ChangeSetTest.property(2), ChangeSetTest.property(3)), a.getRemoveAll());
+		Assert.assertEquals(ImmutableSet.of(ChangeSetTest.property(1), ChangeSetTest.property(2), ChangeSetTest.property(3)), a.affectsProperties());
+		Assert.assertNotEquals(a, RemoveChangeSet.builder().andRemove(ChangeSetTest.property(1), ChangeSetTest.value(1)).andRemoveAll(ChangeSetTest.property(2)).build());
+		Assert.assertTrue(RemoveChangeSet.builder().build().isEmpty());
+	}
+
+	@Test
+	public void testMutableChangeSet() {
+		Random r = new Random(4321);
+		SetMultimap<Property, ID> expected = HashMultimap.create();
+		MutableChangeSet first = MutableChangeSet.acquire();
+		// the pooled instance is in use, so this is a different one
+		MutableChangeSet mcs = MutableChangeSet.acquire();
+		Assert.assertNotSame(first, mcs);
+		first.release();
+		for (int i = 0; i < 5000; i++) {
+			Property p = ChangeSetTest.property(r.nextInt(10));
+			ID v = ChangeSetTest.value(r.nextInt(10));
+			switch (r.nextInt(4)) {
+			case 0:
+			case 1:
+				expected.put(p, v);
+				mcs.add(p.handle(), v.handle());
+				break;
+			case 2:
+				expected.remove(p, v);
+				mcs.remove(p.handle(), v.handle());
+				break;
+			default:
+				if (r.nextInt(10) == 0) {
+					expected.removeAll(p);
+					mcs.removeAll(p.handle());
+				}
+			}
+			Assert.assertEquals(expected.size(), mcs.size());
+		}
+		Assert.assertEquals(ImmutableSetMultimap.copyOf(expected), AddChangeSet.fromMutable(mcs).store.asMultimap());
+		mcs.release();
+		// reused and empty again
+		MutableChangeSet reused = MutableChangeSet.acquire();
+		Assert.assertEquals(0, reused.size());
+		reused.release();
+	}
+}
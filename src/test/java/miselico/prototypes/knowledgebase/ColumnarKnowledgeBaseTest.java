@@ -0,0 +1,55 @@
+package miselico.prototypes.knowledgebase;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import miselico.prototypes.experiments.Datasets;
+import miselico.prototypes.experiments.MyKnowledgeBase;
+
+public class ColumnarKnowledgeBaseTest {
+
+	private static void assertSameContent(KnowledgeBase kb, ColumnarKnowledgeBase columnar) {
+		Assert.assertEquals(kb.size(), columnar.size());
+		for (ID id : kb.prototypes().keySet()) {
+			Assert.assertEquals(kb.isDefined(id), columnar.isDefined(id));
+			Assert.assertEquals(kb.computeFixPoint(id), columnar.computeFixPoint(id));
+		}
+		Assert.assertEquals(kb.isDefined(Prototype.P_0.id), columnar.isDefined(Prototype.P_0.id));
+		ID undefined = ID.of("http://example.com#undefinedInColumnar");
+		Assert.assertFalse(columnar.isDefined(undefined).isPresent());
+	}
+
+	@Test
+	public void testExampleKB() {
+		KnowledgeBase kb = MyKnowledgeBase.getSomebase();
+		ColumnarKnowledgeBase columnar = ColumnarKnowledgeBase.copyOf(kb);
+		ColumnarKnowledgeBaseTest.assertSameContent(kb, columnar);
+		// literals come from the external KB
+		Prototype galway = PredefinedKB.get("Galway");
+		Assert.assertEquals(galway, columnar.isDefined(galway.id).get());
+	}
+
+	@Test
+	public void testIncremental() {
+		KnowledgeBase.Builder builder = Datasets.incremental(2000);
+		ColumnarKnowledgeBaseTest.assertSameContent(builder.build(), builder.buildColumnar());
+	}
+
+	@Test
+	public void testChangedBase() {
+		KnowledgeBase base = Datasets.incremental(500).build();
+		ID replaced = ID.of("http://www.example.com#object7");
+		KnowledgeBase.Builder builder = new KnowledgeBase.Builder(base).remove(replaced).add(Prototypes.builder(Prototype.P_0).build(replaced));
+		builder.add(Prototypes.builder(replaced).build(ID.of("http://example.com#addedToColumnar")));
+		ColumnarKnowledgeBaseTest.assertSameContent(builder.build(), builder.buildColumnar());
+		// the changes are checked like for build()
+		Error error = null;
+		try {
+			new KnowledgeBase.Builder(base).remove(ID.of("http://www.example.com#object0")).buildColumnar();
+		} catch (Error e) {
+			error = e;
+		}
+		Assert.assertNotNull("Expected an error", error);
+	}
+
+}
@@ -0,0 +1,65 @@
+package miselico.prototypes.knowledgebase;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IDTest {
+
+	@Test
+	public void testInterned() {
+		ID a = ID.of("http://example.com#interned").canonical();
+		ID b = ID.of("http://example.com#interned");
+		Assert.assertSame("Once interned, the same IRI must result in the same instance", a, b);
+		Assert.assertSame(a, ID.byHandle(a.handle()));
+		Assert.assertNotEquals(a.handle(), ID.of("http://example.com#interned2").handle());
+	}
+
+	@Test
+	public void testLookupDoesNotIntern() {
+		int before = ID.dictionarySize();
+		ID a = ID.of("http://example.com#onlyLookedUp");
+		Assert.assertEquals(before, ID.dictionarySize());
+		KnowledgeBase kb = new KnowledgeBase.Builder(EmptyKnowledgeBase.instance).add(Prototypes.builder(Prototype.P_0).build(ID.of("http://example.com#stored"))).build();
+		Assert.assertNull(kb.lookup(a));
+		Assert.assertEquals(0, kb.children(a).size());
+		Assert.assertEquals(0, PropertyIndex.of(kb).withValue(Property.of("http://example.com#prop"), a).size());
+		Assert.assertEquals(-1, a.internedHandle());
+		Assert.assertEquals(a, ID.of("http://example.com#onlyLookedUp"));
+		Assert.assertNotEquals(a, ID.of("http://example.com#stored"));
+	}
+
+	@Test
+	public void testInterningLater() {
+		ID a = ID.of("http://example.com#internedLater");
+		ID b = ID.of("http://example.com#internedLater");
+		Assert.assertNotSame(a, b);
+		Assert.assertEquals(a, b);
+		int handle = a.handle();
+		Assert.assertEquals(handle, b.internedHandle());
+		Assert.assertEquals(a, b);
+		Assert.assertSame(a.canonical(), ID.of("http://example.com#internedLater"));
+	}
+
+	@Test
+	public void testConstructedEqualsInterned() throws URISyntaxException {
+		ID a = ID.of("http://example.com#constructed").canonical();
+		ID b = new ID(new URI("http://example.com#constructed"));
+		Assert.assertEquals(a, b);
+		Assert.assertEquals(a.hashCode(), b.hashCode());
+		Assert.assertEquals(a.handle(), b.handle());
+		Assert.assertSame(a, b.canonical());
+	}
+
+	@Test
+	public void testPropertyInterned() throws URISyntaxException {
+		Property a = Property.of("http://example.com#prop");
+		Property b = new Property(new URI("http://example.com#prop"));
+		Assert.assertSame(a, Property.of("http://example.com#prop"));
+		Assert.assertEquals(a, b);
+		Assert.assertSame(a, b.canonical());
+	}
+
+}
@@ -0,0 +1,306 @@
+package miselico.prototypes.knowledgebase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.SetMultimap;
+
+import miselico.prototypes.experiments.Datasets;
+import miselico.prototypes.experiments.MyKnowledgeBase;
+
+public class KnowledgeBaseTest {
+
+	private static final Property knows = Property.of("http://example.com#knows");
+
+	private static KnowledgeBase.Builder cyclic() {
+		KnowledgeBase.Builder b = new KnowledgeBase.Builder(EmptyKnowledgeBase.instance);
+		ID a = ID.of("http://example.com#cycleA");
+		ID c = ID.of("http://example.com#cycleC");
+		b.add(Prototypes.builder(c).build(a));
+		b.add(Prototypes.builder(a).build(c));
+		return b;
+	}
+
+	private static KnowledgeBase.Builder dangling() {
+		KnowledgeBase.Builder b = new KnowledgeBase.Builder(EmptyKnowledgeBase.instance);
+		b.add(Prototypes.builder(Prototype.P_0).add(KnowledgeBaseTest.knows, ID.of("http://example.com#nowhere")).build(ID.of("http://example.com#dangling")));
+		return b;
+	}
+
+	private static String errorOf(Runnable r) {
+		try {
+			r.run();
+		} catch (Error e) {
+			return e.getMessage();
+		}
+		Assert.fail("Expected an error");
+		return null;
+	}
+
+	@Test
+	public void testParallelCheckSameErrors() {
+		for (KnowledgeBase.Builder b : new KnowledgeBase.Builder[] { KnowledgeBaseTest.cyclic(), KnowledgeBaseTest.dangling() }) {
+			Assert.assertEquals(KnowledgeBaseTest.errorOf(() -> b.build()), KnowledgeBaseTest.errorOf(() -> b.build(ForkJoinPool.commonPool())));
+		}
+	}
+
+	@Test
+	public void testParallelCheckConsistent() {
+		KnowledgeBase.Builder b = Datasets.incremental(20000);
+		Assert.assertEquals(b.build().prototypes(), b.build(ForkJoinPool.commonPool()).prototypes());
+	}
+
+	@Test
+	public void testExternalParentIsGrounded() {
+		// derive from a prototype defined externally
+		KnowledgeBase base = new KnowledgeBase.Builder(PredefinedKB.kb).add(Prototypes.builder(Prototype.P_0).build(ID.of("http://example.com#base"))).build();
+		KnowledgeBase.Builder b = new KnowledgeBase.Builder(ChainedKB.chain(base, PredefinedKB.kb));
+		b.add(Prototypes.builder(ID.of("http://example.com#base")).build(ID.of("http://example.com#derived")));
+		Assert.assertTrue(b.build().isDefined(ID.of("http://example.com#derived")).isPresent());
+		Assert.assertTrue(b.build(ForkJoinPool.commonPool()).isDefined(ID.of("http://example.com#derived")).isPresent());
+	}
+
+
+	@Test
+	public void testParallelFixPointSame() {
+		ForkJoinPool single = new ForkJoinPool(1);
+		try {
+			for (KnowledgeBase kb : new KnowledgeBase[] { Datasets.incremental(20000).build(), Datasets.blocks(3).build(), MyKnowledgeBase.getSomebase() }) {
+				Assert.assertEquals(kb.computeFixPoint().prototypes(), kb.computeFixPoint(ForkJoinPool.commonPool()).prototypes());
+				Assert.assertEquals(kb.computeFixPoint().prototypes(), kb.computeFixPoint(single).prototypes());
+			}
+		} finally {
+			single.shutdown();
+		}
+	}
+
+	@Test
+	public void testCachedFixPointSame() {
+		KnowledgeBase kb = Datasets.incremental(5000).build();
+		KnowledgeBase fixpoints = kb.computeFixPoint();
+		for (ID id : kb.KB.keySet()) {
+			Assert.assertEquals(fixpoints.KB.get(id), kb.computeFixPoint(id).def);
+		}
+		long misses = kb.fixPointCacheStats().missCount();
+		// now everything is cached
+		for (ID id : kb.KB.keySet()) {
+			Assert.assertEquals(fixpoints.KB.get(id), kb.computeFixPoint(id).def);
+		}
+		Assert.assertEquals(misses, kb.fixPointCacheStats().missCount());
+		Assert.assertTrue(kb.fixPointCacheStats().hitCount() >= kb.KB.size());
+	}
+
+	@Test
+	public void testFixPointCacheDisabled() {
+		KnowledgeBase kb = new KnowledgeBase.Builder(Datasets.incremental(500).build()).setFixPointCacheWeight(0).build();
+		KnowledgeBase fixpoints = kb.computeFixPoint();
+		for (int i = 0; i < 2; i++) {
+			for (ID id : kb.KB.keySet()) {
+				Assert.assertEquals(fixpoints.KB.get(id), kb.computeFixPoint(id).def);
+			}
+		}
+		Assert.assertEquals(0, kb.fixPointCacheStats().hitCount());
+		// the fixpoint knowledge base inherits the weight
+		for (int i = 0; i < 2; i++) {
+			for (ID id : kb.KB.keySet()) {
+				fixpoints.computeFixPoint(id);
+			}
+		}
+		Assert.assertEquals(0, fixpoints.fixPointCacheStats().hitCount());
+	}
+
+	@Test
+	public void testIncrementalFixPointSame() {
+		KnowledgeBase kb = Datasets.incremental(5000).build();
+		KnowledgeBase fixpoints = kb.computeFixPoint();
+		// replace a prototype somewhere in the middle, such that it has
+		// descendants, and add a new one.
+		ID replaced = ID.of("http://www.example.com#object26");
+		Assert.assertTrue(kb.subtreeSize(replaced) > 0);
+		KnowledgeBase.Builder b = new KnowledgeBase.Builder(kb);
+		b.remove(replaced);
+		b.add(Prototypes.builder(Prototype.P_0).add(KnowledgeBaseTest.knows, ID.of("http://www.example.com#object0")).build(replaced));
+		ID added = ID.of("http://example.com#added");
+		b.add(Prototypes.builder(replaced).build(added));
+		KnowledgeBase changed = b.build();
+
+		Set<ID> changes = ImmutableSet.of(replaced, added);
+		KnowledgeBase changedFixpoints = changed.computeFixPoint(fixpoints, changes);
+		Assert.assertEquals(changed.computeFixPoint().prototypes(), changedFixpoints.prototypes());
+		// nothing changed
+		Assert.assertEquals(fixpoints.prototypes(), kb.computeFixPoint(fixpoints, Collections.emptySet()).prototypes());
+		// an added prototype is missing from the changes
+		KnowledgeBase extended = new KnowledgeBase.Builder(kb).add(Prototypes.builder(Prototype.P_0).build(ID.of("http://example.com#unlisted"))).build();
+		try {
+			extended.computeFixPoint(fixpoints, Collections.emptySet());
+			Assert.fail("Expected an IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		// an added parent is missing from the changes, but its child is not
+		ID unlistedParent = ID.of("http://example.com#unlistedParent");
+		ID listedChild = ID.of("http://example.com#listedChild");
+		KnowledgeBase parentUnlisted = new KnowledgeBase.Builder(kb).add(Prototypes.builder(Prototype.P_0).build(unlistedParent)).add(Prototypes.builder(unlistedParent).build(listedChild)).build();
+		try {
+			parentUnlisted.computeFixPoint(fixpoints, Collections.singleton(listedChild));
+			Assert.fail("Expected an IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		// a further revision, removing a prototype
+		KnowledgeBase removed = new KnowledgeBase.Builder(changed).remove(added).build();
+		Assert.assertEquals(removed.computeFixPoint().prototypes(), removed.computeFixPoint(changedFixpoints, Collections.singleton(added)).prototypes());
+	}
+
+	@Test
+	public void testDerivedChildrenIndex() {
+		KnowledgeBase kb = Datasets.incremental(2000).build();
+		// create the index, such that the revisions derive theirs
+		Assert.assertEquals(kb.size(), kb.subtreeSize(Prototype.P_0.id));
+		Random r = new Random(9876);
+		for (int revision = 0; revision < 20; revision++) {
+			KnowledgeBase.Builder b = new KnowledgeBase.Builder(kb);
+			for (int i = 0; i < 5; i++) {
+				// a new parent with a lower number keeps the inheritance acyclic
+				int moved = 1 + r.nextInt(1999);
+				ID id = ID.of("http://www.example.com#object" + moved);
+				b.remove(id);
+				b.add(Prototypes.builder(ID.of("http://www.example.com#object" + r.nextInt(moved))).build(id));
+			}
+			b.add(Prototypes.builder(ID.of("http://www.example.com#object" + r.nextInt(2000))).build(ID.of("http://example.com/derived#" + revision)));
+			kb = b.build();
+			KnowledgeBase fresh = new KnowledgeBase(kb.KB, kb.external());
+			for (ID id : Iterables.concat(kb.KB.keySet(), Collections.singleton(Prototype.P_0.id))) {
+				Assert.assertEquals(fresh.children(id), kb.children(id));
+				Assert.assertEquals(fresh.subtreeSize(id), kb.subtreeSize(id));
+			}
+		}
+	}
+
+	@Test
+	public void testDeltaCheck() {
+		ID a = ID.of("http://example.com#deltaA");
+		ID b = ID.of("http://example.com#deltaB");
+		ID c = ID.of("http://example.com#deltaC");
+		KnowledgeBase base = new KnowledgeBase.Builder(EmptyKnowledgeBase.instance).add(Prototypes.builder(Prototype.P_0).build(a)).add(Prototypes.builder(a).build(b)).add(Prototypes.builder(Prototype.P_0).add(KnowledgeBaseTest.knows, b).build(c)).build();
+
+		// removing a prototype which is still referred to, as parent or value
+		KnowledgeBaseTest.errorOf(() -> new KnowledgeBase.Builder(base).remove(a).build());
+		KnowledgeBaseTest.errorOf(() -> new KnowledgeBase.Builder(base).remove(b).build());
+		// replacing a prototype such that there is a cycle
+		KnowledgeBaseTest.errorOf(() -> new KnowledgeBase.Builder(base).remove(a).add(Prototypes.builder(b).build(a)).build());
+		// adding a prototype referring to a removed one
+		KnowledgeBaseTest.errorOf(() -> new KnowledgeBase.Builder(base).remove(c).add(Prototypes.builder(c).build(ID.of("http://example.com#deltaD"))).build());
+
+		// valid changes
+		KnowledgeBase changed = new KnowledgeBase.Builder(base).remove(c).remove(b).add(Prototypes.builder(Prototype.P_0).add(KnowledgeBaseTest.knows, a).build(b)).build();
+		Assert.assertEquals(ImmutableSet.of(a, b), changed.KB.keySet());
+		Assert.assertFalse(changed.isDefined(c).isPresent());
+		Assert.assertTrue(new KnowledgeBase.Builder(changed).remove(b).remove(a).build().KB.isEmpty());
+		Assert.assertSame(base.KB.get(a), changed.KB.get(a));
+		// the immutable copy is made once and has the same order
+		ImmutableMap<ID, PrototypeDefinition> prototypes = changed.prototypes();
+		Assert.assertSame(prototypes, changed.prototypes());
+		Assert.assertEquals(new ArrayList<>(changed.KB.keySet()), new ArrayList<>(prototypes.keySet()));
+
+		// the references of a revision are derived from the ones of its base
+		ID d = ID.of("http://example.com#deltaD");
+		KnowledgeBase next = new KnowledgeBase.Builder(changed).add(Prototypes.builder(b).build(d)).build();
+		KnowledgeBaseTest.errorOf(() -> new KnowledgeBase.Builder(changed).remove(a).build());
+		KnowledgeBaseTest.errorOf(() -> new KnowledgeBase.Builder(next).remove(a).build());
+		Assert.assertEquals(ImmutableSet.of(b, d), new KnowledgeBase.Builder(next).remove(b).add(Prototypes.builder(Prototype.P_0).build(b)).remove(a).build().KB.keySet());
+		KnowledgeBaseTest.errorOf(() -> new KnowledgeBase.Builder(next).remove(b).build());
+		Assert.assertEquals(ImmutableSet.of(a), new KnowledgeBase.Builder(next).remove(d).remove(b).build().KB.keySet());
+	}
+
+	@Test
+	public void testChildrenAndDescendants() {
+		KnowledgeBase kb = Datasets.incremental(5000).build();
+		SetMultimap<ID, ID> children = HashMultimap.create();
+		for (Entry<ID, PrototypeDefinition> proto : kb.KB.entrySet()) {
+			children.put(proto.getValue().parent, proto.getKey());
+		}
+		Assert.assertEquals(kb.size(), kb.subtreeSize(Prototype.P_0.id));
+		Assert.assertEquals(kb.KB.keySet(), kb.descendants(Prototype.P_0.id).collect(Collectors.toSet()));
+		for (ID id : new ArrayList<>(kb.KB.keySet()).subList(0, 200)) {
+			Assert.assertEquals(children.get(id), new HashSet<>(kb.children(id)));
+			// brute force: walk up from every prototype
+			Set<ID> descendants = new HashSet<>();
+			for (ID other : kb.KB.keySet()) {
+				for (ID current = kb.KB.get(other).parent; kb.KB.containsKey(current); current = kb.KB.get(current).parent) {
+					if (current.equals(id)) {
+						descendants.add(other);
+						break;
+					}
+				}
+			}
+			Assert.assertEquals(descendants, kb.descendants(id).collect(Collectors.toSet()));
+			Assert.assertEquals(descendants.size(), kb.subtreeSize(id));
+			Assert.assertEquals(descendants.size(), kb.descendants(id).count());
+		}
+		Assert.assertEquals(0, kb.descendants(ID.of("http://example.com#unknown")).count());
+	}
+
+	@Test
+	public void testLookup() {
+		KnowledgeBase kb = Datasets.incremental(200).build();
+		IKnowledgeBase chained = ChainedKB.chain(EmptyKnowledgeBase.instance, kb, PredefinedKB.kb);
+		for (Entry<ID, PrototypeDefinition> proto : kb.KB.entrySet()) {
+			Assert.assertSame(proto.getValue(), kb.lookup(proto.getKey()));
+			Assert.assertSame(proto.getValue(), chained.lookup(proto.getKey()));
+			Assert.assertEquals(new Prototype(proto.getKey(), proto.getValue()), kb.isDefined(proto.getKey()).get());
+		}
+		for (IKnowledgeBase base : new IKnowledgeBase[] { kb, chained, EmptyKnowledgeBase.instance, PredefinedKB.kb }) {
+			Assert.assertSame(PrototypeDefinition.P_0, base.lookup(Prototype.P_0.id));
+			Assert.assertSame(Prototype.P_0, base.isDefined(Prototype.P_0.id).get());
+			Assert.assertNull(base.lookup(ID.of("http://example.com#undefined")));
+			Assert.assertFalse(base.isDefined(ID.of("http://example.com#undefined")).isPresent());
+		}
+		Prototype five = PredefinedKB.get(5);
+		Assert.assertEquals(five.def, chained.lookup(five.id));
+	}
+
+	@Test
+	public void testAsyncAdapter() {
+		KnowledgeBase kb = Datasets.incremental(200).build();
+		IAsyncFPKnowledgeBase async = AsyncKnowledgeBases.adapt(kb);
+		List<ID> ids = new ArrayList<>(kb.KB.keySet());
+		List<Prototype> fixpoints = async.computeFixPointAllAsync(ids).join();
+		for (int i = 0; i < ids.size(); i++) {
+			Assert.assertEquals(kb.isDefined(ids.get(i)), async.isDefinedAsync(ids.get(i)).join());
+			Assert.assertEquals(kb.computeFixPoint(ids.get(i)), fixpoints.get(i));
+		}
+		Assert.assertTrue(async.computeFixPointAsync(ID.of("http://example.com#undefined")).isCompletedExceptionally());
+	}
+
+	@Test
+	public void testBatchLookup() {
+		KnowledgeBase kb = Datasets.incremental(200).build();
+		List<ID> ids = new ArrayList<>(kb.KB.keySet());
+		ID undefined = ID.of("http://example.com#undefined");
+		ids.add(undefined);
+		Map<ID, Prototype> found = kb.isDefinedAll(ids);
+		Assert.assertEquals(kb.KB.size(), found.size());
+		Assert.assertFalse(found.containsKey(undefined));
+		Map<ID, Prototype> fixpoints = kb.computeFixPointAll(kb.KB.keySet());
+		for (ID id : kb.KB.keySet()) {
+			Assert.assertEquals(kb.isDefined(id).get(), found.get(id));
+			Assert.assertEquals(kb.computeFixPoint(id), fixpoints.get(id));
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package miselico.prototypes.knowledgebase;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PersistentPropertyMapTest {
+
+	private static Property property(int i) {
+		return Property.of("http://example.com/persistent#p" + i);
+	}
+
+	private static ID value(int i) {
+		return ID.of("http://example.com/persistent#v" + i);
+	}
+
+	@Test
+	public void testDeriveSameAsMutable() {
+		Random r = new Random(4567);
+		AddChangeSet persistent = AddChangeSet.empty();
+		MutableChangeSet mutable = new MutableChangeSet();
+		for (int step = 0; step < 2000; step++) {
+			RemoveChangeSet.Builder remove = RemoveChangeSet.builder();
+			AddChangeSet.Builder add = AddChangeSet.builder();
+			for (int i = r.nextInt(4); i > 0; i--) {
+				remove.andRemove(PersistentPropertyMapTest.property(r.nextInt(2000)), PersistentPropertyMapTest.value(r.nextInt(5)));
+			}
+			if (r.nextInt(10) == 0) {
+				remove.andRemoveAll(PersistentPropertyMapTest.property(r.nextInt(2000)));
+			}
+			for (int i = r.nextInt(6); i > 0; i--) {
+				add.andAdd(PersistentPropertyMapTest.property(r.nextInt(2000)), PersistentPropertyMapTest.value(r.nextInt(5)));
+			}
+			RemoveChangeSet rem = remove.build();
+			AddChangeSet ad = add.build();
+			AddChangeSet previous = persistent;
+			AddChangeSet previousCopy = AddChangeSet.fromMutable(mutable);
+
+			persistent = persistent.derive(rem, ad);
+			rem.removeFrom(mutable);
+			ad.addTo(mutable);
+
+			AddChangeSet expected = AddChangeSet.fromMutable(mutable);
+			Assert.assertEquals(expected, persistent);
+			Assert.assertEquals(persistent, expected);
+			Assert.assertEquals(expected.hashCode(), persistent.hashCode());
+			Assert.assertEquals(expected.size(), persistent.size());
+			// deriving does not modify the parent
+			Assert.assertEquals(previousCopy, previous);
+		}
+		// remove everything again, this exercises the compaction of the trie.
+		RemoveChangeSet.Builder all = RemoveChangeSet.builder();
+		for (Property p : persistent.affectsProperties()) {
+			all.andRemoveAll(p);
+		}
+		AddChangeSet emptied = persistent.derive(all.build(), AddChangeSet.empty());
+		Assert.assertTrue(emptied.isEmpty());
+		Assert.assertEquals(AddChangeSet.empty(), emptied);
+	}
+
+	@Test
+	public void testUnchangedIsShared() {
+		AddChangeSet parent = AddChangeSet.builder().andAdd(PersistentPropertyMapTest.property(1), PersistentPropertyMapTest.value(1)).build().derive(RemoveChangeSet.empty(), AddChangeSet.empty());
+		Assert.assertSame(parent, parent.derive(RemoveChangeSet.empty(), AddChangeSet.empty()));
+		// adding something already there does not change anything
+		AddChangeSet same = parent.derive(RemoveChangeSet.empty(), AddChangeSet.builder().andAdd(PersistentPropertyMapTest.property(1), PersistentPropertyMapTest.value(1)).build());
+		Assert.assertEquals(parent, same);
+	}
+}
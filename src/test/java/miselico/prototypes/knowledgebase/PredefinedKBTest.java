@@ -0,0 +1,141 @@
+package miselico.prototypes.knowledgebase;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.primitives.Longs;
+
+public class PredefinedKBTest {
+
+	@Test
+	public void testPrefixTrie() {
+		PrefixTrie<String> trie = PrefixTrie.<String> builder().put("a", "a").put("abc", "abc").put("b", "b").put("abd", "abd").build();
+		Assert.assertEquals("abc", trie.longestPrefixOf("abcdef"));
+		Assert.assertEquals("abd", trie.longestPrefixOf("abd"));
+		Assert.assertEquals("a", trie.longestPrefixOf("ab"));
+		Assert.assertEquals("b", trie.longestPrefixOf("bcd"));
+		Assert.assertNull(trie.longestPrefixOf("c"));
+		Assert.assertNull(trie.longestPrefixOf(""));
+		Assert.assertEquals("root", PrefixTrie.<String> builder().put("", "root").build().longestPrefixOf("x"));
+	}
+
+	@Test
+	public void testIntegers() {
+		Random r = new Random(42);
+		for (int i = 0; i < 1000; i++) {
+			long value = i < 10 ? Long.MAX_VALUE - i : r.nextLong();
+			Prototype p = PredefinedKB.get(value);
+			Assert.assertEquals(p, PredefinedKB.kb.isDefined(p.id).get());
+			Assert.assertEquals(p.def, PredefinedKB.kb.lookup(p.id));
+			Assert.assertEquals(Optional.of(value), PredefinedKB.INTEGERS.convertBack(p.id));
+		}
+		Assert.assertNotNull(PredefinedKB.kb.lookup(ID.of("value:integer#" + Long.MIN_VALUE)));
+		long before = PredefinedKB.kb.malformedCount();
+		for (String fragment : new String[] { "", "-", "+1", "1.0", "9223372036854775808", "-9223372036854775809", "12a" }) {
+			ID id = ID.of("value:integer#" + fragment);
+			Assert.assertNull(Longs.tryParse(fragment));
+			Assert.assertNull(PredefinedKB.kb.lookup(id));
+			Assert.assertFalse(PredefinedKB.kb.isDefined(id).isPresent());
+		}
+		Assert.assertEquals(before + 14, PredefinedKB.kb.malformedCount());
+	}
+
+	@Test
+	public void testStrings() {
+		for (String value : new String[] { "", "plain", "with space", "value:string#inside", "100%", "äö" }) {
+			Prototype p = PredefinedKB.get(value);
+			Assert.assertEquals(p, PredefinedKB.kb.isDefined(p.id).get());
+			Assert.assertEquals(p.def, PredefinedKB.kb.lookup(p.id));
+			Assert.assertEquals(Optional.of(value), PredefinedKB.STRINGS.convertBack(p.id));
+		}
+		Assert.assertNull(PredefinedKB.kb.lookup(ID.of("value:string#a:b")));
+		Assert.assertNull(PredefinedKB.kb.lookup(ID.of("value:other#a")));
+	}
+
+	private static final class BooleanPart extends PredefinedKB.PredefinedKBPart<Boolean> {
+
+		@Override
+		protected String getBaseString() {
+			return "value:boolean#";
+		}
+
+		@Override
+		protected String toIRIFragment(Boolean val) {
+			return val.toString();
+		}
+
+		@Override
+		protected Optional<Boolean> fromIRIFragment(String fragment) {
+			switch (fragment) {
+			case "true":
+				return Optional.of(true);
+			case "false":
+				return Optional.of(false);
+			default:
+				return Optional.empty();
+			}
+		}
+	}
+
+	@Test
+	public void testExtraPart() {
+		BooleanPart booleans = new BooleanPart();
+		PredefinedKB kb = new PredefinedKB(booleans) {
+		};
+		Prototype t = booleans.define(true);
+		Assert.assertEquals(t, kb.isDefined(t.id).get());
+		Assert.assertFalse(PredefinedKB.kb.isDefined(t.id).isPresent());
+		Assert.assertNull(kb.lookup(ID.of("value:boolean#yes")));
+		Assert.assertEquals(1, kb.malformedCount());
+		// the integers part is shared, but the count is not.
+		long shared = PredefinedKB.kb.malformedCount();
+		Assert.assertNull(kb.lookup(ID.of("value:integer#x")));
+		Assert.assertEquals(2, kb.malformedCount());
+		Assert.assertEquals(shared, PredefinedKB.kb.malformedCount());
+		Assert.assertNotNull(kb.lookup(PredefinedKB.get(1).id));
+	}
+
+	@Test
+	public void testLiteralIDs() throws UnsupportedEncodingException {
+		Random r = new Random(7);
+		for (int i = 0; i < 2000; i++) {
+			long number = i < 3 ? new long[] { 0, Long.MIN_VALUE, Long.MAX_VALUE }[i] : r.nextLong() >> r.nextInt(64);
+			ID literal = PredefinedKB.get(number).id;
+			ID parsed = ID.of("value:integer#" + number);
+			Assert.assertEquals(parsed.hashCode(), literal.hashCode());
+			Assert.assertEquals(parsed, literal);
+			Assert.assertEquals(literal, parsed);
+			Assert.assertEquals(parsed.toString(), literal.toString());
+			Assert.assertEquals(PredefinedKB.get(number).id, literal);
+			Assert.assertNotEquals(PredefinedKB.get(number + 1).id, literal);
+		}
+		for (int i = 0; i < 2000; i++) {
+			char[] chars = new char[r.nextInt(6)];
+			for (int j = 0; j < chars.length; j++) {
+				// mostly ASCII, some others including surrogates
+				chars[j] = (char) (r.nextBoolean() ? r.nextInt(128) : r.nextInt(Character.MAX_VALUE + 1));
+			}
+			String text = new String(chars);
+			ID literal = PredefinedKB.get(text).id;
+			String iri = "value:string#" + URLEncoder.encode(text, StandardCharsets.UTF_8.name());
+			Assert.assertEquals(iri, literal.toString());
+			Assert.assertEquals(iri.hashCode(), literal.hashCode());
+			Assert.assertEquals(literal, ID.of(iri));
+			Assert.assertEquals(ID.of(iri), literal);
+		}
+		// integer and string literals with the same text differ
+		Assert.assertNotEquals(PredefinedKB.get(1).id, PredefinedKB.get("1").id);
+		// a literal is only interned when its handle is needed
+		ID fresh = PredefinedKB.get("never interned before " + r.nextLong()).id;
+		ID interned = fresh.canonical();
+		Assert.assertEquals(interned.handle(), fresh.handle());
+		Assert.assertEquals(interned, fresh);
+		Assert.assertSame(interned, ID.of(fresh.toString()));
+	}
+}
@@ -0,0 +1,58 @@
+package miselico.prototypes.knowledgebase;
+
+import java.util.HashSet;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+
+import miselico.prototypes.experiments.Datasets;
+
+public class PropertyIndexTest {
+
+	@Test
+	public void testSameAsFixPoints() {
+		KnowledgeBase kb = Datasets.incremental(3000).build();
+		PropertyIndex index = PropertyIndex.of(kb);
+		KnowledgeBase fixpoints = kb.computeFixPoint();
+
+		SetMultimap<Property, ID> byProperty = HashMultimap.create();
+		SetMultimap<Entry<Property, ID>, ID> byValue = HashMultimap.create();
+		for (Entry<ID, PrototypeDefinition> proto : fixpoints.KB.entrySet()) {
+			for (Entry<Property, ID> pair : proto.getValue().add.entries()) {
+				byProperty.put(pair.getKey(), proto.getKey());
+				byValue.put(pair, proto.getKey());
+			}
+		}
+		Assert.assertEquals(kb.KB.keySet(), new HashSet<>(index.all().ids()));
+		for (Property p : byProperty.keySet()) {
+			Assert.assertEquals(byProperty.get(p), new HashSet<>(index.withProperty(p).ids()));
+		}
+		for (Entry<Property, ID> pair : byValue.keySet()) {
+			Assert.assertEquals(byValue.get(pair), new HashSet<>(index.withValue(pair.getKey(), pair.getValue()).ids()));
+		}
+		Assert.assertTrue(index.withProperty(Property.of("http://example.com#unused")).isEmpty());
+	}
+
+	@Test
+	public void testSetOperations() {
+		KnowledgeBase kb = Datasets.incremental(3000).build();
+		PropertyIndex index = PropertyIndex.of(kb);
+		Postings a = index.all().andNot(index.withProperty(Property.of("http://example.com/unused")));
+		Assert.assertEquals(index.all(), a);
+		for (int i = 0; i < 20; i += 2) {
+			Postings x = new Postings(new int[] { 1, 3, 5, 7, 9 + i });
+			Postings y = new Postings(new int[] { 3, 4, 5, 9 });
+			Set<ID> xs = new HashSet<>(x.ids());
+			Set<ID> ys = new HashSet<>(y.ids());
+			Assert.assertEquals(Sets.intersection(xs, ys), new HashSet<>(x.and(y).ids()));
+			Assert.assertEquals(Sets.union(xs, ys), new HashSet<>(x.or(y).ids()));
+			Assert.assertEquals(Sets.difference(xs, ys), new HashSet<>(x.andNot(y).ids()));
+		}
+	}
+}
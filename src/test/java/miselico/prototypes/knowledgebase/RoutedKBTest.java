@@ -0,0 +1,80 @@
+package miselico.prototypes.knowledgebase;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RoutedKBTest {
+
+	private static final Property name = Property.of("http://example.org/routed#name");
+	private static final Property knows = Property.of("http://example.org/routed#knows");
+
+	@Test
+	public void testRouting() {
+		ID org = ID.of("http://example.org/routed#org");
+		ID orgPerson = ID.of("http://example.org/people/routed#person");
+		ID com = ID.of("http://example.com/routed#com");
+		KnowledgeBase orgKB = new KnowledgeBase.Builder(PredefinedKB.kb).add(Prototypes.builder(Prototype.P_0).add(RoutedKBTest.name, PredefinedKB.get("org")).build(org)).build();
+		// a prototype in a more specific namespace, deriving from one in the
+		// parent namespace
+		KnowledgeBase peopleKB = new KnowledgeBase.Builder(ChainedKB.chain(orgKB, PredefinedKB.kb)).add(Prototypes.builder(org).add(RoutedKBTest.knows, org).build(orgPerson)).build();
+		KnowledgeBase comKB = new KnowledgeBase.Builder(PredefinedKB.kb).add(Prototypes.builder(Prototype.P_0).build(com)).build();
+
+		RoutedKB routed = new RoutedKB(RoutedKB.RouteTable.builder().route("http://example.org/", orgKB).route("http://example.org/people/", peopleKB).route("value:", PredefinedKB.kb).fallback(comKB).build());
+
+		Assert.assertSame(orgKB.prototypes().get(org), routed.lookup(org));
+		Assert.assertSame(peopleKB.prototypes().get(orgPerson), routed.lookup(orgPerson));
+		Assert.assertSame(comKB.prototypes().get(com), routed.lookup(com));
+		Assert.assertSame(PrototypeDefinition.P_0, routed.lookup(Prototype.P_0.id));
+		Assert.assertNotNull(routed.lookup(PredefinedKB.get(3).id));
+		// owned namespaces are authoritative, the fallback is not asked
+		Assert.assertNull(routed.lookup(ID.of("http://example.org/routed#missing")));
+		Assert.assertNull(routed.lookup(ID.of("http://example.net/routed#missing")));
+
+		Assert.assertEquals(peopleKB.computeFixPoint(orgPerson), routed.computeFixPoint(orgPerson));
+
+		RoutedKB.RouteStats orgStats = routed.routeStats().get("http://example.org/");
+		Assert.assertTrue(orgStats.hits >= 1);
+		Assert.assertEquals(1, orgStats.misses);
+		Assert.assertEquals(1, routed.fallbackStats().hits);
+		Assert.assertEquals(1, routed.fallbackStats().misses);
+
+		// swap the routes, the statistics are kept
+		RoutedKB.RouteTable old = routed.swapRoutes(RoutedKB.RouteTable.builder().route("http://example.com/", comKB).build());
+		Assert.assertEquals(3, old.namespaces().size());
+		Assert.assertNull(routed.lookup(org));
+		Assert.assertSame(comKB.prototypes().get(com), routed.lookup(com));
+		Assert.assertEquals(orgStats.hits, routed.routeStats().get("http://example.org/").hits);
+	}
+
+	@Test
+	public void testFixPointDelegated() {
+		ID org = ID.of("http://example.org/delegated#org");
+		ID orgChild = ID.of("http://example.org/delegated#child");
+		ID net = ID.of("http://example.net/delegated#net");
+		KnowledgeBase orgKB = new KnowledgeBase.Builder(PredefinedKB.kb).add(Prototypes.builder(Prototype.P_0).add(RoutedKBTest.name, PredefinedKB.get("org")).build(org)).add(Prototypes.builder(org).add(RoutedKBTest.knows, org).build(orgChild)).build();
+		// a fallback prototype deriving from one in a routed namespace
+		KnowledgeBase netKB = new KnowledgeBase.Builder(ChainedKB.chain(orgKB, PredefinedKB.kb)).add(Prototypes.builder(orgChild).removeAll(RoutedKBTest.name).build(net)).build();
+		RoutedKB routed = new RoutedKB(RoutedKB.RouteTable.builder().route("http://example.org/", orgKB).route("value:", PredefinedKB.kb).fallback(netKB).build());
+
+		Assert.assertEquals(orgKB.computeFixPoint(orgChild), routed.computeFixPoint(orgChild));
+		Assert.assertEquals(netKB.computeFixPoint(net), routed.computeFixPoint(net));
+		Assert.assertEquals(1, routed.fallbackStats().hits);
+		// the owner computed the fixpoints of the routed part, the second one
+		// from its cache.
+		Assert.assertEquals(0, routed.routeStats().get("http://example.org/").misses);
+		long hits = orgKB.fixPointCacheStats().hitCount();
+		routed.computeFixPoint(orgChild);
+		Assert.assertEquals(hits + 1, orgKB.fixPointCacheStats().hitCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testFixPointUndefined() {
+		KnowledgeBase orgKB = new KnowledgeBase.Builder(PredefinedKB.kb).build();
+		new RoutedKB(RoutedKB.RouteTable.builder().route("http://example.org/", orgKB).build()).computeFixPoint(ID.of("http://example.org/delegated#missing"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDuplicateNamespace() {
+		RoutedKB.RouteTable.builder().route("http://example.org/", EmptyKnowledgeBase.instance).route("http://example.org/", PredefinedKB.kb).build();
+	}
+}
@@ -0,0 +1,50 @@
+package miselico.prototypes.knowledgebase;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SimpleIRITest {
+
+	@Test
+	public void testCommon() {
+		Assert.assertTrue(SimpleIRI.isValid("http://www.example.com#object1_2"));
+		Assert.assertTrue(SimpleIRI.isValid("http://www.example.com/a/b?c=d&e=f#g"));
+		Assert.assertTrue(SimpleIRI.isValid("urn:isbn:0451450523"));
+		Assert.assertTrue(SimpleIRI.isValid("http://example.com/%C3%A9"));
+	}
+
+	@Test
+	public void testNeedsFullParse() {
+		for (String value : new String[] { "", "example", "/relative", "1http://a", "http:", "http:#a", "http://", "http:///a", "http://a#b#c", "http://[::1]/", "http://a/%zz", "http://a/%4", "http://a/ b", "http://a/é", "http://a/<b>" }) {
+			Assert.assertFalse(value, SimpleIRI.isValid(value));
+		}
+	}
+
+	/**
+	 * Everything accepted must be accepted unchanged by {@link URI}
+	 */
+	@Test
+	public void testAgreesWithURI() throws URISyntaxException {
+		String alphabet = "ab09:/?#%@[]-._~!$&'()*+,;= é";
+		Random r = new Random(98765);
+		int accepted = 0;
+		for (int i = 0; i < 200000; i++) {
+			StringBuilder b = new StringBuilder(r.nextBoolean() ? "http:" : "x");
+			for (int j = r.nextInt(12); j > 0; j--) {
+				b.append(alphabet.charAt(r.nextInt(alphabet.length())));
+			}
+			String value = b.toString();
+			if (SimpleIRI.isValid(value)) {
+				accepted++;
+				URI uri = new URI(value);
+				Assert.assertTrue(value, uri.isAbsolute());
+				Assert.assertEquals(value, uri.toString());
+			}
+		}
+		Assert.assertTrue(accepted > 1000);
+	}
+}
@@ -0,0 +1,109 @@
+package miselico.prototypes.knowledgebase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.primitives.Bytes;
+
+import miselico.prototypes.experiments.Datasets;
+import miselico.prototypes.experiments.MyKnowledgeBase;
+
+public class SnapshotKnowledgeBaseTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private SnapshotKnowledgeBase roundTrip(KnowledgeBase kb, IKnowledgeBase external) throws IOException {
+		Path file = this.folder.newFile().toPath();
+		SnapshotKnowledgeBase.write(kb, file);
+		return SnapshotKnowledgeBase.open(file, external, true);
+	}
+
+	private static void assertSameContent(KnowledgeBase kb, SnapshotKnowledgeBase snapshot) {
+		Assert.assertEquals(kb.size(), snapshot.size());
+		Assert.assertEquals(kb.prototypes().keySet(), new HashSet<>(snapshot.ids()));
+		for (ID id : kb.prototypes().keySet()) {
+			Assert.assertEquals(kb.isDefined(id), snapshot.isDefined(id));
+			Assert.assertEquals(kb.computeFixPoint(id), snapshot.computeFixPoint(id));
+		}
+		Assert.assertFalse(snapshot.isDefined(ID.of("http://example.com#undefinedInSnapshot")).isPresent());
+	}
+
+	@Test
+	public void testExampleKB() throws IOException {
+		KnowledgeBase kb = MyKnowledgeBase.getSomebase();
+		SnapshotKnowledgeBaseTest.assertSameContent(kb, this.roundTrip(kb, PredefinedKB.kb));
+	}
+
+	@Test
+	public void testIncremental() throws IOException {
+		KnowledgeBase kb = Datasets.incremental(2000).build();
+		SnapshotKnowledgeBaseTest.assertSameContent(kb, this.roundTrip(kb, PredefinedKB.kb));
+	}
+
+	@Test(expected = IOException.class)
+	public void testCorruptionDetected() throws IOException {
+		Path file = this.folder.newFile().toPath();
+		SnapshotKnowledgeBase.write(MyKnowledgeBase.getSomebase(), file);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer last = ByteBuffer.allocate(1);
+			channel.read(last, channel.size() - 1);
+			last.put(0, (byte) ~last.get(0));
+			last.rewind();
+			channel.write(last, channel.size() - 1);
+		}
+		// the checksum is verified by default
+		SnapshotKnowledgeBase.open(file, PredefinedKB.kb);
+	}
+
+	@Test(expected = IOException.class)
+	public void testCorruptHeaderDetected() throws IOException {
+		Path file = this.folder.newFile().toPath();
+		SnapshotKnowledgeBase.write(MyKnowledgeBase.getSomebase(), file);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			// the size of the lookup table, which must be a power of two
+			ByteBuffer tableSize = ByteBuffer.allocate(4);
+			tableSize.putInt(0, 3);
+			channel.write(tableSize, 28);
+		}
+		SnapshotKnowledgeBase.open(file, PredefinedKB.kb, false);
+	}
+
+	@Test
+	public void testReadingDoesNotIntern() throws IOException {
+		ID holder = ID.of("http://example.com#snapshotHolder");
+		Property p = Property.of("http://example.com#snapshotProperty");
+		KnowledgeBase kb = new KnowledgeBase.Builder(PredefinedKB.kb).add(Prototypes.builder(Prototype.P_0).add(p, PredefinedKB.get("snapshotValueA")).build(holder)).build();
+		Path file = this.folder.newFile().toPath();
+		SnapshotKnowledgeBase.write(kb, file);
+		// change the stored value into one which was never interned. This
+		// invalidates the checksum.
+		byte[] bytes = Files.readAllBytes(file);
+		byte[] stored = "snapshotValueA".getBytes(StandardCharsets.UTF_8);
+		int at = Bytes.indexOf(bytes, stored);
+		Assert.assertTrue(at > 0);
+		bytes[(at + stored.length) - 1] = 'Z';
+		Files.write(file, bytes);
+		SnapshotKnowledgeBase snapshot = SnapshotKnowledgeBase.open(file, PredefinedKB.kb, false);
+
+		int before = ID.dictionarySize();
+		ID changed = ID.of("value:string#snapshotValueZ");
+		Assert.assertEquals(ImmutableSet.of(changed), snapshot.lookup(holder).add.apply(p));
+		Assert.assertEquals(ImmutableSet.of(changed), snapshot.computeFixPoint(holder).def.add.apply(p));
+		Assert.assertEquals(before, ID.dictionarySize());
+		Assert.assertEquals(-1, changed.internedHandle());
+	}
+
+}